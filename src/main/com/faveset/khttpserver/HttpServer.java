@@ -5,6 +5,8 @@
 package com.faveset.khttpserver;
 
 import java.io.IOException;
+import java.nio.channels.Channel;
+import java.nio.channels.ServerSocketChannel;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.UnrecoverableKeyException;
@@ -23,9 +25,18 @@ import com.faveset.flags.StringFlag;
 import com.faveset.log.OutputStreamLog;
 
 public class HttpServer {
+    // Time allowed for in-flight requests to finish on SIGTERM.
+    private static final long sDrainMillis = 30 * 1000;
+
     private static BoolFlag sLogFlag =
         Flags.registerBool("log", false, "enable logging to stdout");
 
+    private static BoolFlag sInheritFlag = Flags.registerBool("inherit", false,
+            "serve on the listening socket inherited as stdin (e.g., from systemd or inetd)");
+
+    private static BoolFlag sReusePortFlag = Flags.registerBool("reuseport", false,
+            "bind with SO_REUSEPORT so that a new process can start before this one drains");
+
     private static StringFlag sKeyStoreFlag = Flags.registerString("keystore", "", "keystore file");
 
     private static StringFlag sTrustStoreFlag =
@@ -34,12 +45,35 @@ public class HttpServer {
     private static StringFlag sKeyPassFlag =
         Flags.registerString("keypass", "", "password for private key/cert");
 
+    /**
+     * Stops server on SIGINT and drains it on SIGTERM, which lets in-flight
+     * requests finish during deploys.
+     *
+     * sun.misc.Signal is an internal API, so javac warns about each use.
+     * Those warnings cannot be suppressed, so all uses are kept here.
+     */
+    private static void handleSignals(final com.faveset.mahttpd.HttpServer server) {
+        Signal.handle(new Signal("INT"), new SignalHandler() {
+            @Override
+            public void handle(Signal sig) {
+                server.stop();
+            }
+        });
+
+        Signal.handle(new Signal("TERM"), new SignalHandler() {
+            @Override
+            public void handle(Signal sig) {
+                server.stopGracefully(sDrainMillis);
+            }
+        });
+    }
+
     public static void main(String[] args) throws CertificateException, IOException,
            IllegalArgumentException, KeyManagementException, KeyStoreException, UnrecoverableKeyException {
         Flags.parse(args);
 
         Flags flags = Flags.get();
-        if (flags.getArgSize() < 1) {
+        if (flags.getArgSize() < 1 && !sInheritFlag.get()) {
             StringBuilder builder = new StringBuilder();
             builder.append("<port>\n");
             flags.writeHelp(builder);
@@ -48,8 +82,6 @@ public class HttpServer {
             return;
         }
 
-        int port = new Integer(flags.getArg(0));
-
         final com.faveset.mahttpd.HttpServer server = new com.faveset.mahttpd.HttpServer();
 
         OutputStreamLog log = null;
@@ -66,14 +98,7 @@ public class HttpServer {
             server.configureSSL(sKeyStoreFlag.get(), sTrustStoreFlag.get(), sKeyPassFlag.get());
         }
 
-
-        // Set up the signal handler for exiting the server.
-        Signal.handle(new Signal("INT"), new SignalHandler() {
-            @Override
-            public void handle(Signal sig) {
-                server.stop();
-            }
-        });
+        handleSignals(server);
 
         // Register handlers.
 
@@ -83,7 +108,18 @@ public class HttpServer {
                 w.write("<html><body>Hello</body></html>");
             }
         });
-        server.listenAndServe("::", port);
+        if (sInheritFlag.get()) {
+            Channel chan = System.inheritedChannel();
+            if (!(chan instanceof ServerSocketChannel)) {
+                System.out.println("no inherited listening socket");
+                return;
+            }
+            server.serve((ServerSocketChannel) chan);
+        } else {
+            int port = new Integer(flags.getArg(0));
+            server.setReusePort(sReusePortFlag.get());
+            server.listenAndServe("::", port);
+        }
 
         if (log != null) {
             log.close();
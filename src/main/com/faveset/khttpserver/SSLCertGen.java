@@ -24,6 +24,9 @@ public class SSLCertGen {
     private static StringFlag sOutputFlag =
         Flags.registerString("o", "", "output filename");
 
+    private static StringFlag sKeyTypeFlag =
+        Flags.registerString("keytype", "rsa", "key type: rsa (2048-bit) or ec (P-256)");
+
     private static StringFlag sKeystoreFlag =
         Flags.registerString("keystore", "", "filename for the JKS keystore");
 
@@ -59,7 +62,16 @@ public class SSLCertGen {
             return;
         }
 
-        KeyPair keyPair = CertificateBuilder.makeKey();
+        KeyPair keyPair;
+        String keyType = sKeyTypeFlag.get();
+        if (keyType.equals("rsa")) {
+            keyPair = CertificateBuilder.makeKey();
+        } else if (keyType.equals("ec")) {
+            keyPair = CertificateBuilder.makeECKey();
+        } else {
+            System.out.println("error: unknown key type " + keyType);
+            return;
+        }
 
         // Build the certificate and truststore first so that we can use the self-signed certificate
         // for the keystore's certificate chain..
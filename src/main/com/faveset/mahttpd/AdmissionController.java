@@ -0,0 +1,200 @@
+// Copyright 2014, Kevin Ko <kevin@faveset.com>. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.faveset.mahttpd;
+
+/**
+ * Limits the number of requests that an event loop takes on at once so that
+ * overload results in quick 503 responses rather than unbounded latency.
+ *
+ * Handlers run synchronously in the event loop, so a request is in flight
+ * from the start of the iteration that admits it until its response is
+ * sent.  The limit covers requests admitted in the current iteration plus
+ * those whose responses were still being sent when it began.
+ *
+ * The limit adapts once per window.  If the event loop's iterations or the
+ * requests' latencies exceed their targets, it shrinks in proportion to the
+ * overshoot (target / observed), within bounds.  Otherwise, it grows by one
+ * if the window used at least half of the limit.
+ *
+ * This must only be accessed by the event loop, except for the getters.
+ */
+class AdmissionController {
+    private final int mMinLimit;
+    private final int mMaxLimit;
+
+    private final long mTargetLagMillis;
+    private final long mTargetLatencyMillis;
+
+    private final long mWindowMillis;
+
+    private volatile int mLimit;
+
+    // Requests whose responses have not been sent.
+    private int mPendingCount;
+
+    // The number of requests pending when the current iteration started.
+    private int mCarriedCount;
+
+    private int mIterationAdmitCount;
+
+    private long mIterationStartMillis;
+
+    // Statistics for the current window.
+    private long mWindowStartMillis;
+    private long mWindowMaxLagMillis;
+    private long mWindowLatencySum;
+    private int mWindowLatencyCount;
+    private int mWindowMaxInFlight;
+
+    private volatile long mRejectCount;
+
+    /**
+     * @param initialLimit the starting limit, which is clamped to
+     * [minLimit, maxLimit].
+     * @param targetLagMillis the longest acceptable event loop iteration.
+     * 0 ignores iteration lag.
+     * @param targetLatencyMillis the longest acceptable average request
+     * latency.  0 ignores latency.
+     * @param windowMillis the interval between limit adjustments.
+     * @param nowMillis the current time.
+     *
+     * @throws IllegalArgumentException if minLimit is not positive, maxLimit
+     * is below minLimit, or windowMillis is not positive.
+     */
+    public AdmissionController(int initialLimit, int minLimit, int maxLimit,
+            long targetLagMillis, long targetLatencyMillis, long windowMillis, long nowMillis)
+            throws IllegalArgumentException {
+        if (minLimit <= 0 || maxLimit < minLimit || windowMillis <= 0) {
+            throw new IllegalArgumentException();
+        }
+
+        mMinLimit = minLimit;
+        mMaxLimit = maxLimit;
+        mTargetLagMillis = targetLagMillis;
+        mTargetLatencyMillis = targetLatencyMillis;
+        mWindowMillis = windowMillis;
+
+        mLimit = Math.min(Math.max(initialLimit, minLimit), maxLimit);
+
+        mIterationStartMillis = nowMillis;
+        mWindowStartMillis = nowMillis;
+    }
+
+    /**
+     * Adjusts the limit from the window's statistics and starts a new
+     * window.
+     */
+    private void adjustLimit(long nowMillis) {
+        // The fraction of the limit to keep, which is 1 if neither target was
+        // exceeded.
+        double ratio = 1.0;
+        if (mTargetLagMillis != 0 && mWindowMaxLagMillis > mTargetLagMillis) {
+            ratio = (double) mTargetLagMillis / mWindowMaxLagMillis;
+        }
+        if (mTargetLatencyMillis != 0 && mWindowLatencyCount > 0) {
+            long latencyMillis = mWindowLatencySum / mWindowLatencyCount;
+            if (latencyMillis > mTargetLatencyMillis) {
+                ratio = Math.min(ratio, (double) mTargetLatencyMillis / latencyMillis);
+            }
+        }
+
+        int limit = mLimit;
+        if (ratio < 1.0) {
+            // Back off in proportion to the overshoot, within bounds, so that
+            // severe overload is shed within a few windows.
+            ratio = Math.max(Constants.ADMISSION_MIN_BACKOFF_RATIO,
+                    Math.min(Constants.ADMISSION_MAX_BACKOFF_RATIO, ratio));
+            limit = Math.max(mMinLimit, (int) (limit * ratio));
+        } else if (mWindowMaxInFlight * 2 >= limit) {
+            limit = Math.min(mMaxLimit, limit + 1);
+        }
+        mLimit = limit;
+
+        mWindowStartMillis = nowMillis;
+        mWindowMaxLagMillis = 0;
+        mWindowLatencySum = 0;
+        mWindowLatencyCount = 0;
+        mWindowMaxInFlight = 0;
+    }
+
+    /**
+     * Records the end of an event loop iteration, which began with the last
+     * call to startIteration().
+     */
+    public void endIteration(long nowMillis) {
+        long lagMillis = nowMillis - mIterationStartMillis;
+        if (lagMillis > mWindowMaxLagMillis) {
+            mWindowMaxLagMillis = lagMillis;
+        }
+
+        if (nowMillis - mWindowStartMillis >= mWindowMillis) {
+            adjustLimit(nowMillis);
+        }
+    }
+
+    /**
+     * @return the start of the current iteration in millis, which
+     * approximates the arrival of the requests that it handles.
+     */
+    public long getIterationStartMillis() {
+        return mIterationStartMillis;
+    }
+
+    public int getLimit() {
+        return mLimit;
+    }
+
+    /**
+     * @return the number of requests refused because of the limit.
+     */
+    public long getRejectCount() {
+        return mRejectCount;
+    }
+
+    /**
+     * Marks count admitted requests as complete.
+     *
+     * @param latencyMillis the time from admission until the responses were
+     * sent.
+     */
+    public void release(int count, long latencyMillis) {
+        mPendingCount -= count;
+
+        mWindowLatencySum += latencyMillis * count;
+        mWindowLatencyCount += count;
+    }
+
+    /**
+     * Records the start of an event loop iteration.
+     */
+    public void startIteration(long nowMillis) {
+        mIterationStartMillis = nowMillis;
+        mIterationAdmitCount = 0;
+        mCarriedCount = mPendingCount;
+    }
+
+    /**
+     * Admits a request if the limit has room.  Admitted requests must be
+     * released with release().
+     *
+     * @return false if the request should be refused.
+     */
+    public boolean tryAdmit() {
+        int inFlight = mCarriedCount + mIterationAdmitCount;
+        if (inFlight >= mLimit) {
+            mRejectCount++;
+            return false;
+        }
+
+        mIterationAdmitCount++;
+        mPendingCount++;
+
+        inFlight++;
+        if (inFlight > mWindowMaxInFlight) {
+            mWindowMaxInFlight = inFlight;
+        }
+        return true;
+    }
+}
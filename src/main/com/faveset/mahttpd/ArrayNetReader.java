@@ -20,6 +20,14 @@ class ArrayNetReader implements NetReader {
         mBufArray = bufArray;
     }
 
+    /**
+     * Points the reader at length buffers of bufs, starting at offset, so
+     * that the reader can be reused across sends.
+     */
+    public void reset(ByteBuffer[] bufs, int offset, int length) {
+        mBufArray.reset(bufs, offset, length);
+    }
+
     @Override
     public boolean isEmpty() {
         return (!mBufArray.hasRemaining());
@@ -60,6 +68,43 @@ class ArrayNetReader implements NetReader {
         return wrapUnsafe(engine, dest);
     }
 
+    @Override
+    public SSLEngineResult wrap(SSLEngine engine, NetBuffer dest, int maxLen)
+            throws SSLException {
+        dest.flipAppend();
+
+        ByteBuffer[] bufs = mBufArray.getBuffers();
+        int offset = mBufArray.getNonEmptyOffset();
+        int end = offset + mBufArray.getNonEmptyLength();
+
+        // Find the buffer that holds the maxLen-th byte and cut it short for the wrap.
+        int count = 0;
+        for (int ii = offset; ii < end; ii++) {
+            ByteBuffer buf = bufs[ii];
+            int rem = buf.remaining();
+            if (count + rem <= maxLen) {
+                count += rem;
+                continue;
+            }
+
+            int limit = buf.limit();
+            buf.limit(buf.position() + (maxLen - count));
+
+            SSLEngineResult result;
+            try {
+                result = engine.wrap(bufs, offset, ii - offset + 1, dest.getByteBuffer());
+            } finally {
+                buf.limit(limit);
+            }
+
+            mBufArray.update();
+            return result;
+        }
+
+        // Everything fits.
+        return wrapUnsafe(engine, dest);
+    }
+
     public SSLEngineResult wrapUnsafe(SSLEngine engine, NetBuffer dest) throws SSLException {
         SSLEngineResult result = engine.wrap(mBufArray.getBuffers(),
                 mBufArray.getNonEmptyOffset(), mBufArray.getNonEmptyLength(),
@@ -65,6 +65,18 @@ public interface AsyncConnection {
      */
     ByteBuffer getOutBuffer();
 
+    /**
+     * @return the total number of bytes read from the network.  This can be
+     * sampled to detect slow clients.
+     */
+    long getRecvCount();
+
+    /**
+     * @return the total number of bytes written to the network.  This can be
+     * sampled to detect stalled sends.
+     */
+    long getSentCount();
+
     /**
      * Configures the connection for receiving data.  The callback will be
      * called when new data is received.
@@ -88,6 +100,21 @@ public interface AsyncConnection {
      */
     void recvPersistent(OnRecvCallback callback) throws IllegalArgumentException;
 
+    /**
+     * A persistent variant of recv that appends to the in buffer instead of
+     * clearing it.  The callback need not consume all content.  Instead, it
+     * must leave any unconsumed data at the start of the buffer and position
+     * the buffer for appending (e.g., with ByteBuffer.compact()).  The
+     * unconsumed data will be presented again with new data on the next
+     * callback.
+     *
+     * The callback will remain scheduled until the recv is cancelled with
+     * cancelRecv.
+     *
+     * @throws IllegalArgumentException if callback is null.
+     */
+    void recvAppendPersistent(OnRecvCallback callback) throws IllegalArgumentException;
+
     /**
      * Schedules the contents of the out buffer for sending.  Callback will
      * be called when the buffer is completely drained.  The buffer will not
@@ -112,6 +139,13 @@ public interface AsyncConnection {
      */
     void send(OnSendCallback callback, ByteBuffer buf) throws IllegalArgumentException;
 
+    /**
+     * Returns internal buffers to their pool if they hold no data so that
+     * idle connections stay small.  Buffers are reacquired on demand, such
+     * as when data arrives or getOutBuffer() is called.
+     */
+    void releaseIdleBuffers();
+
     /**
      * A variant of send() that sends an array of ByteBuffers.  The callback
      * is not persistent.
@@ -123,6 +157,19 @@ public interface AsyncConnection {
      */
     void send(OnSendCallback callback, ByteBuffer[] bufs, long bufsRemaining) throws IllegalArgumentException;
 
+    /**
+     * A variant of send() that sends length ByteBuffers of bufs, starting at
+     * offset.  This lets callers reuse a backing array without copying.  The
+     * callback is not persistent.
+     *
+     * @param bufsRemaining is the total number of bytes remaining for the
+     * given range of bufs.  Set to 0 to calculate automatically.
+     *
+     * @throws IllegalArgumentException if callback is null.
+     */
+    void send(OnSendCallback callback, ByteBuffer[] bufs, int offset, int length,
+            long bufsRemaining) throws IllegalArgumentException;
+
     /**
      * Schedules the contents of the out buffer for sending.  Callback will
      * be called as soon data has been sent from the buffer.  This is not
@@ -4,49 +4,124 @@
 
 package com.faveset.mahttpd;
 
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * A thread-safe pool.  Each thread keeps a small LIFO cache of free entries
+ * so that recently used (and likely cache-hot) values are reused first
+ * without synchronization.  When a thread's cache overflows, entries spill
+ * to a lock-free stack shared by all threads, and threads with empty caches
+ * refill from it.
+ *
+ * The number of free entries is bounded across all caches and the shared
+ * stack, so the pool never retains more than its maxCount regardless of the
+ * number of threads.  Entries cached by a thread that exits are only
+ * reclaimed by the GC along with the thread, and they still count against
+ * the bound.  Thus, the pool is best suited for long-lived threads.
+ *
+ * Each entry records whether it is free, so a repeated release of the same
+ * entry is ignored instead of caching the entry twice.
+ */
 abstract class BasePool<T> implements Pool<T> {
+    private static class LocalCache<T> {
+        private PoolEntry<T>[] mEntries;
+        private int mCount;
+
+        public LocalCache(int capacity) {
+            @SuppressWarnings({"rawtypes", "unchecked"})
+            PoolEntry<T>[] entries = (PoolEntry<T>[]) new PoolEntry[capacity];
+            mEntries = entries;
+        }
+
+        /**
+         * @return the most recently pushed entry or null if empty.
+         */
+        public PoolEntry<T> pop() {
+            if (mCount == 0) {
+                return null;
+            }
+            mCount--;
+            PoolEntry<T> entry = mEntries[mCount];
+            mEntries[mCount] = null;
+            return entry;
+        }
+
+        /**
+         * @return false if the cache is full.
+         */
+        public boolean push(PoolEntry<T> entry) {
+            if (mCount == mEntries.length) {
+                return false;
+            }
+            mEntries[mCount++] = entry;
+            return true;
+        }
+    }
+
+    private static class Node<T> {
+        public final PoolEntry<T> entry;
+        public Node<T> next;
+
+        public Node(PoolEntry<T> entry) {
+            this.entry = entry;
+        }
+    }
+
+    // Upper bound on the number of entries cached by each thread.
+    private static final int sMaxLocalCount = 16;
+
     // Used for generating unique tags for each entry's hashCode.
-    // Since Java is a GCed language, we need not worry about wraparound.
-    // If a duplication occurs, the entry Set will only hold one
-    // of the entries.  The other will be released and treated as a normal
-    // reference, which will cause a negligible amount of GC churn.
-    private int mTagCount;
+    private final AtomicInteger mTagCount = new AtomicInteger();
+
+    // The maximum number of free entries to maintain across all threads.
+    private final int mMaxCount;
+
+    // The capacity of each thread's cache.
+    private final int mLocalCapacity;
 
-    // The maximum number of entries to maintain.
-    private int mMaxCount;
+    private final ThreadLocal<LocalCache<T>> mLocalCache;
 
-    // Tracks all free entries.  A free entry is one that is allocated and
-    // then released.
-    private Set<PoolEntry<T>> mFreeEntries;
+    // Head of the shared overflow stack.  Nodes are never reused, so the GC
+    // rules out ABA problems when popping.
+    private final AtomicReference<Node<T>> mSharedHead = new AtomicReference<Node<T>>();
+
+    // Free entries in all caches and the shared stack.  A slot is reserved
+    // here before an entry is cached, so this never exceeds mMaxCount.
+    private final AtomicInteger mFreeCount = new AtomicInteger();
 
     /**
-     * @param maxCount the maximum number of entries to maintain before letting
-     * the GC take over.
+     * @param maxCount the maximum number of free entries to maintain, in
+     * total, before letting the GC take over.  Each thread caches up to
+     * min(16, maxCount / 2) of them.
      */
     protected BasePool(int maxCount) {
         mMaxCount = maxCount;
+        mLocalCapacity = Math.min(sMaxLocalCount, maxCount / 2);
 
-        mFreeEntries = new HashSet<PoolEntry<T>>(mMaxCount);
+        mLocalCache = new ThreadLocal<LocalCache<T>>() {
+            @Override
+            protected LocalCache<T> initialValue() {
+                return new LocalCache<T>(mLocalCapacity);
+            }
+        };
     }
 
     @Override
     public PoolEntry<T> allocate() {
-        PoolEntry<T> entry;
-        if (mFreeEntries.size() == 0) {
-            entry = new PoolEntry<T>(mTagCount, allocateValue());
-            mTagCount++;
-        } else {
-            // Otherwise, use a value from the pool.
-            Iterator<PoolEntry<T>> iter = mFreeEntries.iterator();
-            entry = iter.next();
-            resetValue(entry.get());
-            iter.remove();
+        PoolEntry<T> entry = mLocalCache.get().pop();
+        if (entry == null) {
+            entry = popShared();
+        }
+
+        if (entry == null) {
+            return makeEntry(mTagCount.getAndIncrement(), allocateValue());
         }
 
+        // Otherwise, use a value from the pool.
+        mFreeCount.decrementAndGet();
+        entry.markAllocated();
+        resetValue(entry.get());
         return entry;
     }
 
@@ -55,9 +130,49 @@ abstract class BasePool<T> implements Pool<T> {
      */
     protected abstract T allocateValue();
 
-    // Used for testing.
+    // Used for testing.  This counts free entries in all threads.
     int getFreeEntryCount() {
-        return mFreeEntries.size();
+        return mFreeCount.get();
+    }
+
+    /**
+     * Wraps a newly allocated value.  Child classes may override this to
+     * mark the entries that they create.
+     */
+    protected PoolEntry<T> makeEntry(int tag, T v) {
+        return new PoolEntry<T>(tag, v);
+    }
+
+    /**
+     * Called once for each entry that is released, whether or not the pool
+     * retains it.  Child classes may override this to account for entries
+     * that are returned.
+     */
+    protected void onRelease(PoolEntry<T> entry) {}
+
+    /**
+     * @return an entry from the shared stack or null if empty.
+     */
+    private PoolEntry<T> popShared() {
+        Node<T> head;
+        do {
+            head = mSharedHead.get();
+            if (head == null) {
+                return null;
+            }
+        } while (!mSharedHead.compareAndSet(head, head.next));
+
+        return head.entry;
+    }
+
+    /**
+     * Pushes entry onto the shared stack.
+     */
+    private void pushShared(PoolEntry<T> entry) {
+        Node<T> node = new Node<T>(entry);
+        do {
+            node.next = mSharedHead.get();
+        } while (!mSharedHead.compareAndSet(node.next, node));
     }
 
     /**
@@ -66,19 +181,30 @@ abstract class BasePool<T> implements Pool<T> {
      *
      *   entry = pool.release(entry);
      *
+     * Entries may be released from any thread.  Releasing an entry that is
+     * already free has no effect.
+     *
      * @return null
      */
     @Override
     public PoolEntry<T> release(PoolEntry<T> entry) {
-        if (entry == null) {
+        if (entry == null || !entry.markFree()) {
             return null;
         }
+        onRelease(entry);
+
+        int count;
+        do {
+            count = mFreeCount.get();
+            if (count >= mMaxCount) {
+                // Let the GC take over.
+                return null;
+            }
+        } while (!mFreeCount.compareAndSet(count, count + 1));
 
-        if (mFreeEntries.size() < mMaxCount) {
-            // Keep the entry so that we can reach the desired thresholds.
-            mFreeEntries.add(entry);
+        if (!mLocalCache.get().push(entry)) {
+            pushShared(entry);
         }
-        // At this point, mFreeEntries.size() <= mMaxCount.
 
         return null;
     }
@@ -9,8 +9,12 @@ import java.nio.ByteBuffer;
 class ByteBufferArray {
     private ByteBuffer[] mBufs;
 
+    // Buffers occupy the range [mOffset, mEnd) of mBufs.
+    private int mOffset;
+    private int mEnd;
+
     // Points to the index of the first non-empty buffer in the sequence.
-    // It will be mBufs.length if all buffers are empty.
+    // It will be mEnd if all buffers are empty.
     private int mNonEmptyOffset;
 
     // Remainder for the first non-empty buffer since the last update.
@@ -19,9 +23,14 @@ class ByteBufferArray {
     private int mRemaining;
 
     public ByteBufferArray(ByteBuffer[] bufs) {
-        mBufs = bufs;
+        this(bufs, 0, bufs.length);
+    }
 
-        updateAll();
+    /**
+     * Uses only length buffers of bufs, starting at offset.
+     */
+    public ByteBufferArray(ByteBuffer[] bufs, int offset, int length) {
+        reset(bufs, offset, length);
     }
 
     public ByteBuffer[] getBuffers() {
@@ -33,7 +42,7 @@ class ByteBufferArray {
      * starting from the offset returned by getNonEmptyOffset().
      */
     public int getNonEmptyLength() {
-        return (mBufs.length - mNonEmptyOffset);
+        return (mEnd - mNonEmptyOffset);
     }
 
     /**
@@ -50,10 +59,10 @@ class ByteBufferArray {
     }
 
     /**
-     * @return the number of ByteBuffers in the underlying array.
+     * @return the number of ByteBuffers in the sequence.
      */
     public int length() {
-        return mBufs.length;
+        return (mEnd - mOffset);
     }
 
     /**
@@ -68,7 +77,17 @@ class ByteBufferArray {
      * This must be called whenever new data is added to the buffer array.
      */
     public void reset() {
-        mNonEmptyOffset = 0;
+        updateAll();
+    }
+
+    /**
+     * Replaces the sequence with length buffers of bufs, starting at offset.
+     * This allows the ByteBufferArray to be reused.
+     */
+    public void reset(ByteBuffer[] bufs, int offset, int length) {
+        mBufs = bufs;
+        mOffset = offset;
+        mEnd = offset + length;
 
         updateAll();
     }
@@ -79,7 +98,7 @@ class ByteBufferArray {
      */
     public void update() {
         ByteBuffer[] bufs = mBufs;
-        final int bufsLen = bufs.length;
+        final int bufsLen = mEnd;
 
         if (mNonEmptyOffset >= bufsLen) {
             // We're done.  No need for updates.
@@ -108,8 +127,10 @@ class ByteBufferArray {
             for (ii = mNonEmptyOffset + 1; ii < bufsLen; ii++) {
                 rem = bufs[ii].remaining();
                 if (rem != 0) {
-                    // We've reached a stopping point.
+                    // We've reached a stopping point, which might have been
+                    // partially drained as well.
                     mNonEmptyRemainder = rem;
+                    consumed += bufs[ii].limit() - rem;
                     break;
                 }
                 // rem == 0.
@@ -130,10 +151,10 @@ class ByteBufferArray {
 
         ByteBuffer[] bufs = mBufs;
 
-        mNonEmptyOffset = 0;
+        mNonEmptyOffset = mOffset;
         mNonEmptyRemainder = 0;
 
-        final int len = bufs.length;
+        final int len = mEnd;
         for (int ii = mNonEmptyOffset; ii < len; ii++) {
             final int rem = bufs[ii].remaining();
 
@@ -4,12 +4,12 @@
 
 package com.faveset.mahttpd;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.ListIterator;
 
 /**
  * A ByteBufferArrayBuilder manages a collection of ByteBuffers by dynamically
@@ -17,6 +17,10 @@ import java.util.ListIterator;
  *
  * All String contents will be converted to UTF-8 format, which is common
  * for HTML.
+ *
+ * Buffers are tracked in a reusable array with headroom at the front so that
+ * headers can be prepended cheaply.  The array can be handed directly to a
+ * gathering write via getArray(), getArrayOffset(), and getArrayLength().
  */
 class ByteBufferArrayBuilder {
     /**
@@ -26,15 +30,16 @@ class ByteBufferArrayBuilder {
      * at the insertion point.
      */
     class Inserter {
-        private ListIterator<ByteBuffer> mIter;
+        // True if inserting at the front of the builder.  Otherwise, the
+        // Inserter appends to the back.
+        private boolean mIsFront;
         private ByteBuffer mRemainingBuf;
 
-        private Inserter(ListIterator<ByteBuffer> iter) {
-            mIter = iter;
+        private Inserter(boolean isFront) {
+            mIsFront = isFront;
         }
 
-        private Inserter(ListIterator<ByteBuffer> iter, ByteBuffer remainingBuf) {
-            mIter = iter;
+        private void reset(ByteBuffer remainingBuf) {
             mRemainingBuf = remainingBuf;
         }
 
@@ -51,6 +56,10 @@ class ByteBufferArrayBuilder {
 
                 mRemainingBuf = null;
             }
+
+            if (mIsFront) {
+                ByteBufferArrayBuilder.this.commitFrontBuffers();
+            }
         }
 
         /**
@@ -59,7 +68,39 @@ class ByteBufferArrayBuilder {
          * One must call close() to finalize all operations.
          */
         public void writeBuffer(ByteBuffer buf) {
-            mRemainingBuf = ByteBufferArrayBuilder.this.insertBuffer(mIter, mRemainingBuf, buf);
+            mRemainingBuf = ByteBufferArrayBuilder.this.insertBuffer(mIsFront, mRemainingBuf, buf);
+        }
+
+        /**
+         * Adds s to the new sequence starting at the Inserter.  Each
+         * character is truncated to a byte, so s must only contain ASCII
+         * characters.  Unlike writeString(), no intermediate arrays are
+         * allocated.
+         *
+         * One must call close() to finalize all operations.
+         */
+        public void writeAscii(String s) {
+            mRemainingBuf = ByteBufferArrayBuilder.this.insertAscii(mIsFront, mRemainingBuf, s);
+        }
+
+        /**
+         * Copies b to the new sequence starting at the Inserter.
+         *
+         * One must call close() to finalize all operations.
+         */
+        public void writeBytes(byte[] b) {
+            writeBytes(b, 0, b.length);
+        }
+
+        /**
+         * Copies len bytes of b starting at offset to the new sequence
+         * starting at the Inserter.
+         *
+         * One must call close() to finalize all operations.
+         */
+        public void writeBytes(byte[] b, int offset, int len) {
+            mRemainingBuf = ByteBufferArrayBuilder.this.insertBytes(mIsFront, mRemainingBuf,
+                    b, offset, len);
         }
 
         /**
@@ -70,7 +111,7 @@ class ByteBufferArrayBuilder {
          * s will be converted to UTF-8 when written to the ByteBuffer.
          */
         public void writeString(String s) {
-            mRemainingBuf = ByteBufferArrayBuilder.this.insertString(mIter, mRemainingBuf, s);
+            mRemainingBuf = ByteBufferArrayBuilder.this.insertString(mIsFront, mRemainingBuf, s);
         }
     }
 
@@ -79,7 +120,25 @@ class ByteBufferArrayBuilder {
     // back to the pool.
     private List<PoolEntry<ByteBuffer>> mPoolEntries;
 
-    private List<ByteBuffer> mBufs;
+    // Number of free slots to leave before the first buffer after a clear()
+    // so that front insertions usually need not shift the array.
+    private static final int sFrontHeadroom = 4;
+
+    private static final int sInitialCapacity = 16;
+
+    // Buffers occupy the range [mStart, mEnd).
+    private ByteBuffer[] mBufs;
+    private int mStart;
+    private int mEnd;
+
+    // Buffers written by the front Inserter are staged here and moved in
+    // front of mStart when the Inserter is closed.
+    private ByteBuffer[] mFrontBufs;
+    private int mFrontLen;
+
+    // Inserters are reused, since at most one may be active at a time.
+    private Inserter mFrontInserter;
+    private Inserter mBackInserter;
 
     // This tracks all remaining counts except for mCurrBuf (i.e., mBufs).
     private long mRemaining;
@@ -110,7 +169,64 @@ class ByteBufferArrayBuilder {
         mByteBufferPool = pool;
         mPoolEntries = new ArrayList<PoolEntry<ByteBuffer>>();
 
-        mBufs = new LinkedList<ByteBuffer>();
+        mBufs = new ByteBuffer[sInitialCapacity];
+        mStart = sFrontHeadroom;
+        mEnd = sFrontHeadroom;
+
+        mFrontBufs = new ByteBuffer[sFrontHeadroom];
+
+        mFrontInserter = new Inserter(true);
+        mBackInserter = new Inserter(false);
+    }
+
+    /**
+     * Adds buf to the front staging area if isFront is true.  Otherwise, buf
+     * is added to the back of the builder.
+     */
+    private void addBuffer(boolean isFront, ByteBuffer buf) {
+        if (isFront) {
+            if (mFrontLen == mFrontBufs.length) {
+                mFrontBufs = Arrays.copyOf(mFrontBufs, 2 * mFrontBufs.length);
+            }
+            mFrontBufs[mFrontLen++] = buf;
+            return;
+        }
+
+        if (mEnd == mBufs.length) {
+            mBufs = Arrays.copyOf(mBufs, 2 * mBufs.length);
+        }
+        mBufs[mEnd++] = buf;
+    }
+
+    /**
+     * Moves all buffers from other to the back of this builder.  Ownership of
+     * other's pooled buffers is transferred, so they will be released when
+     * this builder is cleared.  other will be empty afterward and can be
+     * reused immediately.
+     *
+     * The builders should share a compatible pool.
+     */
+    public void append(ByteBufferArrayBuilder other) {
+        // Commit the current buffers to preserve ordering.  Any free space
+        // at the tail of mCurrBuf is wasted.
+        commitCurrBuf();
+        other.commitCurrBuf();
+
+        final int otherLen = other.mEnd - other.mStart;
+        if (mEnd + otherLen > mBufs.length) {
+            mBufs = Arrays.copyOf(mBufs, Math.max(2 * mBufs.length, mEnd + otherLen));
+        }
+        System.arraycopy(other.mBufs, other.mStart, mBufs, mEnd, otherLen);
+        mEnd += otherLen;
+
+        mPoolEntries.addAll(other.mPoolEntries);
+        mRemaining += other.mRemaining;
+
+        Arrays.fill(other.mBufs, other.mStart, other.mEnd, null);
+        other.mStart = sFrontHeadroom;
+        other.mEnd = sFrontHeadroom;
+        other.mPoolEntries.clear();
+        other.mRemaining = 0;
     }
 
     private ByteBuffer allocate() {
@@ -123,18 +239,17 @@ class ByteBufferArrayBuilder {
      * Returns an array for consumption by a Channel.  The returned buffers
      * will have total remaining bytes of remaining().
      *
+     * This allocates a new array.  Use finish() and getArray() to avoid the
+     * copy.
+     *
      * After build(), the builder state will be indeterminate.  One must call
      * clear() or close() to clear the state and also to free up resources
      * before discarding or reusing the builder.
      */
     public ByteBuffer[] build() {
-        if (mCurrBuf != null) {
-            mCurrBuf.flip();
-        }
+        finish();
 
-        ByteBuffer[] result = mBufs.toArray(new ByteBuffer[0]);
-
-        return result;
+        return Arrays.copyOfRange(mBufs, mStart, mEnd);
     }
 
     /**
@@ -150,10 +265,132 @@ class ByteBufferArrayBuilder {
         mPoolEntries.clear();
 
         mCurrBuf = null;
-        mBufs.clear();
+
+        Arrays.fill(mBufs, mStart, mEnd, null);
+        mStart = sFrontHeadroom;
+        mEnd = sFrontHeadroom;
+
+        // This only matters if a front Inserter was never closed.
+        Arrays.fill(mFrontBufs, 0, mFrontLen, null);
+        mFrontLen = 0;
+
         mRemaining = 0;
     }
 
+    /**
+     * Copies the contents of all buffers to dest without modifying the
+     * builder.
+     *
+     * @throws BufferOverflowException if dest lacks space, in which case
+     * dest's contents are indeterminate.
+     */
+    public void copyTo(ByteBuffer dest) throws BufferOverflowException {
+        if (dest.remaining() < remaining()) {
+            throw new BufferOverflowException();
+        }
+
+        for (int ii = mStart; ii < mEnd; ii++) {
+            ByteBuffer buf = mBufs[ii];
+            if (buf == mCurrBuf) {
+                // mCurrBuf is still positioned for writing.
+                int pos = buf.position();
+                buf.flip();
+                dest.put(buf);
+                buf.limit(buf.capacity());
+                buf.position(pos);
+                continue;
+            }
+
+            int pos = buf.position();
+            dest.put(buf);
+            buf.position(pos);
+        }
+    }
+
+    /**
+     * Finalizes mCurrBuf, if any, so that subsequent writes will start a
+     * new buffer.
+     */
+    private void commitCurrBuf() {
+        if (mCurrBuf != null) {
+            mCurrBuf.flip();
+            mRemaining += mCurrBuf.remaining();
+            mCurrBuf = null;
+        }
+    }
+
+    /**
+     * Moves the buffers staged by the front Inserter in front of mStart,
+     * shifting the array contents back if the headroom is insufficient.
+     */
+    private void commitFrontBuffers() {
+        final int count = mFrontLen;
+        if (count == 0) {
+            return;
+        }
+
+        if (count > mStart) {
+            final int len = mEnd - mStart;
+            final int newStart = count + sFrontHeadroom;
+
+            ByteBuffer[] bufs = mBufs;
+            if (newStart + len > bufs.length) {
+                bufs = new ByteBuffer[Math.max(2 * mBufs.length, newStart + len)];
+            }
+            System.arraycopy(mBufs, mStart, bufs, newStart, len);
+            if (bufs == mBufs) {
+                // Drop stale references ahead of the shifted contents.
+                Arrays.fill(bufs, mStart, Math.min(newStart, mEnd), null);
+            }
+
+            mBufs = bufs;
+            mStart = newStart;
+            mEnd = newStart + len;
+        }
+
+        mStart -= count;
+        System.arraycopy(mFrontBufs, 0, mBufs, mStart, count);
+
+        Arrays.fill(mFrontBufs, 0, count, null);
+        mFrontLen = 0;
+    }
+
+    /**
+     * Finalizes all buffers for reading so that the array returned by
+     * getArray() may be passed to a Channel.  Subsequent writes will start
+     * a new buffer.
+     */
+    public void finish() {
+        commitCurrBuf();
+    }
+
+    /**
+     * Returns the builder's backing array without copying.  Only the range
+     * starting at getArrayOffset() of length getArrayLength() is valid.
+     * finish() should be called beforehand.
+     *
+     * The array is owned by the builder and is invalidated by any subsequent
+     * modification.
+     */
+    public ByteBuffer[] getArray() {
+        return mBufs;
+    }
+
+    /**
+     * @return the number of buffers in the array returned by getArray().
+     */
+    public int getArrayLength() {
+        return mEnd - mStart;
+    }
+
+    /**
+     * @return the offset of the first buffer in the array returned by
+     * getArray().
+     */
+    public int getArrayOffset() {
+        return mStart;
+    }
+
     /**
      * The caller must call this to release all (pooled) resources.
      *
@@ -170,27 +407,72 @@ class ByteBufferArrayBuilder {
      * This allows the inserter to continue from a prior remainder without
      * wasting buffer space.
      *
+     * The returned Inserter is shared by all insertBack() calls.
+     *
      * @return an Inserter for inserting data at the back of the list.
      */
     public Inserter insertBack() {
-        Inserter inserter = new Inserter(mBufs.listIterator(mBufs.size()), mCurrBuf);
+        mBackInserter.reset(mCurrBuf);
         mCurrBuf = null;
-        return inserter;
+        return mBackInserter;
+    }
+
+    /**
+     * Copies s into buffers at the insertion point, truncating each character
+     * to a byte.
+     *
+     * @return the remainder buffer, as with insertString.
+     */
+    private ByteBuffer insertAscii(boolean isFront,
+            ByteBuffer currBuf, String s) {
+        int offset = 0;
+        final int sLen = s.length();
+        while (offset < sLen) {
+            currBuf = prepareWriteBuffer(isFront, currBuf);
+
+            int endIndex = Math.min(sLen, offset + currBuf.remaining());
+            for (; offset < endIndex; offset++) {
+                currBuf.put((byte) s.charAt(offset));
+            }
+        }
+
+        return finishWriteBuffer(currBuf);
+    }
+
+    /**
+     * Copies len bytes of b starting at offset into buffers at the insertion
+     * point.
+     *
+     * @return the remainder buffer, as with insertString.
+     */
+    private ByteBuffer insertBytes(boolean isFront,
+            ByteBuffer currBuf, byte[] b, int offset, int len) {
+        while (len > 0) {
+            currBuf = prepareWriteBuffer(isFront, currBuf);
+
+            int writeLen = Math.min(len, currBuf.remaining());
+            currBuf.put(b, offset, writeLen);
+
+            offset += writeLen;
+            len -= writeLen;
+        }
+
+        return finishWriteBuffer(currBuf);
     }
 
     /**
-     * @param iter
+     * @param isFront true to insert at the front staging area.
      * @param currBuf the remaining ByteBuffer with which to continue
      * appending data to.  It will be committed to the total byte count as
      * necessary.  One may pass null if no remainder buffer currently exists.
-     * @param buf will be added after iter.
+     * @param buf will be added at the insertion point.
      *
      * @return the remainder buffer after adding all of s to the insertion
      * point or null if no partially filled buffer remains.  If non-null, the
      * buffer will already be inserted and will be guaranteed to have
      * free space for future writes.
      */
-    private ByteBuffer insertBuffer(ListIterator<ByteBuffer> iter,
+    private ByteBuffer insertBuffer(boolean isFront,
             ByteBuffer currBuf, ByteBuffer buf) {
         if (buf.remaining() == 0) {
             // We have no work.
@@ -206,7 +488,7 @@ class ByteBufferArrayBuilder {
 
         // Otherwise, we're not at the end of the list.  We don't need to
         // modify currBuf, since we're not touching it.
-        iter.add(buf.duplicate());
+        addBuffer(isFront, buf.duplicate());
 
         // Commit the count, since it's added as a whole.
         mRemaining += buf.remaining();
@@ -220,15 +502,18 @@ class ByteBufferArrayBuilder {
      *
      * The caller should take care to close() the Inserter when done.
      *
+     * The returned Inserter is shared by all insertFront() calls.
+     *
      * @return an Inserter for inserting data at the front of the list.
      */
     public Inserter insertFront() {
-        return new Inserter(mBufs.listIterator());
+        mFrontInserter.reset(null);
+        return mFrontInserter;
     }
 
     /**
-     * @param insertIter the insertion point.  Buffers will be added to
-     * the iterator.
+     * @param isFront true to insert at the front staging area.  Otherwise,
+     * buffers are added to the back.
      * @param currBuf the ByteBuffer with which to continue appending data to.
      * It will be added to the insertion point when it becomes full.  One may
      * pass null to have a new ByteBuffer allocated internally.
@@ -238,7 +523,7 @@ class ByteBufferArrayBuilder {
      * buffer will already be inserted and will be guaranteed to have
      * free space for future writes.
      */
-    private ByteBuffer insertString(ListIterator<ByteBuffer> insertIter,
+    private ByteBuffer insertString(boolean isFront,
             ByteBuffer currBuf, String s) {
         if (s.length() == 0) {
             return currBuf;
@@ -247,7 +532,7 @@ class ByteBufferArrayBuilder {
         // s is always non-empty at this point, so we will need a buffer.
         if (currBuf == null) {
             currBuf = allocate();
-            insertIter.add(currBuf);
+            addBuffer(isFront, currBuf);
         }
 
         // offset into s.
@@ -263,7 +548,7 @@ class ByteBufferArrayBuilder {
 
                 // Ready a new currBuf.
                 currBuf = allocate();
-                insertIter.add(currBuf);
+                addBuffer(isFront, currBuf);
 
                 remLen = currBuf.remaining();
             }
@@ -295,6 +580,42 @@ class ByteBufferArrayBuilder {
         return currBuf;
     }
 
+    /**
+     * @param currBuf the buffer being written, which may be null.
+     *
+     * @return a buffer at the insertion point with free space.  currBuf will be
+     * committed if full, and a new buffer will be allocated as needed.
+     */
+    private ByteBuffer prepareWriteBuffer(boolean isFront,
+            ByteBuffer currBuf) {
+        if (currBuf != null && currBuf.hasRemaining()) {
+            return currBuf;
+        }
+
+        if (currBuf != null) {
+            currBuf.flip();
+            mRemaining += currBuf.remaining();
+        }
+
+        currBuf = allocate();
+        addBuffer(isFront, currBuf);
+        return currBuf;
+    }
+
+    /**
+     * Commits currBuf if full.
+     *
+     * @return currBuf or null if it was committed.
+     */
+    private ByteBuffer finishWriteBuffer(ByteBuffer currBuf) {
+        if (currBuf != null && !currBuf.hasRemaining()) {
+            currBuf.flip();
+            mRemaining += currBuf.remaining();
+            return null;
+        }
+        return currBuf;
+    }
+
     /**
      * Returns the total number of bytes remaining for all buffers within the
      * builder.
@@ -318,7 +639,23 @@ class ByteBufferArrayBuilder {
      * @param buf must be positioned for subsequent reads.
      */
     public void writeBuffer(ByteBuffer buf) {
-        mCurrBuf = insertBuffer(mBufs.listIterator(mBufs.size()), mCurrBuf, buf);
+        mCurrBuf = insertBuffer(false, mCurrBuf, buf);
+    }
+
+    /**
+     * Writes s to the builder, truncating each character to a byte.  s must
+     * only contain ASCII characters.
+     */
+    public void writeAscii(String s) {
+        mCurrBuf = insertAscii(false, mCurrBuf, s);
+    }
+
+    /**
+     * Copies b to the builder, allocating a new internal ByteBuffer if
+     * necessary.
+     */
+    public void writeBytes(byte[] b) {
+        mCurrBuf = insertBytes(false, mCurrBuf, b, 0, b.length);
     }
 
     /**
@@ -329,6 +666,6 @@ class ByteBufferArrayBuilder {
      */
     public void writeString(String s) {
         // Just add to the tail.
-        mCurrBuf = insertString(mBufs.listIterator(mBufs.size()), mCurrBuf, s);
+        mCurrBuf = insertString(false, mCurrBuf, s);
     }
 }
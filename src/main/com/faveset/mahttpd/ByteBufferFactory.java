@@ -8,4 +8,10 @@ import java.nio.ByteBuffer;
 
 interface ByteBufferFactory {
     ByteBuffer make(int size);
+
+    /**
+     * Returns a buffer that was made by this factory once it is no longer
+     * referenced.  Factories that do not recycle buffers leave them to the GC.
+     */
+    void release(ByteBuffer buf);
 }
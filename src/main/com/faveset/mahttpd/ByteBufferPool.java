@@ -52,7 +52,7 @@ class ByteBufferPool extends BasePool<ByteBuffer> {
     // Constants.BYTE_BUFFER_POOL_SIZE buffers, each of size
     // Constants.BYTE_BUFFER_SIZE bytes.
     //
-    // NOTE: the returned pool is not thread-safe.
+    // The returned pool is thread-safe.
     public static synchronized ByteBufferPool get() {
         if (sByteBufferPool == null) {
             sByteBufferPool = new ByteBufferPool(Constants.BYTE_BUFFER_SIZE, true,
@@ -0,0 +1,66 @@
+// Copyright 2014, Kevin Ko <kevin@faveset.com>. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.faveset.mahttpd;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Pre-encoded responses for use when the server must refuse work without
+ * allocating per-request state.  Each response has an empty body and closes
+ * the connection unless noted.
+ */
+class CannedResponses {
+    private static final byte[] sContentLengthZero = Strings.getUTF8Bytes(
+            HeaderField.Entity.CONTENT_LENGTH + ": 0" + Strings.CRLF);
+
+    private static final byte[] sCrlf = Strings.getUTF8Bytes(Strings.CRLF);
+
+    public static final byte[] SERVICE_UNAVAILABLE = make(HttpStatus.SERVICE_UNAVAILABLE, true);
+
+    // Sent when a request is shed because the server is overloaded.
+    // OVERLOADED leaves an HTTP/1.1 connection open so that the client
+    // retries without reconnecting.
+    public static final byte[] OVERLOADED = make(HttpStatus.SERVICE_UNAVAILABLE, false,
+            HeaderField.Response.RETRY_AFTER + ": " + Constants.OVERLOAD_RETRY_AFTER_SECS);
+    public static final byte[] OVERLOADED_CLOSE = make(HttpStatus.SERVICE_UNAVAILABLE, true,
+            HeaderField.Response.RETRY_AFTER + ": " + Constants.OVERLOAD_RETRY_AFTER_SECS);
+
+    // Sent when a client exceeds its request rate.  TOO_MANY_REQUESTS
+    // leaves an HTTP/1.1 connection open.
+    public static final byte[] TOO_MANY_REQUESTS = make(HttpStatus.TOO_MANY_REQUESTS, false,
+            HeaderField.Response.RETRY_AFTER + ": " + Constants.RATE_LIMIT_RETRY_AFTER_SECS);
+    public static final byte[] TOO_MANY_REQUESTS_CLOSE = make(HttpStatus.TOO_MANY_REQUESTS, true,
+            HeaderField.Response.RETRY_AFTER + ": " + Constants.RATE_LIMIT_RETRY_AFTER_SECS);
+
+    /**
+     * Encodes an HTTP/1.1 response with the given status and extra header
+     * lines.
+     *
+     * @param closeConnection true to include "Connection: close".
+     * @param extraHeaders each is a complete header line without the trailing
+     * CRLF (e.g., "Retry-After: 1").
+     */
+    public static byte[] make(int statusCode, boolean closeConnection, String... extraHeaders) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        byte[] line = StatusLines.get(1, statusCode);
+        out.write(line, 0, line.length);
+
+        if (closeConnection) {
+            out.write(HeaderFieldBytes.CONNECTION_CLOSE, 0,
+                    HeaderFieldBytes.CONNECTION_CLOSE.length);
+        }
+        out.write(sContentLengthZero, 0, sContentLengthZero.length);
+
+        for (String header : extraHeaders) {
+            byte[] b = Strings.getUTF8Bytes(header + Strings.CRLF);
+            out.write(b, 0, b.length);
+        }
+
+        out.write(sCrlf, 0, sCrlf.length);
+
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,144 @@
+// Copyright 2014, Kevin Ko <kevin@faveset.com>. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.faveset.mahttpd;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A process-wide clock that refreshes pre-encoded date strings once per
+ * second.  This keeps date formatting and the associated allocations off
+ * the request path.
+ *
+ * Snapshots are immutable and published safely, so any thread may read them.
+ */
+class Clock {
+    /**
+     * An immutable view of the clock at one-second resolution.
+     */
+    public static class Snapshot {
+        private final long mSecs;
+
+        private final String mClfString;
+
+        // The complete Date header line, including the trailing CRLF.
+        private final byte[] mDateHeaderBytes;
+
+        private Snapshot(long secs, DateFormatter formatter) {
+            mSecs = secs;
+            mClfString = formatter.getClfString();
+
+            String line = HeaderField.General.DATE + ": " + formatter.getRFC1123String() +
+                Strings.CRLF;
+            mDateHeaderBytes = Strings.getUTF8Bytes(line);
+        }
+
+        /**
+         * @return a string in CLF date format.
+         */
+        public String getClfString() {
+            return mClfString;
+        }
+
+        /**
+         * @return the encoded Date header line in RFC1123 format, including
+         * the trailing CRLF.  The returned array must not be modified.
+         */
+        public byte[] getDateHeaderBytes() {
+            return mDateHeaderBytes;
+        }
+
+        /**
+         * @return the time in seconds since the epoch.
+         */
+        public long getSecs() {
+            return mSecs;
+        }
+    }
+
+    private static final String sThreadName = "mahttpd-clock";
+
+    private static final long sTickMillis = 1000;
+
+    // This is for the singleton clock.
+    private static Clock sClock;
+
+    // Only accessed by the ticking thread after construction.
+    private DateFormatter mFormatter;
+
+    private volatile Snapshot mSnapshot;
+
+    /**
+     * Creates a Clock that does not tick on its own.  Use tick() to advance
+     * it.
+     *
+     * @param timeMillis the initial time in millis since the epoch.
+     */
+    Clock(long timeMillis) {
+        mFormatter = new DateFormatter(timeMillis);
+        mSnapshot = new Snapshot(timeMillis / 1000, mFormatter);
+    }
+
+    /**
+     * Returns a shared singleton Clock, which is driven by a daemon thread.
+     */
+    public static synchronized Clock get() {
+        if (sClock == null) {
+            sClock = new Clock(System.currentTimeMillis());
+            sClock.start();
+        }
+        return sClock;
+    }
+
+    /**
+     * @return the most recent snapshot.
+     */
+    public Snapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Schedules ticks on a daemon thread.  Ticks are aligned to second
+     * boundaries.
+     */
+    private void start() {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, sThreadName);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+
+        long delayMillis = sTickMillis - (System.currentTimeMillis() % sTickMillis);
+        executor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    tick(System.currentTimeMillis());
+                }
+            }, delayMillis, sTickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Updates the snapshot if the time has advanced to a new second.
+     *
+     * This must only be called from one thread at a time.
+     *
+     * @param timeMillis the time in millis since the epoch.
+     */
+    void tick(long timeMillis) {
+        long secs = timeMillis / 1000;
+        if (secs == mSnapshot.getSecs()) {
+            return;
+        }
+
+        mFormatter.update(timeMillis);
+        mSnapshot = new Snapshot(secs, mFormatter);
+    }
+}
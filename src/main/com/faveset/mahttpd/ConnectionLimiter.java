@@ -0,0 +1,161 @@
+// Copyright 2014, Kevin Ko <kevin@faveset.com>. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.faveset.mahttpd;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks open connections against a global limit and an optional limit per
+ * remote address.  The server stops accepting once the global limit is
+ * reached and resumes when the count falls to the low watermark, so that
+ * it never runs out of file descriptors.
+ *
+ * Only the event loop may acquire and release connections.  The counts may
+ * be read from any thread.
+ */
+class ConnectionLimiter {
+    // 0 means no limit.
+    private volatile int mMaxConnections;
+    private volatile int mLowWatermark;
+    private volatile int mMaxPerAddress;
+
+    private final AtomicInteger mCount = new AtomicInteger();
+
+    // Holds only addresses with open connections, so the map stays small.
+    private final ConcurrentHashMap<InetAddress, Integer> mAddressCounts =
+        new ConcurrentHashMap<InetAddress, Integer>();
+
+    private final AtomicLong mRejectCount = new AtomicLong();
+
+    /**
+     * @param maxConnections the global limit.  0 means no limit.
+     * @param lowWatermark accepting resumes once the count falls to this.
+     * @param maxPerAddress the limit for each remote address.  0 means no
+     * limit.
+     *
+     * @throws IllegalArgumentException if a value is negative or lowWatermark
+     * is not below a non-zero maxConnections.
+     */
+    public ConnectionLimiter(int maxConnections, int lowWatermark, int maxPerAddress)
+            throws IllegalArgumentException {
+        setMaxConnections(maxConnections, lowWatermark);
+        setMaxPerAddress(maxPerAddress);
+    }
+
+    /**
+     * Counts a new connection from addr.
+     *
+     * @return false if addr is at its limit, in which case nothing is
+     * counted and the connection should be refused.
+     */
+    public boolean acquire(InetAddress addr) {
+        int maxPerAddress = mMaxPerAddress;
+        if (maxPerAddress != 0) {
+            Integer addrCount = mAddressCounts.get(addr);
+            int newCount = (addrCount != null) ? addrCount + 1 : 1;
+            if (newCount > maxPerAddress) {
+                mRejectCount.incrementAndGet();
+                return false;
+            }
+            mAddressCounts.put(addr, newCount);
+        }
+
+        mCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @return the number of open connections.
+     */
+    public int getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * @return the number of open connections from addr, or 0 if per-address
+     * limits are disabled.
+     */
+    public int getCount(InetAddress addr) {
+        Integer addrCount = mAddressCounts.get(addr);
+        return (addrCount != null) ? addrCount : 0;
+    }
+
+    /**
+     * @return the global limit, or 0 if there is none.
+     */
+    public int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    /**
+     * @return the number of connections refused by the per-address limit.
+     */
+    public long getRejectCount() {
+        return mRejectCount.get();
+    }
+
+    /**
+     * @return true if no more connections should be accepted.
+     */
+    public boolean isAtCapacity() {
+        int maxConnections = mMaxConnections;
+        return (maxConnections != 0 && mCount.get() >= maxConnections);
+    }
+
+    /**
+     * @return true if accepting can resume after reaching capacity.
+     */
+    public boolean isBelowLowWatermark() {
+        return (mCount.get() <= mLowWatermark || mMaxConnections == 0);
+    }
+
+    /**
+     * Uncounts a connection from addr, which must have been counted by
+     * acquire().
+     */
+    public void release(InetAddress addr) {
+        mCount.decrementAndGet();
+
+        Integer addrCount = mAddressCounts.get(addr);
+        if (addrCount == null) {
+            return;
+        }
+
+        if (addrCount <= 1) {
+            mAddressCounts.remove(addr);
+        } else {
+            mAddressCounts.put(addr, addrCount - 1);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if a value is negative or lowWatermark
+     * is not below a non-zero maxConnections.
+     */
+    public void setMaxConnections(int maxConnections, int lowWatermark)
+            throws IllegalArgumentException {
+        if (maxConnections < 0 || lowWatermark < 0 ||
+                (maxConnections != 0 && lowWatermark >= maxConnections)) {
+            throw new IllegalArgumentException();
+        }
+        mMaxConnections = maxConnections;
+        mLowWatermark = lowWatermark;
+    }
+
+    /**
+     * This should only be changed while no connections are open.
+     *
+     * @throws IllegalArgumentException if maxPerAddress is negative.
+     */
+    public void setMaxPerAddress(int maxPerAddress) throws IllegalArgumentException {
+        if (maxPerAddress < 0) {
+            throw new IllegalArgumentException();
+        }
+        mMaxPerAddress = maxPerAddress;
+    }
+}
@@ -0,0 +1,126 @@
+// Copyright 2014, Kevin Ko <kevin@faveset.com>. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.faveset.mahttpd;
+
+/**
+ * Timeouts in millis for each phase of an HttpConnection, along with the
+ * minimum data rates for receiving requests and sending responses.  A value
+ * of 0 disables the corresponding timeout or rate.
+ *
+ * This is shared by all connections of a server and should only be modified
+ * before the server starts.
+ */
+class ConnectionTimeouts {
+    // Time allowed between requests on a keep-alive connection (and before
+    // the first request).
+    private long mIdleMillis = Constants.IDLE_TIMEOUT_MILLIS;
+
+    // Time allowed for the request line and headers, measured from the
+    // first byte of the request.
+    private long mHeaderMillis = Constants.HEADER_TIMEOUT_MILLIS;
+
+    // Time allowed between reads of a message body.
+    private long mBodyMillis = Constants.BODY_TIMEOUT_MILLIS;
+
+    // Time allowed for a send to make progress.
+    private long mSendMillis = Constants.SEND_TIMEOUT_MILLIS;
+
+    // Minimum rates in bytes per second, which guard against clients that
+    // trickle requests or read responses slowly.
+    private long mMinRecvRate = Constants.MIN_RECV_BYTES_PER_SEC;
+    private long mMinSendRate = Constants.MIN_SEND_BYTES_PER_SEC;
+
+    // Time from the start of a phase before its rate is enforced.
+    private long mRateGraceMillis = Constants.DATA_RATE_GRACE_MILLIS;
+
+    public long getBodyMillis() {
+        return mBodyMillis;
+    }
+
+    public long getHeaderMillis() {
+        return mHeaderMillis;
+    }
+
+    public long getIdleMillis() {
+        return mIdleMillis;
+    }
+
+    public long getMinRecvRate() {
+        return mMinRecvRate;
+    }
+
+    public long getMinSendRate() {
+        return mMinSendRate;
+    }
+
+    public long getRateGraceMillis() {
+        return mRateGraceMillis;
+    }
+
+    public long getSendMillis() {
+        return mSendMillis;
+    }
+
+    /**
+     * @throws IllegalArgumentException if millis is negative.
+     */
+    public void setBodyMillis(long millis) throws IllegalArgumentException {
+        mBodyMillis = checkNonNegative(millis);
+    }
+
+    /**
+     * @throws IllegalArgumentException if millis is negative.
+     */
+    public void setHeaderMillis(long millis) throws IllegalArgumentException {
+        mHeaderMillis = checkNonNegative(millis);
+    }
+
+    /**
+     * @throws IllegalArgumentException if millis is negative.
+     */
+    public void setIdleMillis(long millis) throws IllegalArgumentException {
+        mIdleMillis = checkNonNegative(millis);
+    }
+
+    /**
+     * @param bytesPerSec the minimum average rate while receiving a request's
+     * headers or body.
+     *
+     * @throws IllegalArgumentException if bytesPerSec is negative.
+     */
+    public void setMinRecvRate(long bytesPerSec) throws IllegalArgumentException {
+        mMinRecvRate = checkNonNegative(bytesPerSec);
+    }
+
+    /**
+     * @param bytesPerSec the minimum average rate while sending responses.
+     *
+     * @throws IllegalArgumentException if bytesPerSec is negative.
+     */
+    public void setMinSendRate(long bytesPerSec) throws IllegalArgumentException {
+        mMinSendRate = checkNonNegative(bytesPerSec);
+    }
+
+    /**
+     * @throws IllegalArgumentException if millis is negative.
+     */
+    public void setRateGraceMillis(long millis) throws IllegalArgumentException {
+        mRateGraceMillis = checkNonNegative(millis);
+    }
+
+    /**
+     * @throws IllegalArgumentException if millis is negative.
+     */
+    public void setSendMillis(long millis) throws IllegalArgumentException {
+        mSendMillis = checkNonNegative(millis);
+    }
+
+    private static long checkNonNegative(long v) throws IllegalArgumentException {
+        if (v < 0) {
+            throw new IllegalArgumentException();
+        }
+        return v;
+    }
+}
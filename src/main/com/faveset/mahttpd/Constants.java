@@ -19,4 +19,90 @@ class Constants {
     // to 4-8KB, so we'll just choose a standard page size as the fundamental
     // unit.
     public static int BYTE_BUFFER_SIZE = 4096;
+
+    // The budget in bytes for pooled buffers across all servers.  New
+    // connections are refused once it is reached.  This should be kept
+    // below -XX:MaxDirectMemorySize.
+    public static long BUFFER_MEMORY_BUDGET = 256L * 1024 * 1024;
+
+    // The free bytes that each SlabAllocator size class retains for reuse.
+    // Slices released beyond this are left to the GC, and an arena's memory
+    // is freed once none of its slices remain.
+    public static long SLAB_MAX_FREE_BYTES = 16L * 1024 * 1024;
+
+    // TLS connections send small records for this many bytes before
+    // ramping up to full-sized records.  This roughly covers the first few
+    // round trips of TCP slow start.
+    public static int TLS_RECORD_RAMP_BYTES = 64 * 1024;
+
+    // TLS connections that are idle for this long return to small records.
+    public static long TLS_RECORD_IDLE_RESET_MILLIS = 1000;
+
+    // Resolution of each event loop's TimerWheel.  Timeouts fire up to one
+    // tick late.
+    public static long TIMER_TICK_MILLIS = 100;
+
+    // Slots in each TimerWheel.  With 100ms ticks, this covers about 51
+    // seconds before timers share slots with nearer ones.
+    public static int TIMER_WHEEL_SLOTS = 512;
+
+    // Default connection timeouts.  See ConnectionTimeouts.
+    public static long IDLE_TIMEOUT_MILLIS = 60 * 1000;
+    public static long HEADER_TIMEOUT_MILLIS = 30 * 1000;
+    public static long BODY_TIMEOUT_MILLIS = 30 * 1000;
+    public static long SEND_TIMEOUT_MILLIS = 60 * 1000;
+
+    // Default minimum data rates in bytes per second while receiving a
+    // request and sending a response.  Rates are averaged from the start of
+    // each phase and only enforced after the grace period.
+    public static long MIN_RECV_BYTES_PER_SEC = 240;
+    public static long MIN_SEND_BYTES_PER_SEC = 240;
+    public static long DATA_RATE_GRACE_MILLIS = 5 * 1000;
+
+    // Interval between data rate checks once the grace period has passed.
+    public static long DATA_RATE_CHECK_MILLIS = 1000;
+
+    // Default connection limits.  The server stops accepting at
+    // MAX_CONNECTIONS and resumes at the low watermark.  This should be kept
+    // below the file descriptor limit.  0 disables each limit.
+    public static int MAX_CONNECTIONS = 10000;
+    public static int MAX_CONNECTIONS_LOW_WATERMARK = 9000;
+    public static int MAX_CONNECTIONS_PER_ADDRESS = 0;
+
+    // Default keep-alive policy.  See KeepAlivePolicy.
+    public static int MAX_KEEP_ALIVE_REQUESTS = 1000;
+    public static long MIN_IDLE_TIMEOUT_MILLIS = 1000;
+
+    // The fraction of MAX_CONNECTIONS above which the idle timeout shrinks
+    // toward MIN_IDLE_TIMEOUT_MILLIS.
+    public static double IDLE_TIMEOUT_SHRINK_LOAD = 0.5;
+
+    // Default AdmissionController settings.  The limit counts requests in
+    // flight per event loop.
+    public static int ADMISSION_INITIAL_LIMIT = 256;
+    public static int ADMISSION_MIN_LIMIT = 8;
+    public static int ADMISSION_MAX_LIMIT = 10000;
+    public static long ADMISSION_TARGET_LAG_MILLIS = 100;
+    public static long ADMISSION_TARGET_LATENCY_MILLIS = 200;
+    public static long ADMISSION_WINDOW_MILLIS = 100;
+
+    // Bounds on the factor applied to the admission limit on overload.
+    public static double ADMISSION_MIN_BACKOFF_RATIO = 0.5;
+    public static double ADMISSION_MAX_BACKOFF_RATIO = 0.9;
+
+    // The Retry-After value for requests shed on overload.
+    public static int OVERLOAD_RETRY_AFTER_SECS = 1;
+
+    // Slots in each RateLimiter table.  Each takes 8 bytes.
+    public static int RATE_LIMIT_SLOTS = 16384;
+
+    // The Retry-After value for requests refused by a RateLimiter.
+    public static int RATE_LIMIT_RETRY_AFTER_SECS = 1;
+
+    // Work budget for each connection per event loop iteration.  Once a
+    // connection has handled this many pipelined requests or bytes, the rest
+    // waits for the next iteration so that other connections are served
+    // first.  0 disables each budget.
+    public static int MAX_REQUESTS_PER_ROUND = 16;
+    public static int MAX_BYTES_PER_ROUND = 64 * 1024;
 }
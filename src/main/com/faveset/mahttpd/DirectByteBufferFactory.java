@@ -23,4 +23,10 @@ class DirectByteBufferFactory implements ByteBufferFactory {
     public ByteBuffer make(int size) {
         return ByteBuffer.allocateDirect(size);
     }
+
+    /**
+     * This is a NOP.  Buffers are left to the GC.
+     */
+    @Override
+    public void release(ByteBuffer buf) {}
 }
@@ -0,0 +1,52 @@
+// Copyright 2014, Kevin Ko <kevin@faveset.com>. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.faveset.mahttpd;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pools HandlerStates so that idle connections need not hold one.
+ */
+class HandlerStatePool extends BasePool<HandlerState> {
+    private static final int sDefaultMaxCount = 256;
+
+    // This is for the singleton pool.
+    private static HandlerStatePool sHandlerStatePool;
+
+    private Pool<ByteBuffer> mBufPool;
+
+    /**
+     * @param bufPool the pool for each ResponseWriter's buffers.
+     * @param maxCount the maximum number of HandlerStates to maintain before
+     * letting the GC take over.
+     */
+    public HandlerStatePool(Pool<ByteBuffer> bufPool, int maxCount) {
+        super(maxCount);
+
+        mBufPool = bufPool;
+    }
+
+    @Override
+    protected HandlerState allocateValue() {
+        return new HandlerState(mBufPool);
+    }
+
+    /**
+     * Returns a shared singleton pool whose HandlerStates use buffers from
+     * the shared SlabAllocator.
+     */
+    public static synchronized HandlerStatePool get() {
+        if (sHandlerStatePool == null) {
+            sHandlerStatePool = new HandlerStatePool(
+                    SlabAllocator.get().getPool(Constants.BYTE_BUFFER_SIZE), sDefaultMaxCount);
+        }
+        return sHandlerStatePool;
+    }
+
+    @Override
+    protected void resetValue(HandlerState v) {
+        v.clear();
+    }
+}
@@ -0,0 +1,94 @@
+// Copyright 2014, Kevin Ko <kevin@faveset.com>. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.faveset.mahttpd;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Holds pre-encoded header field prefixes (the name followed by ": ") for
+ * all fields in HeaderField so that serialization need not encode them on
+ * each response.
+ */
+class HeaderFieldBytes {
+    private static final String sHeaderDelim = ": ";
+
+    private static final Map<String, byte[]> sPrefixMap = new HashMap<String, byte[]>();
+
+    // "Connection: close" with a trailing CRLF.
+    public static final byte[] CONNECTION_CLOSE;
+
+    /**
+     * @param name a canonicalized header field name.
+     *
+     * @return the encoded prefix for name or null if name is not a known
+     * HeaderField.
+     */
+    public static byte[] getPrefix(String name) {
+        return sPrefixMap.get(name);
+    }
+
+    private static void put(String... names) {
+        for (String name : names) {
+            sPrefixMap.put(name, Strings.getUTF8Bytes(name + sHeaderDelim));
+        }
+    }
+
+    static {
+        put(HeaderField.Entity.ALLOW,
+                HeaderField.Entity.CONTENT_ENCODING,
+                HeaderField.Entity.CONTENT_LANGUAGE,
+                HeaderField.Entity.CONTENT_LENGTH,
+                HeaderField.Entity.CONTENT_LOCATION,
+                HeaderField.Entity.CONTENT_MD5,
+                HeaderField.Entity.CONTENT_RANGE,
+                HeaderField.Entity.CONTENT_TYPE,
+                HeaderField.Entity.EXPIRES,
+                HeaderField.Entity.LAST_MODIFIED);
+
+        put(HeaderField.General.CACHE_CONTROL,
+                HeaderField.General.CONNECTION,
+                HeaderField.General.DATE,
+                HeaderField.General.PRAGMA,
+                HeaderField.General.TRAILER,
+                HeaderField.General.TRANSFER_ENCODING,
+                HeaderField.General.UPGRADE,
+                HeaderField.General.VIA,
+                HeaderField.General.WARNING);
+
+        put(HeaderField.Request.ACCEPT,
+                HeaderField.Request.ACCEPT_CHARSET,
+                HeaderField.Request.ACCEPT_ENCODING,
+                HeaderField.Request.ACCEPT_LANGUAGE,
+                HeaderField.Request.AUTHORIZATION,
+                HeaderField.Request.EXPECT,
+                HeaderField.Request.FROM,
+                HeaderField.Request.HOST,
+                HeaderField.Request.IF_MATCH,
+                HeaderField.Request.IF_MODIFIED_SINCE,
+                HeaderField.Request.IF_NONE_MATCH,
+                HeaderField.Request.IF_RANGE,
+                HeaderField.Request.IF_UNMODIFIED_SINCE,
+                HeaderField.Request.MAX_FORWARDS,
+                HeaderField.Request.PROXY_AUTHORIZATION,
+                HeaderField.Request.RANGE,
+                HeaderField.Request.REFERER,
+                HeaderField.Request.TE,
+                HeaderField.Request.USER_AGENT);
+
+        put(HeaderField.Response.ACCEPT_RANGES,
+                HeaderField.Response.AGE,
+                HeaderField.Response.ETAG,
+                HeaderField.Response.LOCATION,
+                HeaderField.Response.PROXY_AUTHENTICATE,
+                HeaderField.Response.RETRY_AFTER,
+                HeaderField.Response.SERVER,
+                HeaderField.Response.VARY,
+                HeaderField.Response.WWW_AUTHENTICATE);
+
+        CONNECTION_CLOSE = Strings.getUTF8Bytes(
+                HeaderField.General.CONNECTION + sHeaderDelim + HeaderToken.CLOSE + Strings.CRLF);
+    }
+}
@@ -9,7 +9,6 @@ import java.nio.ByteBuffer;
 
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -20,12 +19,11 @@ import java.util.Set;
 public class Headers {
     // Holds the characters representing the delimiter between header key and
     // value.
-    private static final String sHeaderDelim = ": ";
     private static final byte[] sHeaderDelimBytes = { (byte) ':', (byte) ' ' };
 
     // Used to delimit multiple header values.
-    private static final String sHeaderValueDelim = ",";
     private static final byte sHeaderValueDelimByte = (byte) ',';
+    private static final byte[] sHeaderValueDelimBytes = { sHeaderValueDelimByte };
 
     protected Map<String, List<String>> mHeaders;
 
@@ -38,6 +36,12 @@ public class Headers {
      * following a hypen is upper case; all other letters are lowercase.
      */
     protected String canonicalizeKey(String key) {
+        if (isCanonicalKey(key)) {
+            // Keys, such as the HeaderField constants, are typically already
+            // canonical, so avoid a copy.
+            return key;
+        }
+
         StringBuilder builder = new StringBuilder(key.length());
         boolean seenHyphen = false;
         final int keyLen = key.length();
@@ -54,6 +58,26 @@ public class Headers {
         return builder.toString();
     }
 
+    /**
+     * @return true if canonicalizeKey would not modify key.
+     */
+    private static boolean isCanonicalKey(String key) {
+        boolean seenHyphen = false;
+        final int keyLen = key.length();
+        for (int ii = 0; ii < keyLen; ii++) {
+            char ch = key.charAt(ii);
+            if (ch == '-') {
+                seenHyphen = true;
+            } else if (ii == 0 || seenHyphen) {
+                if (Character.toUpperCase(ch) != ch) {
+                    return false;
+                }
+                seenHyphen = false;
+            }
+        }
+        return true;
+    }
+
     /**
      * @return The list of values for the header named key or null if it
      * doesn't exist.  The returned list will always have non-zero length.
@@ -112,10 +136,16 @@ public class Headers {
     public int write(ByteBuffer buf) throws BufferOverflowException {
         int start = buf.position();
         for (Map.Entry<String, List<String>> entry : mHeaders.entrySet()) {
-            // Header field names are tokens (ASCII CHAR except
-            // CTLs or separators).  Thus, it's safe to use UTF-8.
-            Strings.writeUTF8(entry.getKey(), buf);
-            buf.put(sHeaderDelimBytes);
+            String key = entry.getKey();
+            byte[] prefix = HeaderFieldBytes.getPrefix(key);
+            if (prefix != null) {
+                buf.put(prefix);
+            } else {
+                // Header field names are tokens (ASCII CHAR except
+                // CTLs or separators).
+                Strings.writeAscii(key, buf);
+                buf.put(sHeaderDelimBytes);
+            }
             writeValue(buf, entry.getValue());
 
             buf.put(Strings.CRLF_BYTES);
@@ -132,10 +162,16 @@ public class Headers {
     public int write(ByteBufferArrayBuilder builder) {
         long start = builder.remaining();
         for (Map.Entry<String, List<String>> entry : mHeaders.entrySet()) {
-            builder.writeString(entry.getKey());
-            builder.writeString(sHeaderDelim);
+            String key = entry.getKey();
+            byte[] prefix = HeaderFieldBytes.getPrefix(key);
+            if (prefix != null) {
+                builder.writeBytes(prefix);
+            } else {
+                builder.writeAscii(key);
+                builder.writeBytes(sHeaderDelimBytes);
+            }
             writeValueBuilder(builder, entry.getValue());
-            builder.writeString(Strings.CRLF);
+            builder.writeBytes(Strings.CRLF_BYTES);
         }
         long count = builder.remaining() - start;
         return (int) count;
@@ -147,10 +183,16 @@ public class Headers {
      */
     public void write(ByteBufferArrayBuilder.Inserter inserter) {
         for (Map.Entry<String, List<String>> entry : mHeaders.entrySet()) {
-            inserter.writeString(entry.getKey());
-            inserter.writeString(sHeaderDelim);
+            String key = entry.getKey();
+            byte[] prefix = HeaderFieldBytes.getPrefix(key);
+            if (prefix != null) {
+                inserter.writeBytes(prefix);
+            } else {
+                inserter.writeAscii(key);
+                inserter.writeBytes(sHeaderDelimBytes);
+            }
             writeValueInserter(inserter, entry.getValue());
-            inserter.writeString(Strings.CRLF);
+            inserter.writeBytes(Strings.CRLF_BYTES);
         }
     }
 
@@ -183,14 +225,12 @@ public class Headers {
             return;
         }
 
-        Iterator<String> iter = values.iterator();
-        // Since value consists of ASCII chars, it is safe to use UTF-8.
-        Strings.writeUTF8(iter.next(), buf);
+        Strings.writeAscii(values.get(0), buf);
 
-        while (iter.hasNext()) {
+        final int count = values.size();
+        for (int ii = 1; ii < count; ii++) {
             buf.put(sHeaderValueDelimByte);
-            // Since value consists of ASCII chars, it is safe to use UTF-8.
-            Strings.writeUTF8(iter.next(), buf);
+            Strings.writeAscii(values.get(ii), buf);
         }
     }
 
@@ -202,12 +242,13 @@ public class Headers {
             return;
         }
 
-        Iterator<String> iter = values.iterator();
-        inserter.writeString(iter.next());
+        // HeadersBuilder requires ASCII values.
+        inserter.writeAscii(values.get(0));
 
-        while (iter.hasNext()) {
-            inserter.writeString(sHeaderValueDelim);
-            inserter.writeString(iter.next());
+        final int count = values.size();
+        for (int ii = 1; ii < count; ii++) {
+            inserter.writeBytes(sHeaderValueDelimBytes);
+            inserter.writeAscii(values.get(ii));
         }
     }
 
@@ -216,12 +257,13 @@ public class Headers {
             return;
         }
 
-        Iterator<String> iter = values.iterator();
-        builder.writeString(iter.next());
+        // HeadersBuilder requires ASCII values.
+        builder.writeAscii(values.get(0));
 
-        while (iter.hasNext()) {
-            builder.writeString(sHeaderValueDelim);
-            builder.writeString(iter.next());
+        final int count = values.size();
+        for (int ii = 1; ii < count; ii++) {
+            builder.writeBytes(sHeaderValueDelimBytes);
+            builder.writeAscii(values.get(ii));
         }
     }
 }
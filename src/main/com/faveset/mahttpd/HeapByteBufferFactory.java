@@ -23,4 +23,10 @@ class HeapByteBufferFactory implements ByteBufferFactory {
     public ByteBuffer make(int size) {
         return ByteBuffer.allocate(size);
     }
+
+    /**
+     * This is a NOP.  Buffers are left to the GC.
+     */
+    @Override
+    public void release(ByteBuffer buf) {}
 }
@@ -5,6 +5,7 @@
 package com.faveset.mahttpd;
 
 import java.io.IOException;
+import java.net.InetAddress;
 
 import java.nio.ByteBuffer;
 import java.nio.channels.Selector;
@@ -42,8 +43,9 @@ class HttpConnection {
         REQUEST_START,
         REQUEST_HEADERS,
         MESSAGE_BODY,
-        // Sending response.  Receives will be blocked until
-        // this state is complete.
+        // A response that closes the connection has been queued.  No further
+        // requests will be parsed, and the connection will close once the
+        // queued responses are sent.
         RESPONSE_SEND,
         SERVER_ERROR,
 
@@ -55,6 +57,18 @@ class HttpConnection {
         MANUAL,
     }
 
+    // The timeout that is armed on the connection's timer.
+    private enum TimeoutType {
+        NONE,
+        // Waiting for the next request.
+        IDLE,
+        // Reading the request line and headers.
+        HEADER,
+        BODY,
+        // Waiting for queued responses to drain.
+        SEND,
+    }
+
     private static class StateEntry {
         private State mNextState;
         private StateHandler mHandler;
@@ -80,21 +94,121 @@ class HttpConnection {
 
     private static final EnumMap<State, StateEntry> mStateHandlerMap;
 
-    // NOTE: this is not thread-safe.
-    private static DateFormatter sDateFormatter = new DateFormatter();
-
     private Log mLog = new NullLog();
 
     private Map<String, HttpHandler> mHttpHandlerMap;
 
     private AsyncConnection mConn;
 
+    // True if responses should always be queued in mOutBuilder instead of being serialized into
+    // the connection's out buffer.  SSL connections wrap (encrypt) directly from the queued
+    // buffers, so copying bodies into the out buffer first gains nothing.
+    private boolean mGatherResponses;
+
+    // This is acquired from mHandlerStatePool when a request arrives and
+    // released while the connection is idle.  It is null when released.
     private HandlerState mHandlerState;
+    private PoolEntry<HandlerState> mHandlerStateEntry;
+    private Pool<HandlerState> mHandlerStatePool;
+
+    // True if the receive buffer held a partial request after the last
+    // receive.
+    private boolean mHasPartialRequest;
 
     private State mState;
 
+    // Holds finished responses in request order until they are flushed to
+    // the network with a single send.  Small responses are first serialized
+    // into the connection's out buffer, and mOutBuilder holds whatever
+    // follows once a response does not fit.
+    private ByteBufferArrayBuilder mOutBuilder;
+
     private OnCloseCallback mOnCloseCallback;
 
+    // True while queued responses are being sent.
+    private boolean mIsSending;
+
+    // Callbacks can close the connection mid-step, after which no timeouts
+    // should be armed.
+    private boolean mIsClosed;
+
+    // True if the connection should close after its in-flight request.
+    private boolean mIsDraining;
+
+    // null if timeouts are disabled.
+    private TimerWheel mTimerWheel;
+    private ConnectionTimeouts mTimeouts;
+
+    // null if connections persist without limit.
+    private KeepAlivePolicy mKeepAlivePolicy;
+
+    // The number of requests received on this connection.
+    private int mRequestCount;
+
+    // null if all requests are admitted.
+    private AdmissionController mAdmissionController;
+
+    // Limit the request rate of the remote address overall and by uri.
+    // Either may be null.
+    private RateLimiter mRateLimiter;
+    private Map<String, RateLimiter> mRouteRateLimiterMap;
+
+    // The remote address, which is looked up on first use.
+    private InetAddress mRemoteAddr;
+
+    // The number of admitted requests whose responses have not been sent,
+    // and the admission time of the first.
+    private int mAdmittedCount;
+    private long mAdmitMillis;
+
+    // Bounds the work done per event loop iteration.  Requests beyond the
+    // budget are resumed from mTaskQueue, which is null if there is no
+    // budget.  0 disables each budget.
+    private SelectTaskQueue mTaskQueue;
+    private int mMaxRoundRequests;
+    private int mMaxRoundBytes;
+
+    // Holds deferred requests in append mode when the budget runs out.  It
+    // is null otherwise.
+    private ByteBuffer mDeferredBuf;
+    private boolean mIsResumeScheduled;
+
+    // True if this has paused mConn's receive.
+    private boolean mIsRecvPaused;
+
+    private Runnable mResumeTask = new Runnable() {
+        @Override
+        public void run() {
+            handleResume();
+        }
+    };
+
+    private TimerWheel.Timer mTimer = new TimerWheel.Timer(new Runnable() {
+        @Override
+        public void run() {
+            handleTimeout();
+        }
+    });
+
+    private TimeoutType mTimeoutType = TimeoutType.NONE;
+
+    // The connection's sent count when the send timeout was armed.
+    private long mTimeoutSentCount;
+
+    // Periodically checks that the client sends or reads data at the
+    // minimum rate for the current timeout type.
+    private TimerWheel.Timer mRateTimer = new TimerWheel.Timer(new Runnable() {
+        @Override
+        public void run() {
+            handleRateCheck();
+        }
+    });
+
+    // The start of the current rate check, in millis and in bytes
+    // transferred.
+    private long mRateStartMillis;
+    private long mRateStartCount;
+
     private AsyncConnection.OnCloseCallback mNbcCloseCallback =
         new AsyncConnection.OnCloseCallback() {
             @Override
@@ -127,10 +241,10 @@ class HttpConnection {
             }
         };
 
-    private ResponseWriter.OnSendCallback mSendResponseCallback =
-        new ResponseWriter.OnSendCallback() {
+    private AsyncConnection.OnSendCallback mNbcSendCallback =
+        new AsyncConnection.OnSendCallback() {
             @Override
-            public void onSend() {
+            public void onSend(AsyncConnection conn) {
                 handleSendResponse();
             }
         };
@@ -158,19 +272,47 @@ class HttpConnection {
      */
     public static HttpConnection makeSecureConnection(Selector selector, SocketChannel chan,
             SelectTaskQueue taskQueue, SSLContext ctx) throws IOException {
-        SSLNonBlockingConnection conn =
-            new SSLNonBlockingConnection(selector, chan, HeapByteBufferFactory.get(), taskQueue, ctx);
+        return makeSecureConnection(selector, chan, taskQueue, ctx, HeapByteBufferFactory.get(),
+                SSLTaskExecutor.get(), null, Constants.TLS_RECORD_RAMP_BYTES, null);
+    }
+
+    /**
+     * A variant of makeSecureConnection that makes SSL engine buffers with bufFactory and runs
+     * handshake tasks with sslTaskExecutor.
+     *
+     * @param handshakeStats counts completed handshakes.  This may be null.
+     * @param recordRampBytes the number of bytes to send in small TLS records before using
+     * full-sized records.  See SSLNonBlockingConnection.setRecordSizing().
+     * @param timeSource the event loop's clock, which times record sizing.  null uses
+     * TimerWheel.nowMillis().
+     *
+     * @throws IOException
+     */
+    public static HttpConnection makeSecureConnection(Selector selector, SocketChannel chan,
+            SelectTaskQueue taskQueue, SSLContext ctx, ByteBufferFactory bufFactory,
+            SSLTaskExecutor sslTaskExecutor, SSLHandshakeStats handshakeStats,
+            int recordRampBytes, TimerWheel.TimeSource timeSource) throws IOException {
+        SSLNonBlockingConnection conn = new SSLNonBlockingConnection(selector, chan, bufFactory,
+                taskQueue, ctx, sslTaskExecutor);
+        conn.setHandshakeStats(handshakeStats);
+        conn.setRecordSizing(recordRampBytes, Constants.TLS_RECORD_IDLE_RESET_MILLIS);
+        conn.setTimeSource(timeSource);
         conn.getSSLEngine().setUseClientMode(false);
         conn.start();
 
-        return new HttpConnection(conn);
+        return new HttpConnection(conn, true);
     }
 
-    private HttpConnection(AsyncConnection conn) {
+    /**
+     * @param gatherResponses true if responses should bypass the connection's out buffer.
+     */
+    private HttpConnection(AsyncConnection conn, boolean gatherResponses) {
         mConn = conn;
+        mGatherResponses = gatherResponses;
 
-        ByteBufferPool pool = ByteBufferPool.get();
-        mHandlerState = new HandlerState(pool).setOnRequestCallback(mRequestCallback);
+        Pool<ByteBuffer> pool = SlabAllocator.get().getPool(Constants.BYTE_BUFFER_SIZE);
+        mHandlerStatePool = HandlerStatePool.get();
+        mOutBuilder = new ByteBufferArrayBuilder(pool);
 
         mState = State.REQUEST_START;
     }
@@ -181,15 +323,79 @@ class HttpConnection {
      * by callers.
      */
     public HttpConnection(Selector selector, SocketChannel chan) throws IOException {
-        this(new NonBlockingConnection(selector, chan, ByteBufferPool.get()));
+        this(new NonBlockingConnection(selector, chan,
+                    SlabAllocator.get().getPool(Constants.BYTE_BUFFER_SIZE)), false);
+    }
+
+    /**
+     * Arms the connection's timer for type.  The header timeout runs from the
+     * first byte of the request, so it is not extended by later reads.  Data
+     * rate checks start over whenever the type changes.
+     */
+    private void armTimeout(TimeoutType type) {
+        if (mTimerWheel == null || mIsClosed) {
+            return;
+        }
+
+        if (type == TimeoutType.HEADER && mTimeoutType == TimeoutType.HEADER) {
+            return;
+        }
+
+        if (type != mTimeoutType) {
+            startRateCheck(type);
+        }
+
+        long millis;
+        switch (type) {
+            case IDLE:
+                millis = (mKeepAlivePolicy != null) ?
+                    mKeepAlivePolicy.getIdleMillis() : mTimeouts.getIdleMillis();
+                break;
+
+            case HEADER:
+                millis = mTimeouts.getHeaderMillis();
+                break;
+
+            case BODY:
+                millis = mTimeouts.getBodyMillis();
+                break;
+
+            case SEND:
+                millis = mTimeouts.getSendMillis();
+                mTimeoutSentCount = mConn.getSentCount();
+                break;
+
+            default:
+                millis = 0;
+                break;
+        }
+
+        mTimeoutType = type;
+        if (millis == 0) {
+            mTimerWheel.cancel(mTimer);
+            return;
+        }
+        mTimerWheel.schedule(mTimer, millis, mTimerWheel.getNowMillis());
+    }
+
+    private void cancelTimeout() {
+        if (mTimerWheel != null) {
+            mTimerWheel.cancel(mTimer);
+            mTimerWheel.cancel(mRateTimer);
+        }
+        mTimeoutType = TimeoutType.NONE;
     }
 
     /**
      * Closes the connection and releases all resources.
      */
     public void close() throws IOException {
+        mIsClosed = true;
+        cancelTimeout();
+        releaseAdmitted();
         mConn.close();
-        mHandlerState.close();
+        releaseHandlerState();
+        mOutBuilder.close();
     }
 
     /**
@@ -213,6 +419,122 @@ class HttpConnection {
                 w.getHeadersBuilder().set(HeaderField.General.CONNECTION, HeaderToken.KEEP_ALIVE);
             }
         }
+
+        if (mIsDraining) {
+            w.setCloseConnection(true);
+        }
+
+        mRequestCount++;
+        if (mKeepAlivePolicy != null) {
+            int maxRequests = mKeepAlivePolicy.getMaxRequests();
+            if (maxRequests != 0 && mRequestCount >= maxRequests) {
+                w.setCloseConnection(true);
+            }
+        }
+
+        if (hasBody(req)) {
+            // Message bodies are not consumed yet, so the start of the next
+            // pipelined request cannot be found.  Close after responding.
+            w.setCloseConnection(true);
+        }
+    }
+
+    /**
+     * Stops handling the requests in buf, which is in read mode, until a
+     * later event loop iteration so that other connections get a turn.
+     * Receives are paused, since the requests must be handled first.
+     */
+    private void deferRequests(ByteBuffer buf) {
+        // Leave buf in append mode, as if the rest were a partial request.
+        buf.compact();
+        mDeferredBuf = buf;
+
+        pauseRecv();
+    }
+
+    /**
+     * Closes the connection once its in-flight request, if any, has been
+     * answered.  The next response carries "Connection: close", and an idle
+     * connection closes immediately.  Thus, the OnCloseCallback might be
+     * called during this method.
+     */
+    public void drain() {
+        mIsDraining = true;
+
+        if (isIdle()) {
+            handleClose(mConn);
+        }
+    }
+
+    /**
+     * Sends all queued responses with a single send.  Receives are paused
+     * until the send completes so that the queue is not modified while in
+     * flight.
+     */
+    private void flushResponses() {
+        ByteBuffer outBuf = mConn.getOutBuffer();
+        if (outBuf.position() == 0 && mOutBuilder.remaining() == 0) {
+            return;
+        }
+
+        pauseRecv();
+
+        // The send might complete immediately, in which case
+        // handleSendResponse() rearms the timer.
+        mIsSending = true;
+        armTimeout(TimeoutType.SEND);
+
+        outBuf.flip();
+
+        if (mOutBuilder.remaining() == 0) {
+            // All responses fit in the out buffer, so a plain write suffices.
+            mConn.send(mNbcSendCallback);
+            return;
+        }
+
+        // Otherwise, the out buffer's contents precede the queued buffers.
+        if (outBuf.hasRemaining()) {
+            ByteBufferArrayBuilder.Inserter inserter = mOutBuilder.insertFront();
+            try {
+                inserter.writeBuffer(outBuf);
+            } finally {
+                inserter.close();
+            }
+        }
+
+        // mNbcSendCallback cleans up mOutBuilder.
+        long remCount = mOutBuilder.remaining();
+        mOutBuilder.finish();
+        mConn.send(mNbcSendCallback, mOutBuilder.getArray(), mOutBuilder.getArrayOffset(),
+                mOutBuilder.getArrayLength(), remCount);
+    }
+
+    /**
+     * @return the minimum data rate in bytes per second for type, or 0 if
+     * none applies.
+     */
+    private long getMinRate(TimeoutType type) {
+        switch (type) {
+            case HEADER:
+            case BODY:
+                return mTimeouts.getMinRecvRate();
+
+            case SEND:
+                return mTimeouts.getMinSendRate();
+
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return the byte count that is subject to type's data rate.
+     */
+    private long getRateCount(TimeoutType type) {
+        if (type == TimeoutType.SEND) {
+            return mConn.getSentCount();
+        }
+        return mConn.getRecvCount();
     }
 
     /**
@@ -222,6 +544,19 @@ class HttpConnection {
         return mConn;
     }
 
+    /**
+     * @return the HandlerState, which is acquired from the pool if
+     * necessary.
+     */
+    private HandlerState getHandlerState() {
+        if (mHandlerState == null) {
+            mHandlerStateEntry = mHandlerStatePool.allocate();
+            mHandlerState = mHandlerStateEntry.get();
+            mHandlerState.setOnRequestCallback(mRequestCallback);
+        }
+        return mHandlerState;
+    }
+
     /**
      * Handle read closes.  This adheres to our protocol described at the
      * top of the file.
@@ -238,27 +573,74 @@ class HttpConnection {
         handleClose(conn);
     }
 
+    /**
+     * Handles all complete requests in buf and then flushes their responses.
+     * Any partial request is left compacted in buf for the next append.
+     * Requests beyond the work budget are deferred to the next event loop
+     * iteration.
+     */
     private void handleRecv(AsyncConnection conn, ByteBuffer buf) {
+        int startRequestCount = mRequestCount;
+        int startRemaining = buf.remaining();
+
         boolean done = false;
         do {
             done = handleStateStep(conn, buf);
+
+            if (!done && mState == State.REQUEST_START && buf.hasRemaining() &&
+                    isBudgetSpent(mRequestCount - startRequestCount,
+                            startRemaining - buf.remaining())) {
+                deferRequests(buf);
+                done = true;
+            }
         } while (!done);
+
+        // buf is left in append mode, so any partial request precedes the
+        // position.
+        mHasPartialRequest = (buf.position() != 0);
+
+        flushResponses();
+
+        if (mDeferredBuf != null && !mIsSending) {
+            // Nothing was sent, so handleSendResponse() will not schedule the
+            // deferred requests.
+            scheduleResume();
+        }
+
+        releaseIdleState();
+
+        updateTimeout();
     }
 
     private boolean handleRequest(HttpRequest req, ByteBuffer data, ResponseWriter w) {
         // Prepare the writer at a general level, for both errors and successes.
         configureWriter(req, w);
 
-        // By default, the response takes the current date.
-        sDateFormatter.update();
-        w.getHeadersBuilder().set(HeaderField.General.DATE,
-                sDateFormatter.getRFC1123String());
-
         String uri = req.getUri();
+        if (!isWithinRateLimits(uri)) {
+            refuseRequest(req, w, CannedResponses.TOO_MANY_REQUESTS,
+                    CannedResponses.TOO_MANY_REQUESTS_CLOSE, HttpStatus.TOO_MANY_REQUESTS);
+            return true;
+        }
+
+        if (mAdmissionController != null) {
+            if (!mAdmissionController.tryAdmit()) {
+                // Shed the request without running its handler.
+                refuseRequest(req, w, CannedResponses.OVERLOADED,
+                        CannedResponses.OVERLOADED_CLOSE, HttpStatus.SERVICE_UNAVAILABLE);
+                return true;
+            }
+
+            if (mAdmittedCount == 0) {
+                mAdmitMillis = mAdmissionController.getIterationStartMillis();
+            }
+            mAdmittedCount++;
+        }
+
         HttpHandler handler = mHttpHandlerMap.get(uri);
         if (handler == null) {
-            sendErrorResponse(HttpStatus.NOT_FOUND);
-            // Transition to a new state to handle the send.
+            w.writeHeader(HttpStatus.NOT_FOUND);
+            queueResponse(w);
             return true;
         }
 
@@ -271,34 +653,146 @@ class HttpConnection {
 
             case IGNORE:
             default:
-                // It's safe to send the response right now.
-                sendResponse(mConn, w);
+                // It's safe to finish the response right now.
+                queueResponse(w);
                 return true;
         }
     }
 
     /**
-     * Called after the HTTP response has been sent to the client.  This
-     * reconfigures the HttpConnection to listen for another request unless
-     * specified otherwise by the ResponseWriter.
+     * Handles the requests deferred by the work budget.  This runs from the
+     * task queue at the start of an event loop iteration.
+     */
+    private void handleResume() {
+        mIsResumeScheduled = false;
+
+        if (mIsClosed || mIsSending || mDeferredBuf == null) {
+            // handleSendResponse() reschedules once any send completes.
+            return;
+        }
+
+        ByteBuffer buf = mDeferredBuf;
+        mDeferredBuf = null;
+
+        buf.flip();
+        handleRecv(mConn, buf);
+
+        if (!mIsClosed && !mIsSending && mDeferredBuf == null) {
+            resumeRecv();
+        }
+    }
+
+    /**
+     * Called after the queued HTTP responses have been sent to the client.
+     * This resumes receiving unless a response closed the connection.
      */
     private void handleSendResponse() {
-        // We're done sending the response; log the result.
-        String remoteAddrStr = mConn.socketChannel().socket().getInetAddress().toString();
-        ResponseWriter w = mHandlerState.getResponseWriter();
-        logRequest(mHandlerState.getRequestBuilder(), remoteAddrStr,
-                w.getStatus(), w.getSentCount());
+        mIsSending = false;
 
-        if (w.getCloseConnection()) {
+        releaseAdmitted();
+
+        mOutBuilder.clear();
+        mConn.getOutBuffer().clear();
+
+        if (mState == State.RESPONSE_SEND) {
             // We are done, so clean up.
             handleClose(mConn);
             return;
         }
 
-        mState = State.REQUEST_START;
+        if (mIsDraining && isIdle()) {
+            // The response went out before draining began, so it could not
+            // close the connection.
+            handleClose(mConn);
+            return;
+        }
+
+        if (mDeferredBuf != null) {
+            // Handle the deferred requests before receiving more.
+            scheduleResume();
+        } else {
+            // Restart the receive.  Any partial request remains in the buffer,
+            // and the state machine resumes where it left off.
+            resumeRecv();
+        }
+
+        releaseIdleState();
+
+        updateTimeout();
+    }
+
+    /**
+     * Checks that the client has kept up with the minimum data rate since
+     * the current rate check started.  Clients that fall behind are timed
+     * out.
+     */
+    private void handleRateCheck() {
+        long minRate = getMinRate(mTimeoutType);
+        if (minRate == 0) {
+            return;
+        }
 
-        // Restart the receive, now that we're at the start state.
-        mConn.recvPersistent(mNbcRecvCallback);
+        long now = mTimerWheel.getNowMillis();
+        long count = getRateCount(mTimeoutType) - mRateStartCount;
+        long elapsedMillis = now - mRateStartMillis;
+        if (count * 1000 < minRate * elapsedMillis) {
+            handleSlowClient("below minimum data rate");
+            return;
+        }
+
+        mTimerWheel.schedule(mRateTimer, Constants.DATA_RATE_CHECK_MILLIS, now);
+    }
+
+    /**
+     * Times out a client that is too slow.  Clients that are sending a request
+     * receive a 408 response; otherwise, the connection closes.
+     */
+    private void handleSlowClient(String reason) {
+        TimeoutType type = mTimeoutType;
+        cancelTimeout();
+
+        if (type != TimeoutType.IDLE) {
+            String remoteAddrStr = mConn.socketChannel().socket().getInetAddress().toString();
+            mLog.i(sTag, "connection timed out: " + remoteAddrStr + " " + type + " " + reason);
+        }
+
+        if (type == TimeoutType.HEADER || type == TimeoutType.BODY) {
+            // The request can no longer be parsed, so the connection closes
+            // once the response is sent.
+            sendErrorResponse(HttpStatus.REQUEST_TIMEOUT);
+            flushResponses();
+            return;
+        }
+
+        handleClose(mConn);
+    }
+
+    /**
+     * Called when the connection's timer fires.  Sends that are still making
+     * progress rearm the timer instead, so only stalled sends time out.
+     */
+    private void handleTimeout() {
+        if (mTimeoutType == TimeoutType.SEND &&
+                mConn.getSentCount() != mTimeoutSentCount) {
+            armTimeout(TimeoutType.SEND);
+            return;
+        }
+
+        handleSlowClient("expired");
+    }
+
+    /**
+     * @return true if req is followed by a message body, which is signaled by
+     * a non-zero Content-Length or a Transfer-Encoding header.
+     */
+    private static boolean hasBody(HttpRequest req) {
+        Headers headers = req.getHeaders();
+        if (headers.getFirst(HeaderField.General.TRANSFER_ENCODING) != null) {
+            return true;
+        }
+
+        String len = headers.getFirst(HeaderField.Entity.CONTENT_LENGTH);
+        return (len != null && !len.trim().equals("0"));
     }
 
     /**
@@ -318,7 +812,7 @@ class HttpConnection {
         }
 
         try {
-            if (!entry.getHandler().handleState(conn, buf, mHandlerState)) {
+            if (!entry.getHandler().handleState(conn, buf, getHandlerState())) {
                 // Continue reading new data from the connection.  The recv()
                 // is already persistent.
                 return true;
@@ -326,24 +820,71 @@ class HttpConnection {
 
             State nextState = entry.getNextState();
             if (nextState == State.MANUAL) {
-                // Hold back on advancing steps automatically so that the
-                // receive handler can be called again (if configured).
-                //
-                // This gives an opportunity to pause receive handling when,
-                // for example, sending a response.
-                return true;
+                // The callback has assigned the state.  Continue with any
+                // pipelined requests in buf if it returned to the start;
+                // otherwise, hold back so that receive handling can pause.
+                return (mState != State.REQUEST_START);
             }
 
             mState = nextState;
         } catch (InvalidRequestException e) {
             sendErrorResponse(e.getErrorCode());
-            // Stop stepping states until we send the response.
+            // Stop stepping states, since the connection will close.
             return true;
         }
 
         return false;
     }
 
+    /**
+     * @return true if the connection has used up its work budget for the
+     * current event loop iteration.
+     */
+    private boolean isBudgetSpent(int requestCount, int byteCount) {
+        if (mTaskQueue == null) {
+            return false;
+        }
+        return ((mMaxRoundRequests != 0 && requestCount >= mMaxRoundRequests) ||
+                (mMaxRoundBytes != 0 && byteCount >= mMaxRoundBytes));
+    }
+
+    /**
+     * @return true if no request or response is in progress.
+     */
+    private boolean isIdle() {
+        return (!mIsSending && mState == State.REQUEST_START && !mHasPartialRequest);
+    }
+
+    /**
+     * Takes a token from each rate limit that applies to the remote address
+     * and uri.
+     *
+     * @return false if a limit was exceeded.
+     */
+    private boolean isWithinRateLimits(String uri) {
+        if (mRateLimiter == null && mRouteRateLimiterMap == null) {
+            return true;
+        }
+
+        if (mRemoteAddr == null) {
+            mRemoteAddr = mConn.socketChannel().socket().getInetAddress();
+        }
+        long nowNanos = System.nanoTime();
+
+        if (mRateLimiter != null && !mRateLimiter.tryAcquire(mRemoteAddr, nowNanos)) {
+            return false;
+        }
+
+        if (mRouteRateLimiterMap != null) {
+            RateLimiter routeLimiter = mRouteRateLimiterMap.get(uri);
+            if (routeLimiter != null && !routeLimiter.tryAcquire(mRemoteAddr, nowNanos)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
     /**
      * Logs the request using the response code httpStatus.
      *
@@ -361,8 +902,7 @@ class HttpConnection {
             reqStr = "";
         }
 
-        sDateFormatter.update();
-        String logTime = sDateFormatter.getClfString();
+        String logTime = Clock.get().getSnapshot().getClfString();
         String s = String.format("%s - - [%s] \"%s\" %d %d",
                 remoteAddrStr, logTime, reqStr, httpStatus, responseLen);
 
@@ -370,34 +910,211 @@ class HttpConnection {
     }
 
     /**
-     * Convenience method for sending error responses.  The state will
+     * Stops receiving until resumeRecv() is called.  The receive rate is not
+     * enforced in the meantime, since the client cannot make progress.
+     */
+    private void pauseRecv() {
+        mConn.cancelRecv();
+        mIsRecvPaused = true;
+
+        if (mTimerWheel != null && mTimeoutType != TimeoutType.SEND) {
+            mTimerWheel.cancel(mRateTimer);
+        }
+    }
+
+    /**
+     * Appends a pre-encoded response to the queued responses and logs the
+     * request.  The state changes as in queueResponse().
+     *
+     * @param statusCode the response's status, for logging.
+     * @param closeConnection true if the response closes the connection.
+     */
+    private void queueCannedResponse(byte[] response, int statusCode, boolean closeConnection) {
+        ByteBuffer outBuf = mConn.getOutBuffer();
+        if (!mGatherResponses && mOutBuilder.remaining() == 0 &&
+                outBuf.remaining() >= response.length) {
+            outBuf.put(response);
+        } else {
+            mOutBuilder.writeBytes(response);
+        }
+
+        String remoteAddrStr = mConn.socketChannel().socket().getInetAddress().toString();
+        logRequest(getHandlerState().getRequestBuilder(), remoteAddrStr,
+                statusCode, response.length);
+
+        if (closeConnection) {
+            mState = State.RESPONSE_SEND;
+        } else {
+            mState = State.REQUEST_START;
+        }
+    }
+
+    /**
+     * Finishes w, appends it to the queued responses, and logs the request.
+     *
+     * The state will change to REQUEST_START for the next pipelined request
+     * or to RESPONSE_SEND if the connection should close.  Thus, this should
+     * be called in a transition to a MANUAL state or outside a state machine
+     * callback.
+     */
+    private void queueResponse(ResponseWriter w) {
+        // Responses must remain in order, so the out buffer is only used until
+        // a response spills over to mOutBuilder.
+        if (mGatherResponses || mOutBuilder.remaining() != 0 ||
+                !w.finish(mConn.getOutBuffer())) {
+            w.finish(mOutBuilder);
+        }
+
+        String remoteAddrStr = mConn.socketChannel().socket().getInetAddress().toString();
+        logRequest(getHandlerState().getRequestBuilder(), remoteAddrStr,
+                w.getStatus(), w.getSentCount());
+
+        if (w.getCloseConnection()) {
+            mState = State.RESPONSE_SEND;
+        } else {
+            mState = State.REQUEST_START;
+        }
+    }
+
+    /**
+     * Answers req with a pre-encoded response instead of running its
+     * handler.  The connection stays open if w would have kept it open,
+     * except for HTTP/1.0 clients, which would need an explicit Keep-Alive.
+     *
+     * @param keepAliveResponse leaves the connection open.
+     * @param closeResponse closes the connection.
+     * @param statusCode the responses' status, for logging.
+     */
+    private void refuseRequest(HttpRequest req, ResponseWriter w, byte[] keepAliveResponse,
+            byte[] closeResponse, int statusCode) {
+        if (w.getCloseConnection() || req.getMinorVersion() == 0) {
+            queueCannedResponse(closeResponse, statusCode, true);
+        } else {
+            queueCannedResponse(keepAliveResponse, statusCode, false);
+        }
+    }
+
+    /**
+     * Releases the admitted requests, whose responses have been sent or
+     * abandoned, to the AdmissionController.
+     */
+    private void releaseAdmitted() {
+        if (mAdmittedCount == 0) {
+            return;
+        }
+
+        mAdmissionController.release(mAdmittedCount, TimerWheel.nowMillis() - mAdmitMillis);
+        mAdmittedCount = 0;
+    }
+
+    /**
+     * Returns the HandlerState to the pool, if held.
+     */
+    private void releaseHandlerState() {
+        if (mHandlerState == null) {
+            return;
+        }
+
+        // Release the ResponseWriter's buffers now rather than on reuse.
+        mHandlerState.clear();
+        mHandlerState.setOnRequestCallback(null);
+        mHandlerState = null;
+
+        mHandlerStateEntry = mHandlerStatePool.release(mHandlerStateEntry);
+    }
+
+    /**
+     * Releases the HandlerState and the connection's buffers if no request
+     * is in progress so that idle keep-alive connections stay small.  They
+     * are reacquired when the next request arrives.
+     */
+    private void releaseIdleState() {
+        // An in-flight send may still read from the connection's buffers.
+        if (mIsSending || mState != State.REQUEST_START || mHasPartialRequest) {
+            return;
+        }
+
+        releaseHandlerState();
+        mConn.releaseIdleBuffers();
+    }
+
+    /**
+     * Restarts receiving if pauseRecv() stopped it.
+     */
+    private void resumeRecv() {
+        if (!mIsRecvPaused) {
+            return;
+        }
+        mIsRecvPaused = false;
+
+        mConn.recvAppendPersistent(mNbcRecvCallback);
+
+        if (mTimerWheel != null && !mIsClosed && mTimeoutType != TimeoutType.SEND) {
+            // The rate check starts over, since the pause does not count
+            // against the client.
+            startRateCheck(mTimeoutType);
+        }
+    }
+
+    /**
+     * Schedules the deferred requests for the next event loop iteration.
+     */
+    private void scheduleResume() {
+        if (mIsResumeScheduled) {
+            return;
+        }
+        mIsResumeScheduled = true;
+
+        mTaskQueue.execute(mResumeTask);
+    }
+
+    /**
+     * Convenience method for queueing error responses for malformed
+     * requests.  The connection will close after the response is sent, since
+     * the start of the next request cannot be determined.  The state will
      * change to RESPONSE_SEND.  Thus, this should be called in a transition
      * to a MANUAL state or outside a state machine callback.
      */
     private void sendErrorResponse(int errorCode) {
-        ResponseWriter writer = mHandlerState.getResponseWriter();
+        ResponseWriter writer = getHandlerState().getResponseWriter();
+        // Discard any state left over from a prior request.
+        writer.clear();
+        writer.setCloseConnection(true);
         writer.writeHeader(errorCode);
 
-        sendResponse(mConn, writer);
+        queueResponse(writer);
     }
 
     /**
-     * Sends w over conn and configures handleSendResponse to handle the
-     * send completion callback.
-     *
-     * The state will change to RESPONSE_SEND.  Thus, this should be called
-     * in a transition to a MANUAL state or outside a state machine callback.
+     * Sheds requests that controller does not admit with a 503 response.
+     * This must be called before start().
      *
-     * Receive callbacks will be blocked until send completion.
+     * @param controller must belong to the connection's event loop.
      */
-    private void sendResponse(AsyncConnection conn, ResponseWriter w) {
-        mState = State.RESPONSE_SEND;
+    public void setAdmissionController(AdmissionController controller) {
+        mAdmissionController = controller;
+    }
 
-        // Turn off receive callbacks, since the state machine is in a send
-        // state.
-        conn.cancelRecv();
+    /**
+     * Refuses requests that exceed the remote address's rate with a 429
+     * response.  This must be called before start().
+     *
+     * @param limiter applies to all requests.  It may be null.
+     * @param routeLimiterMap maps uris to limiters that apply to the uri's
+     * requests.  It may be null.
+     */
+    public void setRateLimiters(RateLimiter limiter, Map<String, RateLimiter> routeLimiterMap) {
+        mRateLimiter = limiter;
+        mRouteRateLimiterMap = routeLimiterMap;
+    }
 
-        w.send(conn, mSendResponseCallback);
+    /**
+     * Limits the requests served by the connection and shortens its idle
+     * timeout under load according to policy.  This must be called before
+     * start().
+     */
+    public void setKeepAlivePolicy(KeepAlivePolicy policy) {
+        mKeepAlivePolicy = policy;
     }
 
     /**
@@ -407,6 +1124,34 @@ class HttpConnection {
         mLog = log;
     }
 
+    /**
+     * Enables timeouts, which are scheduled on wheel.  The connection closes
+     * when a timeout expires.  This must be called before start().
+     *
+     * @param wheel must belong to the connection's event loop.
+     * @param timeouts holds the timeout for each phase.
+     */
+    public void setTimeouts(TimerWheel wheel, ConnectionTimeouts timeouts) {
+        mTimerWheel = wheel;
+        mTimeouts = timeouts;
+    }
+
+    /**
+     * Bounds the requests and bytes handled per event loop iteration.  Any
+     * pipelined requests beyond the budget are handled in a later iteration
+     * so that a busy client does not delay the others.  This must be called
+     * before start().
+     *
+     * @param queue must belong to the connection's event loop.
+     * @param maxRequests 0 means no limit.
+     * @param maxBytes 0 means no limit.
+     */
+    public void setWorkBudget(SelectTaskQueue queue, int maxRequests, int maxBytes) {
+        mTaskQueue = queue;
+        mMaxRoundRequests = maxRequests;
+        mMaxRoundBytes = maxBytes;
+    }
+
     /**
      * Assigns the callback that will be called when the connection is closed.
      *
@@ -433,7 +1178,63 @@ class HttpConnection {
         mConn.setOnCloseCallback(mNbcCloseCallback);
         mConn.setOnErrorCallback(mNbcErrorCallback);
 
-        mConn.recvPersistent(mNbcRecvCallback);
+        // Responses are serialized into the out buffer.
+        mConn.getOutBuffer().clear();
+
+        // The state handlers compact the buffer around partial requests, so
+        // new data must be appended.
+        mConn.recvAppendPersistent(mNbcRecvCallback);
+
+        // Guard against clients that never send a request.
+        updateTimeout();
+    }
+
+    /**
+     * Starts enforcing the minimum data rate for type, if any.  The first
+     * check happens after the grace period.  Receive rates wait for
+     * resumeRecv() if receiving is paused.
+     */
+    private void startRateCheck(TimeoutType type) {
+        long minRate = getMinRate(type);
+        if (minRate == 0 || (mIsRecvPaused && type != TimeoutType.SEND)) {
+            mTimerWheel.cancel(mRateTimer);
+            return;
+        }
+
+        long now = mTimerWheel.getNowMillis();
+        mRateStartMillis = now;
+        mRateStartCount = getRateCount(type);
+
+        long delayMillis = Math.max(mTimeouts.getRateGraceMillis(),
+                Constants.DATA_RATE_CHECK_MILLIS);
+        mTimerWheel.schedule(mRateTimer, delayMillis, now);
+    }
+
+    /**
+     * Arms the timeout for the current state.  Nothing changes while a send is
+     * in progress, since its timeout was armed by flushResponses().
+     */
+    private void updateTimeout() {
+        if (mIsSending) {
+            return;
+        }
+
+        switch (mState) {
+            case REQUEST_START:
+                armTimeout(mHasPartialRequest ? TimeoutType.HEADER : TimeoutType.IDLE);
+                break;
+
+            case REQUEST_HEADERS:
+                armTimeout(TimeoutType.HEADER);
+                break;
+
+            case MESSAGE_BODY:
+                armTimeout(TimeoutType.BODY);
+                break;
+
+            default:
+                break;
+        }
     }
 
     static {
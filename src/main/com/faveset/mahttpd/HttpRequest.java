@@ -118,10 +118,12 @@ public class HttpRequest {
     }
 
     /**
-     * @return a string representation of the request.
+     * @return a string representation of the request.  The method is empty
+     * if the request line was not parsed.
      */
     @Override
     public String toString() {
-        return String.format("%s %s HTTP/1.%d", mMethod.name(), mUri, mMinorVersion);
+        String methodStr = (mMethod != null) ? mMethod.name() : "";
+        return String.format("%s %s HTTP/1.%d", methodStr, mUri, mMinorVersion);
     }
 }
@@ -7,8 +7,12 @@ package com.faveset.mahttpd;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -31,8 +35,26 @@ import com.faveset.log.Log;
 import com.faveset.log.NullLog;
 
 public class HttpServer {
+    /**
+     * Selects how SSL engine buffers are allocated.
+     */
+    public enum SSLBufferType {
+        // Direct buffers that are left to the GC.
+        DIRECT,
+        // Heap buffers that are left to the GC.
+        HEAP,
+        // Direct buffers from the shared SlabAllocator, which are recycled
+        // across connections and charged to the buffer memory budget.
+        POOLED,
+    }
+
     private static final String sTag = HttpServer.class.toString();
 
+    // The buffer memory that a new connection is expected to need (the in
+    // and out buffers).  Connections are refused unless the budget has this
+    // much room.
+    private static final long sConnectionReserveBytes = 2 * Constants.BYTE_BUFFER_SIZE;
+
     private Log mLog = new NullLog();
 
     private Map<String, HttpHandler> mHttpHandlerMap = new HashMap<String, HttpHandler>();
@@ -47,6 +69,23 @@ public class HttpServer {
 
     private SelectTaskQueue mSelectTaskQueue;
 
+    // Drives connection timeouts.  It is created by listenAndServe() and
+    // only accessed by the event loop.
+    private TimerWheel mTimerWheel;
+
+    private ConnectionTimeouts mTimeouts = new ConnectionTimeouts();
+
+    // Created by serve() unless both targets are 0.  This is volatile so
+    // that other threads can read its metrics.
+    private volatile AdmissionController mAdmissionController;
+
+    private long mAdmissionTargetLagMillis = Constants.ADMISSION_TARGET_LAG_MILLIS;
+    private long mAdmissionTargetLatencyMillis = Constants.ADMISSION_TARGET_LATENCY_MILLIS;
+
+    // Per-client rate limits, which are null if disabled.  The map holds limits by uri.
+    private RateLimiter mRateLimiter;
+    private Map<String, RateLimiter> mRouteRateLimiterMap;
+
     private SelectorHandler mListenSelectorHandler = new SelectorHandler() {
             @Override
             public void onReady(SelectionKey key) {
@@ -58,6 +97,15 @@ public class HttpServer {
 
     private Set<HttpConnection> mConnectionSet = new HashSet<HttpConnection>();
 
+    private ConnectionLimiter mConnectionLimiter = new ConnectionLimiter(
+            Constants.MAX_CONNECTIONS, Constants.MAX_CONNECTIONS_LOW_WATERMARK,
+            Constants.MAX_CONNECTIONS_PER_ADDRESS);
+
+    private KeepAlivePolicy mKeepAlivePolicy = new KeepAlivePolicy(mTimeouts, mConnectionLimiter);
+
+    // True if OP_ACCEPT is deregistered because the server is at capacity.
+    private boolean mIsAcceptPaused;
+
     private HttpConnection.OnCloseCallback mCloseCallback = new HttpConnection.OnCloseCallback() {
         @Override
         public void onClose(HttpConnection conn) {
@@ -67,8 +115,52 @@ public class HttpServer {
 
     private volatile boolean mIsDone;
 
+    // Set by stopGracefully() for the event loop, which then begins draining.
+    private volatile boolean mIsDrainRequested;
+    private volatile long mDrainMillis;
+
+    // True once the event loop has stopped accepting and is waiting for
+    // connections to finish.
+    private boolean mIsDraining;
+
+    // Fires when the drain deadline passes.  Scheduling it also keeps the
+    // event loop waking for timer ticks while draining.
+    private boolean mIsDrainExpired;
+
+    private TimerWheel.Timer mDrainTimer = new TimerWheel.Timer(new Runnable() {
+        @Override
+        public void run() {
+            mIsDrainExpired = true;
+        }
+    });
+
     private SSLContext mSSLContext;
 
+    private ByteBufferFactory mSSLBufferFactory = PooledByteBufferFactory.get();
+
+    // The number of threads for SSL handshake tasks.  0 runs tasks inline in the event loop.
+    private int mSSLTaskThreadCount = Runtime.getRuntime().availableProcessors();
+
+    // Created by listenAndServe() when SSL is configured.  This is volatile so that other
+    // threads can read its metrics.
+    private volatile SSLTaskExecutor mSSLTaskExecutor;
+
+    private SSLHandshakeStats mSSLHandshakeStats = new SSLHandshakeStats();
+
+    private int mTLSRecordRampBytes = Constants.TLS_RECORD_RAMP_BYTES;
+
+    // The work budget for each connection per event loop iteration.  0
+    // disables each budget.
+    private int mMaxRoundRequests = Constants.MAX_REQUESTS_PER_ROUND;
+    private int mMaxRoundBytes = Constants.MAX_BYTES_PER_ROUND;
+
+    // True if listenAndServe() binds with SO_REUSEPORT.
+    private boolean mReusePort;
+
+    // Session cache settings.  Negative values keep the JDK defaults.
+    private int mSSLSessionCacheSize = -1;
+    private int mSSLSessionTimeoutSecs = -1;
+
     public HttpServer() {}
 
     /**
@@ -114,14 +206,18 @@ public class HttpServer {
         mListenKey.attach(null);
 
         for (HttpConnection conn : mConnectionSet) {
+            mConnectionLimiter.release(
+                    conn.getAsyncConnection().socketChannel().socket().getInetAddress());
             conn.close();
         }
         mConnectionSet.clear();
 
         mSelector.close();
 
-        // Clean up all static resources.
-        SSLNonBlockingConnection.shutdown();
+        if (mSSLTaskExecutor != null) {
+            mSSLTaskExecutor.shutdown();
+            mSSLTaskExecutor = null;
+        }
     }
 
     private void handleAccept(SelectableChannel chanArg) {
@@ -131,6 +227,14 @@ public class HttpServer {
         try {
             newChan = chan.accept();
         } catch (IOException e) {
+            if (!mConnectionSet.isEmpty()) {
+                // This is likely transient, such as running out of file
+                // descriptors (EMFILE).  Wait for connections to close.
+                mLog.e(sTag, "accept failed; pausing until a connection closes", e);
+                pauseAccept();
+                return;
+            }
+
             mLog.e(sTag, "accept failed; shutting down", e);
 
             // We have a serious problem, so just bring down the server.
@@ -145,17 +249,33 @@ public class HttpServer {
             return;
         }
 
+        MemoryBudget budget = MemoryBudget.get();
+        if (!budget.hasRoom(sConnectionReserveBytes)) {
+            budget.recordReject();
+            rejectConnection(newChan);
+            return;
+        }
+
+        InetAddress remoteAddr = newChan.socket().getInetAddress();
+        if (!mConnectionLimiter.acquire(remoteAddr)) {
+            rejectConnection(newChan);
+            return;
+        }
+
         HttpConnection conn;
         try {
             if (mSSLContext != null) {
                 conn = HttpConnection.makeSecureConnection(mSelector, newChan, mSelectTaskQueue,
-                        mSSLContext);
+                        mSSLContext, mSSLBufferFactory, mSSLTaskExecutor, mSSLHandshakeStats,
+                        mTLSRecordRampBytes, mTimerWheel.getTimeSource());
             } else {
                 conn = HttpConnection.makeConnection(mSelector, newChan);
             }
         } catch (IOException e) {
             mLog.e(sTag, "could not create HttpConnection, closing", e);
 
+            mConnectionLimiter.release(remoteAddr);
+
             try {
                 newChan.close();
             } catch (IOException newChanE) {
@@ -167,18 +287,145 @@ public class HttpServer {
 
         conn.setOnCloseCallback(mCloseCallback);
         conn.setLog(mLog);
+        conn.setTimeouts(mTimerWheel, mTimeouts);
+        conn.setKeepAlivePolicy(mKeepAlivePolicy);
+        conn.setAdmissionController(mAdmissionController);
+        conn.setRateLimiters(mRateLimiter, mRouteRateLimiterMap);
+        if (mMaxRoundRequests != 0 || mMaxRoundBytes != 0) {
+            conn.setWorkBudget(mSelectTaskQueue, mMaxRoundRequests, mMaxRoundBytes);
+        }
 
         // We must update mConnectionSet before starting, since conn.start()
         // might issue a sequence of callbacks immediately.
         mConnectionSet.add(conn);
 
+        if (mConnectionLimiter.isAtCapacity()) {
+            pauseAccept();
+        }
+
         conn.start(mHttpHandlerMap);
 
         // NOTE: The connection might close as a result of start(), so we
         // must be careful when modifying after this point.
     }
 
+    /**
+     * @return the current limit on in-flight requests, or 0 if admission control is disabled or
+     * the server has not started.
+     */
+    public int getAdmissionLimit() {
+        AdmissionController controller = mAdmissionController;
+        return (controller != null) ? controller.getLimit() : 0;
+    }
+
+    /**
+     * @return the number of requests shed with a 503 response because of overload.
+     */
+    public long getAdmissionRejectCount() {
+        AdmissionController controller = mAdmissionController;
+        return (controller != null) ? controller.getRejectCount() : 0;
+    }
+
+    /**
+     * @return the number of bytes held by pooled buffers across all servers.
+     */
+    public long getBufferMemoryUsed() {
+        return MemoryBudget.get().getUsed();
+    }
+
+    /**
+     * @return the largest number of bytes held by pooled buffers at any
+     * point.
+     */
+    public long getBufferMemoryHighWater() {
+        return MemoryBudget.get().getHighWater();
+    }
+
+    /**
+     * @return the number of connections refused because the buffer memory
+     * budget was exhausted.
+     */
+    public long getBufferMemoryRejectCount() {
+        return MemoryBudget.get().getRejectCount();
+    }
+
+    /**
+     * @return the number of open connections.
+     */
+    public int getConnectionCount() {
+        return mConnectionLimiter.getCount();
+    }
+
+    /**
+     * @return the number of connections refused because their remote address
+     * was at its connection limit.
+     */
+    public long getConnectionRejectCount() {
+        return mConnectionLimiter.getRejectCount();
+    }
+
+    /**
+     * @return the number of requests refused with a 429 response because a client exceeded its
+     * rate limit.
+     */
+    public long getRateLimitRejectCount() {
+        long count = 0;
+        if (mRateLimiter != null) {
+            count += mRateLimiter.getRejectCount();
+        }
+        if (mRouteRateLimiterMap != null) {
+            for (RateLimiter limiter : mRouteRateLimiterMap.values()) {
+                count += limiter.getRejectCount();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of SSL handshake task batches waiting for a worker
+     * thread, or 0 if SSL is not in use.
+     */
+    public int getSSLTaskQueueDepth() {
+        SSLTaskExecutor executor = mSSLTaskExecutor;
+        return (executor != null) ? executor.getQueueDepth() : 0;
+    }
+
+    /**
+     * @return the maximum observed SSL handshake task queue depth.
+     */
+    public int getSSLTaskQueueDepthHighWater() {
+        SSLTaskExecutor executor = mSSLTaskExecutor;
+        return (executor != null) ? executor.getQueueDepthHighWater() : 0;
+    }
+
+    /**
+     * @return the number of full SSL handshakes.
+     */
+    public long getSSLFullHandshakeCount() {
+        return mSSLHandshakeStats.getFullCount();
+    }
+
+    /**
+     * @return the number of abbreviated SSL handshakes, which resumed a cached session.
+     */
+    public long getSSLResumedHandshakeCount() {
+        return mSSLHandshakeStats.getResumedCount();
+    }
+
+    /**
+     * @return the number of SSL handshake task batches submitted.
+     */
+    public long getSSLTaskBatchCount() {
+        SSLTaskExecutor executor = mSSLTaskExecutor;
+        return (executor != null) ? executor.getBatchCount() : 0;
+    }
+
     private void handleConnectionClose(HttpConnection conn) {
+        // The address remains available after the socket closes, but fetch it
+        // first to be safe.
+        InetAddress remoteAddr =
+            conn.getAsyncConnection().socketChannel().socket().getInetAddress();
+
         // The HttpServer is at the top of the chain.  Thus, we start
         // closing for real after cleaning up.
         try {
@@ -189,28 +436,74 @@ public class HttpServer {
             // We've tried our best to clean up.  It's safe to continue.
         }
 
-        mConnectionSet.remove(conn);
+        if (mConnectionSet.remove(conn)) {
+            mConnectionLimiter.release(remoteAddr);
+        }
+
+        if (mIsAcceptPaused && !mIsDraining && mConnectionLimiter.isBelowLowWatermark()) {
+            resumeAccept();
+        }
     }
 
     /**
      * Starts the HTTP server and begins listening on the given address and
-     * port.  This only returns if stop() is called by another thread.
+     * port.  This only returns if stop() or stopGracefully() is called by
+     * another thread.
      */
     public void listenAndServe(String listenAddr, int port) throws IllegalArgumentException, IOException {
         InetSocketAddress sa = new InetSocketAddress(listenAddr, port);
 
-        mListenChan = ServerSocketChannel.open();
-        mListenChan.configureBlocking(false);
+        ServerSocketChannel chan = ServerSocketChannel.open();
+        if (mReusePort) {
+            chan.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
 
-        ServerSocket sock = mListenChan.socket();
+        ServerSocket sock = chan.socket();
         sock.bind(sa);
 
+        serve(chan);
+    }
+
+    /**
+     * Starts the HTTP server on chan, which must already be bound.  This is
+     * for listening sockets that are inherited from another process, such as
+     * System.inheritedChannel(), so that connections waiting in the backlog
+     * survive a restart.  This only returns if stop() or stopGracefully() is
+     * called by another thread.  After stopGracefully(), it returns once the
+     * drain finishes.  chan is closed on return.
+     */
+    public void serve(ServerSocketChannel chan) throws IOException {
+        mListenChan = chan;
+        mListenChan.configureBlocking(false);
+
         mSelector = Selector.open();
         mSelectTaskQueue = new SelectTaskQueue(mSelector);
+        mTimerWheel = new TimerWheel(Constants.TIMER_TICK_MILLIS, Constants.TIMER_WHEEL_SLOTS,
+                TimerWheel.nowMillis());
 
         mListenKey = mListenChan.register(mSelector, SelectionKey.OP_ACCEPT, mListenSelectorHandler);
+        mIsAcceptPaused = false;
+
+        if (mAdmissionTargetLagMillis != 0 || mAdmissionTargetLatencyMillis != 0) {
+            mAdmissionController = new AdmissionController(Constants.ADMISSION_INITIAL_LIMIT,
+                    Constants.ADMISSION_MIN_LIMIT, Constants.ADMISSION_MAX_LIMIT,
+                    mAdmissionTargetLagMillis, mAdmissionTargetLatencyMillis,
+                    Constants.ADMISSION_WINDOW_MILLIS, TimerWheel.nowMillis());
+        }
+
+        if (mSSLContext != null) {
+            mSSLTaskExecutor = new SSLTaskExecutor(mSSLTaskThreadCount);
+
+            if (mSSLSessionCacheSize >= 0) {
+                SSLUtils.configureSessionCache(mSSLContext, mSSLSessionCacheSize,
+                        mSSLSessionTimeoutSecs);
+            }
+        }
 
         mIsDone = false;
+        mIsDrainRequested = false;
+        mIsDraining = false;
+        mIsDrainExpired = false;
 
         while (true) {
             // The return value of select() (number of keys whose
@@ -223,12 +516,23 @@ public class HttpServer {
             //
             // 2) It might take an indefinite period of time to finish handling
             // connections before we get an empty selection result.
-            mSelector.select();
+            //
+            // The timeout wakes us for the next timer tick, if any timers are
+            // scheduled.
+            mSelector.select(mTimerWheel.getTimeoutMillis(mTimerWheel.getNowMillis()));
 
             if (mIsDone) {
                 break;
             }
 
+            if (mAdmissionController != null) {
+                mAdmissionController.startIteration(TimerWheel.nowMillis());
+            }
+
+            if (mIsDrainRequested && !mIsDraining) {
+                startDrain();
+            }
+
             // Handle any tasks that must run in the selector thread.
             do {
                 Runnable task = mSelectTaskQueue.poll();
@@ -251,19 +555,406 @@ public class HttpServer {
                 // Remove for the next selection loop.
                 iter.remove();
             }
+
+            // Fire timeouts after handling I/O so that connections that just
+            // became active are not closed.
+            mTimerWheel.advance(mTimerWheel.getNowMillis());
+
+            if (mAdmissionController != null) {
+                mAdmissionController.endIteration(TimerWheel.nowMillis());
+            }
+
+            if (mIsDraining && (mConnectionSet.isEmpty() || mIsDrainExpired)) {
+                if (!mConnectionSet.isEmpty()) {
+                    mLog.i(sTag, "drain deadline passed; closing " + mConnectionSet.size() +
+                            " connections");
+                }
+                break;
+            }
         }
 
         close();
     }
 
+    /**
+     * @return a RateLimiter for the given limit, or null if requestsPerSec is 0.
+     *
+     * @throws IllegalArgumentException if requestsPerSec is negative or burst is not positive.
+     */
+    private static RateLimiter makeRateLimiter(double requestsPerSec, int burst)
+            throws IllegalArgumentException {
+        if (requestsPerSec < 0 || burst <= 0) {
+            throw new IllegalArgumentException();
+        }
+        if (requestsPerSec == 0) {
+            return null;
+        }
+        return new RateLimiter(requestsPerSec, burst, Constants.RATE_LIMIT_SLOTS,
+                System.nanoTime());
+    }
+
+    /**
+     * Stops accepting connections until resumeAccept() is called.  Pending
+     * connections wait in the listen backlog.
+     */
+    private void pauseAccept() {
+        if (mIsAcceptPaused) {
+            return;
+        }
+        mLog.i(sTag, "pausing accept at " + mConnectionSet.size() + " connections");
+
+        mListenKey.interestOps(0);
+        mIsAcceptPaused = true;
+    }
+
+    /**
+     * Refuses a newly accepted connection without allocating connection
+     * state.  Plaintext clients are sent a best-effort 503 response; secure
+     * connections are simply closed, since no TLS session exists yet.
+     */
+    private void rejectConnection(SocketChannel chan) {
+        try {
+            if (mSSLContext == null) {
+                chan.configureBlocking(false);
+                chan.write(ByteBuffer.wrap(CannedResponses.SERVICE_UNAVAILABLE));
+            }
+        } catch (IOException e) {
+            // The connection is being closed anyway.
+        }
+
+        try {
+            chan.close();
+        } catch (IOException e) {
+            mLog.e(sTag, "could not close rejected channel, ignoring", e);
+        }
+    }
+
     public void registerHandler(String url, HttpHandler handler) {
         mHttpHandlerMap.put(url, handler);
     }
 
+    private void resumeAccept() {
+        mLog.i(sTag, "resuming accept at " + mConnectionSet.size() + " connections");
+
+        mListenKey.interestOps(SelectionKey.OP_ACCEPT);
+        mIsAcceptPaused = false;
+    }
+
+    /**
+     * Configures overload protection.  Each event loop limits its in-flight requests, and requests
+     * beyond the limit receive a 503 response with Retry-After instead of being handled.  The limit
+     * shrinks when an event loop iteration takes longer than targetLagMillis or the average request
+     * latency exceeds targetLatencyMillis, and grows slowly otherwise.  0 ignores the corresponding
+     * signal, and admission control is disabled if both are 0.  This must be called before
+     * listenAndServe().
+     *
+     * @throws IllegalArgumentException if either value is negative.
+     */
+    public void setAdmissionTargets(long targetLagMillis, long targetLatencyMillis)
+            throws IllegalArgumentException {
+        if (targetLagMillis < 0 || targetLatencyMillis < 0) {
+            throw new IllegalArgumentException();
+        }
+        mAdmissionTargetLagMillis = targetLagMillis;
+        mAdmissionTargetLatencyMillis = targetLatencyMillis;
+    }
+
+    /**
+     * Sets the limit in bytes for pooled buffers.  The budget is shared by
+     * all servers in the process.  New connections are refused with a 503
+     * once it is reached.
+     */
+    public void setBufferMemoryBudget(long bytes) {
+        MemoryBudget.get().setLimit(bytes);
+    }
+
+    /**
+     * Sets the time in millis allowed between reads of a request's message body.  0 disables the
+     * timeout.
+     *
+     * @throws IllegalArgumentException if millis is negative.
+     */
+    public void setBodyTimeout(long millis) throws IllegalArgumentException {
+        mTimeouts.setBodyMillis(millis);
+    }
+
+    /**
+     * Sets the time in millis from the start of each request or response phase before minimum
+     * data rates are enforced.  This lets slow starts catch up.
+     *
+     * @throws IllegalArgumentException if millis is negative.
+     */
+    public void setDataRateGracePeriod(long millis) throws IllegalArgumentException {
+        mTimeouts.setRateGraceMillis(millis);
+    }
+
+    /**
+     * Sets the time in millis allowed for receiving a request's start line and headers, measured
+     * from the request's first byte.  Clients that exceed it receive a 408 response.  0 disables
+     * the timeout.
+     *
+     * @throws IllegalArgumentException if millis is negative.
+     */
+    public void setHeaderTimeout(long millis) throws IllegalArgumentException {
+        mTimeouts.setHeaderMillis(millis);
+    }
+
+    /**
+     * Sets the time in millis that a connection may wait for a request, including keep-alive
+     * connections between requests, before it is closed.  Once the connection count passes half
+     * of the limit from setMaxConnections(), the timeout shrinks toward the minimum from
+     * setMinIdleTimeout().  0 disables the timeout.
+     *
+     * @throws IllegalArgumentException if millis is negative.
+     */
+    public void setIdleTimeout(long millis) throws IllegalArgumentException {
+        mTimeouts.setIdleMillis(millis);
+    }
+
     public void setLog(Log log) {
         mLog = log;
     }
 
+    /**
+     * Sets the number of requests that each persistent connection serves.  The last response
+     * carries "Connection: close".  0 means no limit.
+     *
+     * @throws IllegalArgumentException if count is negative.
+     */
+    public void setMaxKeepAliveRequests(int count) throws IllegalArgumentException {
+        mKeepAlivePolicy.setMaxRequests(count);
+    }
+
+    /**
+     * Limits the number of open connections.  The server stops accepting at maxConnections, leaving
+     * new clients in the listen backlog, and resumes once the count falls to lowWatermark.  0 means
+     * no limit.
+     *
+     * @throws IllegalArgumentException if a value is negative or lowWatermark is not below a
+     * non-zero maxConnections.
+     */
+    public void setMaxConnections(int maxConnections, int lowWatermark)
+            throws IllegalArgumentException {
+        mConnectionLimiter.setMaxConnections(maxConnections, lowWatermark);
+    }
+
+    /**
+     * Limits the number of open connections from each remote IP address.  Connections beyond the
+     * limit are refused with a 503 response.  0 means no limit.  This must be called before
+     * listenAndServe().
+     *
+     * @throws IllegalArgumentException if maxPerAddress is negative.
+     */
+    public void setMaxConnectionsPerAddress(int maxPerAddress) throws IllegalArgumentException {
+        mConnectionLimiter.setMaxPerAddress(maxPerAddress);
+    }
+
+    /**
+     * Limits the rate of requests from each remote IP address.  Requests beyond the limit receive
+     * a 429 response with Retry-After before any handler runs.  Clients are tracked in a table of
+     * fixed size, so the limit is approximate when there are very many of them.  A requestsPerSec
+     * of 0 disables the limit.  This must be called before listenAndServe().
+     *
+     * @param requestsPerSec the steady rate allowed for each address.
+     * @param burst the number of requests that an address may send at once.
+     *
+     * @throws IllegalArgumentException if requestsPerSec is negative or burst is not positive.
+     */
+    public void setRateLimit(double requestsPerSec, int burst) throws IllegalArgumentException {
+        mRateLimiter = makeRateLimiter(requestsPerSec, burst);
+    }
+
+    /**
+     * Limits the rate of requests for url from each remote IP address, in addition to any limit
+     * from setRateLimit().  See setRateLimit() for details.
+     *
+     * @throws IllegalArgumentException if requestsPerSec is negative or burst is not positive.
+     */
+    public void setRouteRateLimit(String url, double requestsPerSec, int burst)
+            throws IllegalArgumentException {
+        RateLimiter limiter = makeRateLimiter(requestsPerSec, burst);
+        if (limiter == null) {
+            if (mRouteRateLimiterMap != null) {
+                mRouteRateLimiterMap.remove(url);
+            }
+            return;
+        }
+
+        if (mRouteRateLimiterMap == null) {
+            mRouteRateLimiterMap = new HashMap<String, RateLimiter>();
+        }
+        mRouteRateLimiterMap.put(url, limiter);
+    }
+
+    /**
+     * Enables SO_REUSEPORT on the socket bound by listenAndServe(), which lets a new process bind
+     * the same address and port while the old one drains with stopGracefully().  The kernel
+     * spreads new connections across both listeners.  listenAndServe() throws
+     * UnsupportedOperationException if the platform lacks SO_REUSEPORT.  This must be called
+     * before listenAndServe().
+     */
+    public void setReusePort(boolean reusePort) {
+        mReusePort = reusePort;
+    }
+
+    /**
+     * Sets the idle timeout in millis for keep-alive connections when the server is at its
+     * connection limit.  See setIdleTimeout().
+     *
+     * @throws IllegalArgumentException if millis is not positive.
+     */
+    public void setMinIdleTimeout(long millis) throws IllegalArgumentException {
+        mKeepAlivePolicy.setMinIdleMillis(millis);
+    }
+
+    /**
+     * Sets the minimum average rate in bytes per second at which clients must send a request's
+     * headers and body once the grace period passes.  Slower clients, such as those that trickle
+     * headers to hold connections open, receive a 408 response and are disconnected.  0 disables
+     * the check.
+     *
+     * @throws IllegalArgumentException if bytesPerSec is negative.
+     */
+    public void setMinRecvRate(long bytesPerSec) throws IllegalArgumentException {
+        mTimeouts.setMinRecvRate(bytesPerSec);
+    }
+
+    /**
+     * Sets the minimum average rate in bytes per second at which clients must read responses once
+     * the grace period passes.  Slower clients are disconnected.  0 disables the check.
+     *
+     * @throws IllegalArgumentException if bytesPerSec is negative.
+     */
+    public void setMinSendRate(long bytesPerSec) throws IllegalArgumentException {
+        mTimeouts.setMinSendRate(bytesPerSec);
+    }
+
+    /**
+     * Sets the time in millis that a response send may go without progress (e.g., because the
+     * client stopped reading) before the connection is closed.  0 disables the timeout.
+     *
+     * @throws IllegalArgumentException if millis is negative.
+     */
+    public void setSendTimeout(long millis) throws IllegalArgumentException {
+        mTimeouts.setSendMillis(millis);
+    }
+
+    /**
+     * Configures the SSL session cache, which lets returning clients resume sessions with an
+     * abbreviated handshake.  The JDK defaults are used otherwise.  This must be called before
+     * listenAndServe().
+     *
+     * @param cacheSize the maximum number of cached sessions.  0 means no limit.
+     * @param timeoutSecs the lifetime of cached sessions in seconds.  0 means no limit.
+     *
+     * @throws IllegalArgumentException if either value is negative.
+     */
+    public void setSSLSessionCache(int cacheSize, int timeoutSecs)
+            throws IllegalArgumentException {
+        if (cacheSize < 0 || timeoutSecs < 0) {
+            throw new IllegalArgumentException();
+        }
+        mSSLSessionCacheSize = cacheSize;
+        mSSLSessionTimeoutSecs = timeoutSecs;
+    }
+
+    /**
+     * Enables or disables stateless TLS session tickets for the process.  See
+     * SSLUtils.setSessionTicketsEnabled() for caveats.
+     */
+    public static void setSSLSessionTicketsEnabled(boolean enabled) {
+        SSLUtils.setSessionTicketsEnabled(enabled);
+    }
+
+    /**
+     * Sets the number of bytes that each TLS connection sends in small records, which fit in a
+     * single TCP segment, before switching to full-sized 16K records.  Small records let clients
+     * decrypt the start of a response sooner.  Connections return to small records after idling
+     * for a second.  0 always uses full-sized records.
+     *
+     * @throws IllegalArgumentException if bytes is negative.
+     */
+    public void setTLSRecordRampBytes(int bytes) throws IllegalArgumentException {
+        if (bytes < 0) {
+            throw new IllegalArgumentException();
+        }
+        mTLSRecordRampBytes = bytes;
+    }
+
+    /**
+     * Bounds the work done for each connection per event loop iteration.  Once a connection has
+     * handled maxRequests pipelined requests or maxBytes of request data, its remaining requests
+     * wait for the next iteration so that a busy client cannot delay the others.  0 disables each
+     * budget.  This must be called before listenAndServe().
+     *
+     * @throws IllegalArgumentException if a value is negative.
+     */
+    public void setWorkBudget(int maxRequests, int maxBytes) throws IllegalArgumentException {
+        if (maxRequests < 0 || maxBytes < 0) {
+            throw new IllegalArgumentException();
+        }
+        mMaxRoundRequests = maxRequests;
+        mMaxRoundBytes = maxBytes;
+    }
+
+    /**
+     * Sets the number of threads that run SSL handshake tasks (the key exchange work).  0 runs
+     * tasks inline in the event loop.  The default is one per processor.  This must be called
+     * before listenAndServe().
+     *
+     * @throws IllegalArgumentException if count is negative.
+     */
+    public void setSSLTaskThreadCount(int count) throws IllegalArgumentException {
+        if (count < 0) {
+            throw new IllegalArgumentException();
+        }
+        mSSLTaskThreadCount = count;
+    }
+
+    /**
+     * Selects the allocator for SSL engine buffers.  The default is POOLED.
+     * This must be called before listenAndServe().
+     */
+    public void setSSLBufferType(SSLBufferType type) {
+        switch (type) {
+            case DIRECT:
+                mSSLBufferFactory = DirectByteBufferFactory.get();
+                break;
+
+            case HEAP:
+                mSSLBufferFactory = HeapByteBufferFactory.get();
+                break;
+
+            case POOLED:
+                mSSLBufferFactory = PooledByteBufferFactory.get();
+                break;
+        }
+    }
+
+    /**
+     * Stops accepting connections and closes each connection once its in-flight request has been
+     * answered.  Connections that are still open after the deadline are closed.
+     */
+    private void startDrain() {
+        mLog.i(sTag, "draining " + mConnectionSet.size() + " connections");
+
+        mIsDraining = true;
+
+        try {
+            // This also cancels the key.
+            mListenChan.close();
+        } catch (IOException e) {
+            mLog.e(sTag, "could not close listening channel, continuing", e);
+        }
+
+        mTimerWheel.schedule(mDrainTimer, mDrainMillis, mTimerWheel.getNowMillis());
+
+        // Idle connections close immediately, which modifies mConnectionSet.
+        for (HttpConnection conn : new ArrayList<HttpConnection>(mConnectionSet)) {
+            conn.drain();
+        }
+    }
+
     /**
      * Threadsafe method for stopping the HttpServer.
      */
@@ -272,6 +963,23 @@ public class HttpServer {
         mSelector.wakeup();
     }
 
+    /**
+     * Threadsafe method for stopping the HttpServer without cutting off in-flight requests.  The
+     * server stops accepting connections, and each connection closes after answering its current
+     * request, whose response carries "Connection: close".  listenAndServe() returns once all
+     * connections have closed or drainMillis passes, whichever is first.
+     *
+     * @throws IllegalArgumentException if drainMillis is negative.
+     */
+    public synchronized void stopGracefully(long drainMillis) throws IllegalArgumentException {
+        if (drainMillis < 0) {
+            throw new IllegalArgumentException();
+        }
+        mDrainMillis = drainMillis;
+        mIsDrainRequested = true;
+        mSelector.wakeup();
+    }
+
     public void unregisterHandler(String url) {
         mHttpHandlerMap.remove(url);
     }
@@ -42,6 +42,8 @@ class HttpStatus {
     public static final int UNSUPPORTED_MEDIA_TYPE = 415;
     public static final int REQUESTED_RANGE_NOT_SATISFIABLE = 416;
     public static final int EXPECTATION_FAILED = 417;
+    // RFC 6585.
+    public static final int TOO_MANY_REQUESTS = 429;
 
     public static final int INTERNAL_SERVER_ERROR = 500;
     public static final int NOT_IMPLEMENTED = 501;
@@ -0,0 +1,95 @@
+// Copyright 2014, Kevin Ko <kevin@faveset.com>. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.faveset.mahttpd;
+
+/**
+ * Decides how long persistent connections are kept.  Each connection serves
+ * a limited number of requests, and the idle timeout between requests
+ * shrinks as the server approaches its connection limit so that idle
+ * keep-alive connections make room for new clients.
+ *
+ * This is shared by all connections of a server.  The settings should only
+ * be modified before the server starts.
+ */
+class KeepAlivePolicy {
+    private final ConnectionTimeouts mTimeouts;
+
+    private final ConnectionLimiter mLimiter;
+
+    // 0 means no limit.
+    private int mMaxRequests = Constants.MAX_KEEP_ALIVE_REQUESTS;
+
+    private long mMinIdleMillis = Constants.MIN_IDLE_TIMEOUT_MILLIS;
+
+    /**
+     * @param timeouts supplies the idle timeout for a lightly loaded server.
+     * @param limiter supplies the connection count and limit.
+     */
+    public KeepAlivePolicy(ConnectionTimeouts timeouts, ConnectionLimiter limiter) {
+        mTimeouts = timeouts;
+        mLimiter = limiter;
+    }
+
+    /**
+     * @return the idle timeout in millis for the current load, or 0 if idle
+     * timeouts are disabled.  This is the configured idle timeout until the
+     * connection count passes Constants.IDLE_TIMEOUT_SHRINK_LOAD of the
+     * limit.  It then falls linearly to the minimum at the limit.
+     */
+    public long getIdleMillis() {
+        long idleMillis = mTimeouts.getIdleMillis();
+        int maxConnections = mLimiter.getMaxConnections();
+        if (idleMillis <= mMinIdleMillis || maxConnections == 0) {
+            return idleMillis;
+        }
+
+        int count = mLimiter.getCount();
+        int shrinkCount = (int) (maxConnections * Constants.IDLE_TIMEOUT_SHRINK_LOAD);
+        if (count <= shrinkCount) {
+            return idleMillis;
+        }
+        if (count >= maxConnections) {
+            return mMinIdleMillis;
+        }
+
+        long rangeMillis = idleMillis - mMinIdleMillis;
+        return idleMillis - rangeMillis * (count - shrinkCount) / (maxConnections - shrinkCount);
+    }
+
+    public int getMaxRequests() {
+        return mMaxRequests;
+    }
+
+    public long getMinIdleMillis() {
+        return mMinIdleMillis;
+    }
+
+    /**
+     * @param count the number of requests that each connection serves
+     * before closing.  0 means no limit.
+     *
+     * @throws IllegalArgumentException if count is negative.
+     */
+    public void setMaxRequests(int count) throws IllegalArgumentException {
+        if (count < 0) {
+            throw new IllegalArgumentException();
+        }
+        mMaxRequests = count;
+    }
+
+    /**
+     * @param millis the idle timeout at the connection limit.  This must be
+     * positive, since an idle timeout of 0 would disable the timeout when it
+     * is needed most.
+     *
+     * @throws IllegalArgumentException if millis is not positive.
+     */
+    public void setMinIdleMillis(long millis) throws IllegalArgumentException {
+        if (millis <= 0) {
+            throw new IllegalArgumentException();
+        }
+        mMinIdleMillis = millis;
+    }
+}
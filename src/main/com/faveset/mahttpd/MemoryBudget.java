@@ -0,0 +1,130 @@
+// Copyright 2014, Kevin Ko <kevin@faveset.com>. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.faveset.mahttpd;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the bytes held by live buffers against a limit.  Reservations
+ * never exceed the limit.  The server also consults the budget before
+ * admitting new connections so that a connection spike is refused up front
+ * rather than starved of buffers.
+ *
+ * All methods are thread-safe.
+ */
+class MemoryBudget {
+    // This is for the singleton budget.
+    private static MemoryBudget sMemoryBudget;
+
+    private volatile long mLimit;
+
+    private final AtomicLong mUsed = new AtomicLong();
+
+    private final AtomicLong mHighWater = new AtomicLong();
+
+    private final AtomicLong mRejectCount = new AtomicLong();
+
+    /**
+     * @param limit the budget in bytes.
+     */
+    public MemoryBudget(long limit) {
+        mLimit = limit;
+    }
+
+    /**
+     * Returns a shared singleton budget with a limit of
+     * Constants.BUFFER_MEMORY_BUDGET bytes.
+     */
+    public static synchronized MemoryBudget get() {
+        if (sMemoryBudget == null) {
+            sMemoryBudget = new MemoryBudget(Constants.BUFFER_MEMORY_BUDGET);
+        }
+        return sMemoryBudget;
+    }
+
+    /**
+     * @return the largest number of bytes in use at any point.
+     */
+    public long getHighWater() {
+        return mHighWater.get();
+    }
+
+    public long getLimit() {
+        return mLimit;
+    }
+
+    /**
+     * @return the number of admissions refused because of the budget.
+     */
+    public long getRejectCount() {
+        return mRejectCount.get();
+    }
+
+    /**
+     * @return the number of bytes currently in use.
+     */
+    public long getUsed() {
+        return mUsed.get();
+    }
+
+    /**
+     * @return true if bytes more bytes can be used without exceeding the
+     * limit.
+     */
+    public boolean hasRoom(long bytes) {
+        return (mUsed.get() + bytes <= mLimit);
+    }
+
+    /**
+     * Records that an admission was refused.
+     */
+    public void recordReject() {
+        mRejectCount.incrementAndGet();
+    }
+
+    /**
+     * Returns bytes previously passed to reserve().
+     */
+    public void release(long bytes) {
+        mUsed.addAndGet(-bytes);
+    }
+
+    /**
+     * Accounts for bytes of newly used memory.
+     *
+     * @return false if bytes would exceed the limit, in which case nothing
+     * is reserved.
+     */
+    public boolean reserve(long bytes) {
+        long used;
+        do {
+            long prevUsed = mUsed.get();
+            used = prevUsed + bytes;
+            if (used > mLimit) {
+                return false;
+            }
+            if (mUsed.compareAndSet(prevUsed, used)) {
+                break;
+            }
+        } while (true);
+
+        long highWater;
+        do {
+            highWater = mHighWater.get();
+            if (used <= highWater) {
+                return true;
+            }
+        } while (!mHighWater.compareAndSet(highWater, used));
+
+        return true;
+    }
+
+    /**
+     * Changes the limit.  This does not affect memory already in use.
+     */
+    public void setLimit(long limit) {
+        mLimit = limit;
+    }
+}
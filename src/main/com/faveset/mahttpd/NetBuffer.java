@@ -19,6 +19,10 @@ class NetBuffer implements NetReader {
         READ,
     }
 
+    // Stands in for buffers that have been released.  It has no capacity, so
+    // it is never modified when shared.
+    private static final ByteBuffer sEmptyBuffer = ByteBuffer.allocate(0);
+
     private State mState;
 
     // Tracks the starting position of the last unread data.  This persists
@@ -154,6 +158,13 @@ class NetBuffer implements NetReader {
         return mBuf;
     }
 
+    /**
+     * @return true if the buffer is configured for appending.
+     */
+    public boolean isAppending() {
+        return (mState == State.APPEND);
+    }
+
     /**
      * @return true if the buffer's contents are all at the start of the buffer.
      */
@@ -209,6 +220,13 @@ class NetBuffer implements NetReader {
         return (pos >= limit);
     }
 
+    /**
+     * @return true if the underlying buffer has been released via release().
+     */
+    public boolean isReleased() {
+        return (mBuf == sEmptyBuffer);
+    }
+
     /**
      * @return true if the buffer is full with respect to future appends
      */
@@ -249,6 +267,7 @@ class NetBuffer implements NetReader {
             return;
         }
 
+        ByteBuffer oldBuf = mBuf;
         ByteBuffer newBuf = factory.make(size);
 
         if (mState == State.APPEND) {
@@ -268,6 +287,28 @@ class NetBuffer implements NetReader {
 
         mBuf = newBuf;
         mReadStartPos = 0;
+
+        factory.release(oldBuf);
+    }
+
+    /**
+     * Returns the underlying buffer to factory and replaces it with an empty
+     * buffer of zero capacity.  The caller must make sure that the buffer is
+     * empty.  Use resize() to allocate a new buffer.
+     *
+     * @param factory the factory that made the underlying buffer.
+     */
+    public void release(ByteBufferFactory factory) {
+        if (isReleased()) {
+            return;
+        }
+
+        ByteBuffer oldBuf = mBuf;
+
+        mBuf = sEmptyBuffer;
+        mReadStartPos = 0;
+
+        factory.release(oldBuf);
     }
 
     /**
@@ -283,6 +324,8 @@ class NetBuffer implements NetReader {
             return;
         }
 
+        ByteBuffer oldBuf = mBuf;
+
         mBuf = factory.make(size);
         mReadStartPos = 0;
 
@@ -290,6 +333,8 @@ class NetBuffer implements NetReader {
             // The newly resized buffer is empty.
             mBuf.limit(0);
         }
+
+        factory.release(oldBuf);
     }
 
     /**
@@ -387,6 +432,24 @@ class NetBuffer implements NetReader {
         return engine.wrap(mBuf, dest.getByteBuffer());
     }
 
+    @Override
+    public SSLEngineResult wrap(SSLEngine engine, NetBuffer dest, int maxLen)
+            throws SSLException {
+        flipRead();
+        dest.flipAppend();
+
+        int limit = mBuf.limit();
+        if (mBuf.remaining() > maxLen) {
+            mBuf.limit(mBuf.position() + maxLen);
+        }
+
+        try {
+            return engine.wrap(mBuf, dest.getByteBuffer());
+        } finally {
+            mBuf.limit(limit);
+        }
+    }
+
     /**
      * Variant of wrap that doesn't prepare "this" or dest.
      *
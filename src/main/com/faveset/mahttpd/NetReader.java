@@ -20,4 +20,10 @@ interface NetReader {
     void updateRead();
 
     SSLEngineResult wrap(SSLEngine engine, NetBuffer dest) throws SSLException;
+
+    /**
+     * A variant of wrap that consumes at most maxLen bytes, which bounds the size of the
+     * resulting record.
+     */
+    SSLEngineResult wrap(SSLEngine engine, NetBuffer dest, int maxLen) throws SSLException;
 }
@@ -35,6 +35,16 @@ class NonBlockingConnection implements AsyncConnection {
     private SocketChannel mChan;
     private SelectionKey mKey;
 
+    // The interest ops that the connection wants.  Changes are applied to
+    // mKey by updateInterestOps(), which waits until the end of onSelect()
+    // while handling a select.  Thus, ops that are cleared and set again in
+    // one pass, as when a response is sent between receives, leave the key
+    // untouched.
+    private int mInterestOps;
+
+    // True while onSelect() is running.
+    private boolean mIsSelecting;
+
     private Pool<ByteBuffer> mPool;
 
     private PoolEntry<ByteBuffer> mInBufferInternalEntry;
@@ -52,7 +62,11 @@ class NonBlockingConnection implements AsyncConnection {
 
     private ByteBuffer mOutBufferInternal;
 
+    // Only the range [mExternalOutBuffersOffset, mExternalOutBuffersEnd) is
+    // sent.
     private ByteBuffer[] mExternalOutBuffers;
+    private int mExternalOutBuffersOffset;
+    private int mExternalOutBuffersEnd;
     private long mExternalOutBuffersRemaining;
 
     private OnCloseCallback mOnCloseCallback;
@@ -81,6 +95,10 @@ class NonBlockingConnection implements AsyncConnection {
 
     private SendType mSendType;
 
+    // Total bytes read from and written to the channel.
+    private long mRecvCount;
+    private long mSentCount;
+
     /**
      * @param inBuf the internal input ByteBuffer to use.
      * @param outBuf the internal output ByteBuffer to use.
@@ -150,8 +168,7 @@ class NonBlockingConnection implements AsyncConnection {
 
         mInBuffer = null;
 
-        int newOps = mKey.interestOps() & ~SelectionKey.OP_READ;
-        mKey.interestOps(newOps);
+        setInterestOps(mInterestOps & ~SelectionKey.OP_READ);
 
         return result;
     }
@@ -171,8 +188,7 @@ class NonBlockingConnection implements AsyncConnection {
 
         mOnSendCallback = null;
 
-        int newOps = mKey.interestOps() & ~SelectionKey.OP_WRITE;
-        mKey.interestOps(newOps);
+        setInterestOps(mInterestOps & ~SelectionKey.OP_WRITE);
 
         mSendType = SendType.INTERNAL;
         mOutBuffer = null;
@@ -205,6 +221,9 @@ class NonBlockingConnection implements AsyncConnection {
             mInBufferInternal = null;
             mOutBufferInternalEntry = mPool.release(mOutBufferInternalEntry);
             mOutBufferInternal = null;
+
+            // Prevent buffers from being reacquired.
+            mPool = null;
         }
 
         // Unregister callbacks to avoid reference cycles.
@@ -215,25 +234,50 @@ class NonBlockingConnection implements AsyncConnection {
     }
 
     /**
-     * @return the internal recv buffer.
+     * @return the internal recv buffer, which is reacquired from the pool if
+     * it was released.
      */
     public ByteBuffer getInBuffer() {
+        if (mInBufferInternal == null && mPool != null) {
+            mInBufferInternalEntry = mPool.allocate();
+            mInBufferInternal = mInBufferInternalEntry.get();
+        }
         return mInBufferInternal;
     }
 
     /**
-     * @return the internal send buffer.
+     * @return the internal send buffer, which is reacquired from the pool if
+     * it was released.
      */
     @Override
     public ByteBuffer getOutBuffer() {
+        if (mOutBufferInternal == null && mPool != null) {
+            mOutBufferInternalEntry = mPool.allocate();
+            mOutBufferInternal = mOutBufferInternalEntry.get();
+        }
         return mOutBufferInternal;
     }
 
+    @Override
+    public long getRecvCount() {
+        return mRecvCount;
+    }
+
+    @Override
+    public long getSentCount() {
+        return mSentCount;
+    }
+
     /**
      * Reads as much data as possible into the buffer and then triggers any
      * callbacks.
      */
     private void handleRead() throws IOException {
+        if (mInBuffer == null) {
+            // The internal buffer was released while idle.
+            mInBuffer = getInBuffer();
+        }
+
         if (mIsRecvPersistent) {
             handleReadPersistent();
             return;
@@ -254,6 +298,7 @@ class NonBlockingConnection implements AsyncConnection {
             // Wait for another round.
             return;
         }
+        mRecvCount += len;
 
         // Ensure that the callback accesses the buffer contents from the start.
         mInBuffer.flip();
@@ -293,6 +338,7 @@ class NonBlockingConnection implements AsyncConnection {
             // Wait for another round.
             return;
         }
+        mRecvCount += len;
 
         // Ensure that the callback accesses the buffer contents from the start.
         mInBuffer.flip();
@@ -311,10 +357,16 @@ class NonBlockingConnection implements AsyncConnection {
      */
     private void handleWrite() throws IOException {
         if (mSendType == SendType.EXTERNAL_MULTIPLE) {
-            long len = mChan.write(mExternalOutBuffers);
+            long len = mChan.write(mExternalOutBuffers, mExternalOutBuffersOffset,
+                    mExternalOutBuffersEnd - mExternalOutBuffersOffset);
+            mSentCount += len;
             mExternalOutBuffersRemaining -= len;
             if (mExternalOutBuffersRemaining > 0) {
-                // We need to continue later.
+                // Skip drained buffers so that later writes need not
+                // rescan them.  We need to continue later.
+                while (!mExternalOutBuffers[mExternalOutBuffersOffset].hasRemaining()) {
+                    mExternalOutBuffersOffset++;
+                }
                 return;
             }
 
@@ -336,6 +388,7 @@ class NonBlockingConnection implements AsyncConnection {
         }
 
         int len = mChan.write(mOutBuffer);
+        mSentCount += len;
         if (len == 0) {
             // The selection key hint was incorrect.  Just wait for another
             // round.
@@ -386,6 +439,7 @@ class NonBlockingConnection implements AsyncConnection {
         // This is a fresh select operation, so reset the op count.
         mSeqOpCount = 0;
 
+        mIsSelecting = true;
         try {
             SelectionKey key = mKey;
 
@@ -394,7 +448,7 @@ class NonBlockingConnection implements AsyncConnection {
             // the ready set.  By checking here, we eliminate the need
             // for one to remove the key from the set at every
             // select iteration, which is more expensive than a bitwise op.
-            int ops = key.interestOps();
+            int ops = mInterestOps;
             if (key.isValid() &&
                     (ops & SelectionKey.OP_READ) != 0 &&
                     key.isReadable()) {
@@ -410,7 +464,11 @@ class NonBlockingConnection implements AsyncConnection {
             if (mOnErrorCallback != null) {
                 mOnErrorCallback.onError(this, e.toString());
             }
+        } finally {
+            mIsSelecting = false;
         }
+
+        updateInterestOps();
     }
 
     /**
@@ -430,7 +488,7 @@ class NonBlockingConnection implements AsyncConnection {
      */
     @Override
     public void recv(OnRecvCallback callback) throws IllegalArgumentException {
-        mInBuffer = mInBufferInternal;
+        mInBuffer = getInBuffer();
         mInBuffer.clear();
 
         recvImpl(callback, false);
@@ -462,6 +520,7 @@ class NonBlockingConnection implements AsyncConnection {
     /**
      * This uses the internal in buffer by default.
      */
+    @Override
     public void recvAppendPersistent(OnRecvCallback callback) throws IllegalArgumentException {
         recvAppendPersistent(callback, mInBufferInternal);
     }
@@ -501,8 +560,7 @@ class NonBlockingConnection implements AsyncConnection {
         }
 
         if (mOnRecvCallback == null) {
-            int newOps = mKey.interestOps() | SelectionKey.OP_READ;
-            mKey.interestOps(newOps);
+            setInterestOps(mInterestOps | SelectionKey.OP_READ);
         }
 
         mOnRecvCallback = callback;
@@ -551,16 +609,65 @@ class NonBlockingConnection implements AsyncConnection {
     }
 
     /**
-     * Schedules the selector to listen for write opportunities and assigns
-     * mOnSendCallback.
+     * Returns the internal buffers to the pool if they hold no data.  This
+     * only applies when the connection was constructed with a pool.  An
+     * internal in buffer that is released during a recv will be reacquired
+     * when data arrives.
+     *
+     * Nothing is released while a send is outstanding, since the send might
+     * be reading from a duplicate of the out buffer.
      */
-    private void registerSendCallback(OnSendCallback callback) {
-        if (mOnSendCallback == null) {
-            int newOps = mKey.interestOps() | SelectionKey.OP_WRITE;
-            mKey.interestOps(newOps);
+    @Override
+    public void releaseIdleBuffers() {
+        if (mPool == null || mOnSendCallback != null) {
+            return;
+        }
+
+        if (mInBufferInternalEntry != null && isInBufferIdle()) {
+            if (mInBuffer == mInBufferInternal) {
+                mInBuffer = null;
+            }
+            mInBufferInternalEntry = mPool.release(mInBufferInternalEntry);
+            mInBufferInternal = null;
         }
 
+        if (mOutBufferInternalEntry != null && mOutBufferInternal.position() == 0) {
+            mOutBufferInternalEntry = mPool.release(mOutBufferInternalEntry);
+            mOutBufferInternal = null;
+        }
+    }
+
+    /**
+     * @return true if the internal in buffer holds no data that must be
+     * preserved.
+     */
+    private boolean isInBufferIdle() {
+        if (mInBuffer == mInBufferInternal && !mIsRecvAppend) {
+            // The buffer is cleared before each read.
+            return true;
+        }
+
+        // Otherwise, any unconsumed data precedes the position.
+        return (mInBufferInternal.position() == 0);
+    }
+
+    /**
+     * Assigns mOnSendCallback and tries sending immediately.  The selector
+     * only listens for write opportunities if data remains afterward, so
+     * sends that complete immediately never touch the key's write interest.
+     * Send-related fields must already be prepared.
+     */
+    private void registerSendCallback(OnSendCallback callback) {
         mOnSendCallback = callback;
+
+        // To minimize latency, try sending immediately.
+        sendImmediately();
+
+        // The send might have completed, possibly with a new send scheduled by
+        // the callback.
+        if (mOnSendCallback != null) {
+            setInterestOps(mInterestOps | SelectionKey.OP_WRITE);
+        }
     }
 
     /**
@@ -573,7 +680,7 @@ class NonBlockingConnection implements AsyncConnection {
      */
     @Override
     public void send(OnSendCallback callback) throws IllegalArgumentException {
-        sendImpl(SendType.INTERNAL, mOutBufferInternal, callback);
+        sendImpl(SendType.INTERNAL, getOutBuffer(), callback);
     }
 
     /**
@@ -609,11 +716,32 @@ class NonBlockingConnection implements AsyncConnection {
             throw new IllegalArgumentException();
         }
 
+        send(callback, bufs, 0, bufs.length, bufsRemaining);
+    }
+
+    /**
+     * A variant of send() that sends length ByteBuffers of bufs, starting at
+     * offset.  The callback is not persistent.
+     *
+     * @param bufsRemaining is the total number of bytes remaining for the
+     * given range of bufs.  Set to 0 to calculate automatically.
+     *
+     * @throws IllegalArgumentException if callback is null.
+     */
+    @Override
+    public void send(OnSendCallback callback, ByteBuffer[] bufs, int offset, int length,
+            long bufsRemaining) throws IllegalArgumentException {
+        if (callback == null) {
+            throw new IllegalArgumentException();
+        }
+
         mSendType = SendType.EXTERNAL_MULTIPLE;
         mExternalOutBuffers = bufs;
+        mExternalOutBuffersOffset = offset;
+        mExternalOutBuffersEnd = offset + length;
 
         if (bufsRemaining == 0) {
-            for (int ii = 0; ii < bufs.length; ii++) {
+            for (int ii = offset; ii < mExternalOutBuffersEnd; ii++) {
                 bufsRemaining += bufs[ii].remaining();
             }
         }
@@ -627,9 +755,6 @@ class NonBlockingConnection implements AsyncConnection {
         mExternalOutBuffersRemaining = bufsRemaining;
 
         registerSendCallback(callback);
-
-        // To minimize latency, try sending immediately.
-        sendImmediately();
     }
 
     /**
@@ -681,18 +806,31 @@ class NonBlockingConnection implements AsyncConnection {
         }
 
         registerSendCallback(callback);
+    }
 
-        // To minimize latency, try sending immediately.
-        sendImmediately();
+    /**
+     * Records ops as the key's interest ops.  They are applied immediately
+     * unless a select is being handled.
+     */
+    private void setInterestOps(int ops) {
+        mInterestOps = ops;
+
+        if (!mIsSelecting) {
+            updateInterestOps();
+        }
     }
 
     /**
-     * Replaces the internal in buffer.
+     * Replaces the internal in buffer.  An outstanding receive into the
+     * internal buffer will continue with buf.
      */
     public void setInBufferInternal(ByteBuffer buf) {
         if (mInBufferInternalEntry != null) {
             mInBufferInternalEntry = mPool.release(mInBufferInternalEntry);
         }
+        if (mInBuffer == mInBufferInternal) {
+            mInBuffer = buf;
+        }
         mInBufferInternal = buf;
     }
 
@@ -717,7 +855,7 @@ class NonBlockingConnection implements AsyncConnection {
      */
     @Override
     public void sendPartial(OnSendCallback callback) {
-        sendImpl(SendType.INTERNAL_PARTIAL, mOutBufferInternal, callback);
+        sendImpl(SendType.INTERNAL_PARTIAL, getOutBuffer(), callback);
     }
 
     /**
@@ -751,4 +889,14 @@ class NonBlockingConnection implements AsyncConnection {
     public SocketChannel socketChannel() {
         return mChan;
     }
+
+    /**
+     * Applies mInterestOps to the selection key if they differ.
+     */
+    private void updateInterestOps() {
+        // A callback might have closed the connection, which cancels the key.
+        if (mKey.isValid() && mKey.interestOps() != mInterestOps) {
+            mKey.interestOps(mInterestOps);
+        }
+    }
 }
@@ -8,7 +8,7 @@ import java.nio.ByteBuffer;
 
 /**
  * This extension updates an associated NonBlockingConnection's in buffer
- * when the buffer is resized.
+ * when the buffer is resized or released.
  *
  * It uses the connection's internal ByteBuffer initially.
  */
@@ -25,6 +25,12 @@ class NonBlockingConnectionInNetBuffer extends NetBuffer {
         mConn = conn;
     }
 
+    @Override
+    public void release(ByteBufferFactory factory) {
+        super.release(factory);
+        mConn.setInBufferInternal(getByteBuffer());
+    }
+
     @Override
     public void resize(ByteBufferFactory factory, int size) {
         super.resize(factory, size);
@@ -4,8 +4,17 @@
 
 package com.faveset.mahttpd;
 
+/**
+ * A pool of reusable values.  An entry from allocate() belongs to the caller
+ * until it is passed to release(), after which the caller must not use it.
+ * Releasing an entry more than once is a bug.  Pools ignore the extra
+ * releases rather than hand the entry to two owners.
+ */
 interface Pool<T> {
     PoolEntry<T> allocate();
 
+    /**
+     * @return null, so that callers can clear their reference.
+     */
     PoolEntry<T> release(PoolEntry<T> entry);
 }
@@ -4,11 +4,20 @@
 
 package com.faveset.mahttpd;
 
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 class PoolEntry<T> {
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<PoolEntry> sIsFreeUpdater =
+        AtomicIntegerFieldUpdater.newUpdater(PoolEntry.class, "mIsFree");
+
     private int mTag;
 
     private T mValue;
 
+    // 1 if the entry has been released and not allocated since.
+    private volatile int mIsFree;
+
     PoolEntry(int tag, T v) {
         mTag = tag;
         mValue = v;
@@ -22,4 +31,20 @@ class PoolEntry<T> {
     public int hashCode() {
         return mTag;
     }
+
+    /**
+     * Marks the entry as belonging to a caller of allocate().
+     */
+    void markAllocated() {
+        mIsFree = 0;
+    }
+
+    /**
+     * Marks the entry as released.
+     *
+     * @return false if the entry was already released.
+     */
+    boolean markFree() {
+        return sIsFreeUpdater.compareAndSet(this, 0, 1);
+    }
 }
@@ -0,0 +1,83 @@
+// Copyright 2014, Kevin Ko <kevin@faveset.com>. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.faveset.mahttpd;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+
+/**
+ * A ByteBufferFactory that makes buffers from a SlabAllocator so that
+ * released buffers are recycled across connections.  Buffers may be larger
+ * than requested, since they come from the smallest size class that fits.
+ * Requests larger than the largest size class are allocated directly and
+ * left to the GC.
+ *
+ * The allocator's entry for each outstanding buffer is kept by identity, so
+ * release() returns the original entry without allocating.
+ *
+ * This is thread-safe.
+ */
+class PooledByteBufferFactory implements ByteBufferFactory {
+    private static PooledByteBufferFactory sFactory;
+
+    private final SlabAllocator mAllocator;
+
+    // Maps outstanding buffers to their entries.  ByteBuffer.equals()
+    // compares contents, so this must use identity.  Guarded by itself.
+    private final IdentityHashMap<ByteBuffer, PoolEntry<ByteBuffer>> mEntries =
+        new IdentityHashMap<ByteBuffer, PoolEntry<ByteBuffer>>();
+
+    public PooledByteBufferFactory(SlabAllocator allocator) {
+        mAllocator = allocator;
+    }
+
+    /**
+     * Single accessor for a shared ByteBufferFactory backed by the shared
+     * SlabAllocator.
+     */
+    public static synchronized ByteBufferFactory get() {
+        if (sFactory == null) {
+            sFactory = new PooledByteBufferFactory(SlabAllocator.get());
+        }
+        return sFactory;
+    }
+
+    @Override
+    public ByteBuffer make(int size) {
+        if (size > mAllocator.getMaxSize()) {
+            return (mAllocator.isDirect()) ?
+                ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        }
+
+        PoolEntry<ByteBuffer> entry = mAllocator.allocate(size);
+        ByteBuffer buf = entry.get();
+        synchronized (mEntries) {
+            mEntries.put(buf, entry);
+        }
+        return buf;
+    }
+
+    // Used for testing.
+    int getOutstandingCount() {
+        synchronized (mEntries) {
+            return mEntries.size();
+        }
+    }
+
+    /**
+     * Buffers that did not come from the allocator are left to the GC.
+     */
+    @Override
+    public void release(ByteBuffer buf) {
+        PoolEntry<ByteBuffer> entry;
+        synchronized (mEntries) {
+            entry = mEntries.remove(buf);
+        }
+
+        if (entry != null) {
+            mAllocator.release(entry);
+        }
+    }
+}
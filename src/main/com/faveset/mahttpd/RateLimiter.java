@@ -0,0 +1,227 @@
+// Copyright 2014, Kevin Ko <kevin@faveset.com>. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.faveset.mahttpd;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the request rate of each client with a token bucket per remote
+ * address.  Buckets live in a fixed-size table, so memory is bounded no
+ * matter how many clients there are.
+ *
+ * Each bucket is a single long, which packs a 24-bit key fingerprint with
+ * the bucket's theoretical arrival time (TAT) in 40 bits.  Times are in
+ * ticks of 256 nanos, and the interval between requests is rounded to the
+ * nearest tick, so the enforced rate is within 0.1% of the configured rate
+ * up to about 7500 requests per second and within 1% up to about 75000.
+ * The 40 bits span about 3 days, so the stored TAT wraps.  It is read
+ * relative to now: a TAT can be ahead of now by at most the burst tolerance
+ * plus one interval, and anything else is taken to be in the past.
+ *
+ * This is the generic cell rate algorithm, which behaves like a token
+ * bucket without storing a token count: a request is allowed if the TAT is
+ * at most the burst tolerance ahead of now, and each allowed request pushes
+ * the TAT out by one interval.  Updates are compare-and-set, so the table
+ * is lock-free and can be shared by several event loops.
+ *
+ * A key may occupy one of two slots.  If both hold other keys, the one
+ * with the earlier TAT is evicted, since it is the coldest.  An evicted
+ * client starts over with a full bucket, so the limit is approximate when
+ * the table is crowded.
+ *
+ * Keys are mixed from all bytes of the remote address.  A key is mistaken
+ * for another only if it lands in a slot that holds the same fingerprint.
+ * With two candidate slots, a lookup of a new key collides with a resident
+ * key with probability about 2^-23, or one in 8 million.  The colliding
+ * clients then share a bucket until one of them is evicted.
+ */
+class RateLimiter {
+    private static final int sTimeBits = 40;
+
+    private static final long sTimeMask = (1L << sTimeBits) - 1;
+
+    private static final int sFingerprintBits = 64 - sTimeBits;
+
+    // Nanos are shifted right by this to get ticks.
+    private static final int sTickShift = 8;
+
+    // Each slot holds a fingerprint and TAT, or 0 if empty.
+    private final AtomicLongArray mSlots;
+
+    private final int mSlotMask;
+
+    // Ticks between requests at the steady rate.
+    private final long mIntervalTicks;
+
+    // How far the TAT may run ahead of now, which allows bursts.
+    private final long mToleranceTicks;
+
+    // How far a live TAT may be ahead of now.  TATs further ahead have
+    // wrapped and are in the past.
+    private final long mMaxAheadTicks;
+
+    // Times are stored relative to this so that they fit in sTimeBits.
+    private final long mEpochNanos;
+
+    private final LongAdder mRejectCount = new LongAdder();
+
+    /**
+     * @param requestsPerSec the steady rate allowed for each client.
+     * @param burst the number of requests that a client may send at once.
+     * @param slotCount the size of the table, which is rounded up to a power
+     * of two.
+     * @param nowNanos the current time from System.nanoTime().
+     *
+     * @throws IllegalArgumentException if any value is not positive, if
+     * requestsPerSec is so high that its interval rounds to 0 ticks (about
+     * 8 million per second), or if the burst spans more than half the range
+     * of a TAT (about 1.6 days).
+     */
+    public RateLimiter(double requestsPerSec, int burst, int slotCount, long nowNanos)
+            throws IllegalArgumentException {
+        if (requestsPerSec <= 0 || burst <= 0 || slotCount <= 0) {
+            throw new IllegalArgumentException();
+        }
+
+        int size = Integer.highestOneBit(slotCount);
+        if (size < slotCount) {
+            size <<= 1;
+        }
+        mSlots = new AtomicLongArray(size);
+        mSlotMask = size - 1;
+
+        mIntervalTicks = Math.round(1e9 / requestsPerSec / (1 << sTickShift));
+        if (mIntervalTicks <= 0 || mIntervalTicks >= (1L << (sTimeBits - 1)) / burst) {
+            throw new IllegalArgumentException();
+        }
+        mToleranceTicks = (burst - 1) * mIntervalTicks;
+        mMaxAheadTicks = mToleranceTicks + mIntervalTicks;
+
+        mEpochNanos = nowNanos;
+    }
+
+    /**
+     * @return the number of requests refused.
+     */
+    public long getRejectCount() {
+        return mRejectCount.sum();
+    }
+
+    /**
+     * @return a key that depends on every byte of addr, so that IPv6
+     * addresses do not collide before mixing.
+     */
+    public static long keyOf(InetAddress addr) {
+        byte[] bytes = addr.getAddress();
+
+        long key = bytes.length;
+        for (int ii = 0; ii < bytes.length; ii += 8) {
+            long word = 0;
+            int end = Math.min(ii + 8, bytes.length);
+            for (int jj = ii; jj < end; jj++) {
+                word = (word << 8) | (bytes[jj] & 0xff);
+            }
+            key = mix(key ^ word);
+        }
+        return key;
+    }
+
+    /**
+     * Scrambles the bits of key so that slots and fingerprints are evenly
+     * distributed.
+     */
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**
+     * @return the TAT held by slot, restoring the bits that were masked off
+     * by taking it to be near now.  The result is never earlier than now,
+     * since a bucket whose TAT is in the past is simply full.
+     */
+    private long tatOf(long slot, long now) {
+        // The difference of the low sTimeBits, sign-extended.
+        long ahead = ((slot - now) << sFingerprintBits) >> sFingerprintBits;
+        if (ahead <= 0 || ahead > mMaxAheadTicks) {
+            return now;
+        }
+        return now + ahead;
+    }
+
+    /**
+     * Takes a token from addr's bucket.
+     *
+     * @return false if addr has exceeded its rate and the request should be
+     * refused.
+     */
+    public boolean tryAcquire(InetAddress addr, long nowNanos) {
+        return tryAcquire(keyOf(addr), nowNanos);
+    }
+
+    /**
+     * Takes a token from the bucket for the given key.
+     *
+     * @return false if key has exceeded its rate.
+     */
+    public boolean tryAcquire(long key, long nowNanos) {
+        long hash = mix(key);
+        // The fingerprint is never 0, which marks empty slots.  Its bits are
+        // disjoint from the index bits for tables of up to 2^20 slots.
+        long fingerprint = hash >>> sTimeBits;
+        if (fingerprint == 0) {
+            fingerprint = 1;
+        }
+        int index1 = (int) hash & mSlotMask;
+        int index2 = (int) (hash >>> 20) & mSlotMask;
+
+        long now = (nowNanos - mEpochNanos) >> sTickShift;
+
+        while (true) {
+            long slot1 = mSlots.get(index1);
+            long slot2 = mSlots.get(index2);
+
+            int index;
+            long slot;
+            long tat;
+            if ((slot1 >>> sTimeBits) == fingerprint) {
+                index = index1;
+                slot = slot1;
+                tat = tatOf(slot, now);
+            } else if ((slot2 >>> sTimeBits) == fingerprint) {
+                index = index2;
+                slot = slot2;
+                tat = tatOf(slot, now);
+            } else {
+                // Evict the colder slot.  The key starts with a full bucket.
+                if (tatOf(slot1, now) <= tatOf(slot2, now)) {
+                    index = index1;
+                    slot = slot1;
+                } else {
+                    index = index2;
+                    slot = slot2;
+                }
+                tat = now;
+            }
+
+            if (tat - now > mToleranceTicks) {
+                mRejectCount.increment();
+                return false;
+            }
+
+            long newSlot = (fingerprint << sTimeBits) | ((tat + mIntervalTicks) & sTimeMask);
+            if (mSlots.compareAndSet(index, slot, newSlot)) {
+                return true;
+            }
+            // Another thread updated the slot, so try again.
+        }
+    }
+}
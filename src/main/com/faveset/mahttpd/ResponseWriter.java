@@ -4,11 +4,9 @@
 
 package com.faveset.mahttpd;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 
-import java.util.HashMap;
-import java.util.Map;
-
 // TODO:
 // add file sending and chunked transfers.
 class ResponseWriter implements HttpResponseWriter {
@@ -19,10 +17,11 @@ class ResponseWriter implements HttpResponseWriter {
     // 1.1 is the default version.
     private static final int sHttpMinorVersionDefault = 1;
 
-    private static final Map<Integer, String> sReasonMap;
-    // This is the default reason that will be reported if one is not found
-    // in sReasonMap.
-    private static final String sUnknownReason = "Unknown";
+    private static final byte[] sContentLengthPrefix =
+        HeaderFieldBytes.getPrefix(HeaderField.Entity.CONTENT_LENGTH);
+
+    // A long has at most 19 decimal digits.
+    private static final int sMaxLongDigits = 19;
 
     private HeadersBuilder mHeadersBuilder;
 
@@ -47,6 +46,9 @@ class ResponseWriter implements HttpResponseWriter {
     // is sent.
     private boolean mCloseConnection;
 
+    // Scratch space for encoding the Content-Length value.
+    private byte[] mDigits = new byte[sMaxLongDigits];
+
     /**
      * The default constructor uses heap-based ByteBuffers internally.
      *
@@ -108,6 +110,8 @@ class ResponseWriter implements HttpResponseWriter {
     /**
      * NOTE: the Connection header will not take effect.
      * Use setCloseConnection() instead.
+     *
+     * A Date header with the current time is sent if not set explicitly.
      */
     @Override
     public HeadersBuilder getHeadersBuilder() {
@@ -133,42 +137,110 @@ class ResponseWriter implements HttpResponseWriter {
     }
 
     /**
-     * Finalizes the response and sends it over the connection.  This manages
-     * AsyncConnection callbacks until completion and then calls
-     * callback when sending is done.
+     * Finalizes the response and moves it, in wire format, to the back of
+     * out.  Ownership of the response's buffers passes to out, so the
+     * ResponseWriter can be cleared and reused while out awaits sending.
+     * This allows responses to pipelined requests to be batched.
      *
      * This method is not idempotent.  The response body will be cleared as
      * a result.
      *
-     * The callback should clear the ResponseWriter's state before reusing
-     * the ResponseWriter.
+     * @return the number of bytes appended to out.
      */
-    public void send(AsyncConnection conn, OnSendCallback callback) {
-        mSendCallback = callback;
+    public long finish(ByteBufferArrayBuilder out) {
+        prepareSend();
 
-        // We just support Content-length for now.
-        // TODO: this will need to be changed if we support transfer encodings.
-        Long bodyCount = mBufBuilder.remaining();
-        mHeadersBuilder.set(HeaderField.Entity.CONTENT_LENGTH, bodyCount.toString());
+        out.append(mBufBuilder);
 
-        // Configure the Connection header if we are closing the connection.
+        return mSentCount;
+    }
+
+    /**
+     * Finalizes the response by serializing it contiguously into buf, which
+     * must be positioned for appending.  This suits small responses, which
+     * can then be sent with a single write.
+     *
+     * On success, the response body will be cleared, as with the other
+     * finish variant.  Otherwise, buf and the response are left unchanged so
+     * that the caller can fall back to finish(ByteBufferArrayBuilder).
+     *
+     * @return true if the response fit in buf.
+     */
+    public boolean finish(ByteBuffer buf) {
+        long bodyCount = mBufBuilder.remaining();
+        if (bodyCount > buf.remaining()) {
+            return false;
+        }
+
+        prepareHeaders();
+
+        int startPos = buf.position();
+        try {
+            writeStatusHeaders(buf, mStatus, bodyCount);
+            mBufBuilder.copyTo(buf);
+        } catch (BufferOverflowException e) {
+            buf.position(startPos);
+            return false;
+        }
+
+        mSentCount = buf.position() - startPos;
+        mBufBuilder.clear();
+
+        return true;
+    }
+
+    /**
+     * Removes headers from mHeadersBuilder that writeStatusHeaders writes
+     * directly.
+     */
+    private void prepareHeaders() {
+        mHeadersBuilder.remove(HeaderField.Entity.CONTENT_LENGTH);
         if (mCloseConnection) {
-            mHeadersBuilder.set(HeaderField.General.CONNECTION, HeaderToken.CLOSE);
+            mHeadersBuilder.remove(HeaderField.General.CONNECTION);
         }
+    }
+
+    /**
+     * Inserts the Status-Line and headers in front of the body and updates
+     * mSentCount accordingly.
+     */
+    private void prepareSend() {
+        long bodyCount = mBufBuilder.remaining();
+
+        prepareHeaders();
 
         ByteBufferArrayBuilder.Inserter inserter = mBufBuilder.insertFront();
         try {
-            writeStatusHeaders(inserter, mStatus);
+            writeStatusHeaders(inserter, mStatus, bodyCount);
         } finally {
             inserter.close();
         }
 
-        long remCount = mBufBuilder.remaining();
-        mSentCount = remCount;
+        mSentCount = mBufBuilder.remaining();
+    }
+
+    /**
+     * Finalizes the response and sends it over the connection.  This manages
+     * AsyncConnection callbacks until completion and then calls
+     * callback when sending is done.
+     *
+     * This method is not idempotent.  The response body will be cleared as
+     * a result.
+     *
+     * The callback should clear the ResponseWriter's state before reusing
+     * the ResponseWriter.
+     */
+    public void send(AsyncConnection conn, OnSendCallback callback) {
+        mSendCallback = callback;
+
+        prepareSend();
+
+        long remCount = mSentCount;
 
         // mNbcSendCallback cleans up the mBufBuilder.
-        ByteBuffer[] bufs = mBufBuilder.build();
-        conn.send(mNbcSendCallback, bufs, remCount);
+        mBufBuilder.finish();
+        conn.send(mNbcSendCallback, mBufBuilder.getArray(), mBufBuilder.getArrayOffset(),
+                mBufBuilder.getArrayLength(), remCount);
     }
 
     @Override
@@ -228,68 +300,83 @@ class ResponseWriter implements HttpResponseWriter {
     }
 
     /**
-     * Writes the Status-Line and Headers in wire format to the inserter.
+     * Encodes v in decimal at the end of mDigits.
+     *
+     * @param v must be non-negative.
+     *
+     * @return the index of the first digit in mDigits.
      */
-    private void writeStatusHeaders(ByteBufferArrayBuilder.Inserter inserter, int statusCode) {
-        String reason = sReasonMap.get(statusCode);
-        if (reason == null) {
-            reason = sUnknownReason;
+    private int encodeDecimal(long v) {
+        int start = mDigits.length;
+        do {
+            start--;
+            mDigits[start] = (byte) ('0' + (v % 10));
+            v /= 10;
+        } while (v != 0);
+
+        return start;
+    }
+
+    /**
+     * Writes the Status-Line and Headers in wire format to buf.
+     *
+     * @param bodyCount the length of the message-body.
+     *
+     * @throws BufferOverflowException if buf lacks space.
+     */
+    private void writeStatusHeaders(ByteBuffer buf, int statusCode, long bodyCount)
+            throws BufferOverflowException {
+        buf.put(StatusLines.get(mHttpMinorVersion, statusCode));
+
+        mHeadersBuilder.write(buf);
+
+        if (mHeadersBuilder.get(HeaderField.General.DATE) == null) {
+            buf.put(Clock.get().getSnapshot().getDateHeaderBytes());
         }
 
-        String statusLine = String.format("HTTP/1.%d %d, %s\r\n",
-                mHttpMinorVersion, statusCode, reason);
-        inserter.writeString(statusLine);
+        buf.put(sContentLengthPrefix);
+        int start = encodeDecimal(bodyCount);
+        buf.put(mDigits, start, mDigits.length - start);
+        buf.put(Strings.CRLF_BYTES);
+
+        if (mCloseConnection) {
+            buf.put(HeaderFieldBytes.CONNECTION_CLOSE);
+        }
+
+        buf.put(Strings.CRLF_BYTES);
+    }
+
+    /**
+     * Writes the Status-Line and Headers in wire format to the inserter.
+     *
+     * @param bodyCount the length of the message-body.
+     */
+    private void writeStatusHeaders(ByteBufferArrayBuilder.Inserter inserter, int statusCode,
+            long bodyCount) {
+        inserter.writeBytes(StatusLines.get(mHttpMinorVersion, statusCode));
 
         mHeadersBuilder.write(inserter);
 
+        // Responses carry the current date unless the handler provided one.
+        if (mHeadersBuilder.get(HeaderField.General.DATE) == null) {
+            inserter.writeBytes(Clock.get().getSnapshot().getDateHeaderBytes());
+        }
+
+        // We just support Content-length for now.
+        // TODO: this will need to be changed if we support transfer encodings.
+        inserter.writeBytes(sContentLengthPrefix);
+        int start = encodeDecimal(bodyCount);
+        inserter.writeBytes(mDigits, start, mDigits.length - start);
+        inserter.writeBytes(Strings.CRLF_BYTES);
+
+        // Configure the Connection header if we are closing the connection.
+        if (mCloseConnection) {
+            inserter.writeBytes(HeaderFieldBytes.CONNECTION_CLOSE);
+        }
+
         // Terminal CRLF.
-        inserter.writeString(Strings.CRLF);
+        inserter.writeBytes(Strings.CRLF_BYTES);
 
         // We're now ready for the message-body.
     }
-
-    static {
-        // These are taken from RFC2616 recommendations.
-        sReasonMap = new HashMap<Integer, String>();
-        sReasonMap.put(100, "Continue");
-        sReasonMap.put(101, "Switching Protocols");
-        sReasonMap.put(200, "OK");
-        sReasonMap.put(201, "Created");
-        sReasonMap.put(202, "Accepted");
-        sReasonMap.put(203, "Non-Authoritative Information");
-        sReasonMap.put(204, "No Content");
-        sReasonMap.put(205, "Reset Content");
-        sReasonMap.put(206, "Partial Content");
-        sReasonMap.put(300, "Multiple Choices");
-        sReasonMap.put(301, "Moved Permanently");
-        sReasonMap.put(302, "Found");
-        sReasonMap.put(303, "See Other");
-        sReasonMap.put(304, "Not Modified");
-        sReasonMap.put(305, "Use Proxy");
-        sReasonMap.put(307, "Temporary Redirect");
-        sReasonMap.put(400, "Bad Request");
-        sReasonMap.put(401, "Unauthorized");
-        sReasonMap.put(402, "Payment Required ");
-        sReasonMap.put(403, "Forbidden");
-        sReasonMap.put(404, "Not Found");
-        sReasonMap.put(405, "Method Not Allowed");
-        sReasonMap.put(406, "Not Acceptable");
-        sReasonMap.put(407, "Proxy Authentication Required");
-        sReasonMap.put(408, "Request Time-out");
-        sReasonMap.put(409, "Conflict");
-        sReasonMap.put(410, "Gone");
-        sReasonMap.put(411, "Length Required");
-        sReasonMap.put(412, "Precondition Failed");
-        sReasonMap.put(413, "Request Entity Too Large");
-        sReasonMap.put(414, "Request-URI Too Large");
-        sReasonMap.put(415, "Unsupported Media Type");
-        sReasonMap.put(416, "Requested range not satisfiable");
-        sReasonMap.put(417, "Expectation Failed");
-        sReasonMap.put(500, "Internal Server Error");
-        sReasonMap.put(501, "Not Implemented");
-        sReasonMap.put(502, "Bad Gateway");
-        sReasonMap.put(503, "Service Unavailable");
-        sReasonMap.put(504, "Gateway Time-out");
-        sReasonMap.put(505, "HTTP Version not supported");
-    }
 }
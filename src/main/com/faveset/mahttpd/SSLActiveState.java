@@ -15,6 +15,12 @@ import javax.net.ssl.SSLException;
 class SSLActiveState extends SSLBaseState {
     private SSLEngine mSSLEngine;
 
+    // Bounds the size of outgoing records.  This may be null.
+    private SSLRecordSizer mRecordSizer;
+
+    // The clock for mRecordSizer.  null means TimerWheel.nowMillis().
+    private TimerWheel.TimeSource mTimeSource;
+
     /**
      * @param factory the factory for allocating new ByteBuffers (when resizing)
      * @param engine
@@ -25,6 +31,22 @@ class SSLActiveState extends SSLBaseState {
         mSSLEngine = engine;
     }
 
+    /**
+     * @param sizer chooses the size of outgoing records.  Set to null to let records fill
+     * the engine's maximum.
+     */
+    public void setRecordSizer(SSLRecordSizer sizer) {
+        mRecordSizer = sizer;
+    }
+
+    /**
+     * @param source the clock for record sizing, which should be the event loop's.  Set to
+     * null for TimerWheel.nowMillis().
+     */
+    public void setTimeSource(TimerWheel.TimeSource source) {
+        mTimeSource = source;
+    }
+
     /**
      * @param src
      * @param dest
@@ -118,8 +140,20 @@ class SSLActiveState extends SSLBaseState {
      */
     @Override
     public OpResult stepWrap(NetReader src, NetBuffer dest) throws SSLException {
+        long nowMillis = 0;
+        if (mRecordSizer != null) {
+            nowMillis = (mTimeSource != null) ? mTimeSource.nowMillis() : TimerWheel.nowMillis();
+        }
+
         do {
-            SSLEngineResult result = src.wrap(mSSLEngine, dest);
+            SSLEngineResult result;
+            if (mRecordSizer != null) {
+                result = src.wrap(mSSLEngine, dest, mRecordSizer.getMaxRecordSize(nowMillis));
+                mRecordSizer.onWrap(result.bytesConsumed(), nowMillis);
+            } else {
+                result = src.wrap(mSSLEngine, dest);
+            }
+
             switch (result.getStatus()) {
                 case BUFFER_OVERFLOW:
                     // dest is destined for the network, hence packet buffer.
@@ -0,0 +1,33 @@
+// Copyright 2014, Kevin Ko <kevin@faveset.com>. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.faveset.mahttpd;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts full and resumed (abbreviated) SSL handshakes across connections.
+ * This is thread-safe.
+ */
+class SSLHandshakeStats {
+    private final AtomicLong mFullCount = new AtomicLong();
+
+    private final AtomicLong mResumedCount = new AtomicLong();
+
+    public long getFullCount() {
+        return mFullCount.get();
+    }
+
+    public long getResumedCount() {
+        return mResumedCount.get();
+    }
+
+    public void recordFull() {
+        mFullCount.incrementAndGet();
+    }
+
+    public void recordResumed() {
+        mResumedCount.incrementAndGet();
+    }
+}
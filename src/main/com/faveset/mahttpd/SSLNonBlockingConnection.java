@@ -9,8 +9,8 @@ import java.nio.ByteBuffer;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.security.NoSuchAlgorithmException;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ExecutorService;
+import java.util.ArrayList;
+import java.util.List;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
@@ -49,13 +49,15 @@ class SSLNonBlockingConnection implements AsyncConnection {
         UNWRAP,
     }
 
-    private static ExecutorService sSerialWorkerExecutor = Executors.newSingleThreadExecutor();
-
     // Virtually all browsers support TLSv1.
     private static final String sSSLProtocol = "TLS";
 
     private static final String sTag = SSLNonBlockingConnection.class.toString();
 
+    // The in net buffer shrinks to this size while idle.  It cannot be released outright,
+    // because the underlying connection keeps receiving into it.
+    private static final int sIdleInNetBufferSize = 1024;
+
     private static Log sLog = new NullLog();
 
     // This should be scheduled after any executor tasks to signal completion
@@ -76,6 +78,21 @@ class SSLNonBlockingConnection implements AsyncConnection {
 
     private ConnState mConnState;
 
+    private SSLTaskExecutor mTaskExecutor;
+
+    // Aggregate handshake counts.  This may be null.
+    private SSLHandshakeStats mHandshakeStats;
+
+    // When the current handshake began, in millis since the epoch.
+    private long mHandshakeStartMillis;
+
+    // The session negotiated by the last completed handshake.
+    private SSLSession mLastSession;
+
+    private int mFullHandshakeCount;
+
+    private int mResumedHandshakeCount;
+
     // This is used for queueing up an action to the main event loop
     // from a worker thread.  Tasks will run in the thread that loops
     // over the selector.
@@ -101,17 +118,28 @@ class SSLNonBlockingConnection implements AsyncConnection {
     // Unwrapped data from the network.
     private NetBuffer mInAppBuffer;
 
+    // Holds unwrapped data for append-mode receives, since unconsumed data cannot remain in
+    // mInAppBuffer without starving the SSLEngine of space.  Allocated on first use.
+    private ByteBuffer mInAppAppendBuffer;
+
     // This is the internal buffer that is accessible to applications via getOutBuffer().
     // It is always in read mode.  (Applications will manipulate the underlying ByteBuffer
     // directly via getOutBuffer().)
     private NetBuffer mOutAppBufferInternal;
 
     // Always points to the NetReader for the current read.  This may point to the internal
-    // mOutAppBufferInternal or some external buffer provided by the application.
+    // mOutAppBufferInternal or some external buffer provided by the application.  It points to
+    // mEmptyAppReader when no send is outstanding, since the app layer is free to write to
+    // mOutAppBufferInternal at that time.
     //
     // This holds unwrapped data destined to the network.
     private NetReader mOutAppReader;
 
+    private NetReader mEmptyAppReader;
+
+    // Reused for array sends.  Allocated on first use.
+    private ArrayNetReader mOutAppArrayReader;
+
     // These callbacks are provided by the application
     private AsyncConnection.OnCloseCallback mAppCloseCallback;
     private AsyncConnection.OnErrorCallback mAppErrorCallback;
@@ -121,6 +149,9 @@ class SSLNonBlockingConnection implements AsyncConnection {
     // true if the app requested persistent receive callbacks.
     private boolean mAppRecvIsPersistent;
 
+    // true if the app requested append-mode receive callbacks.
+    private boolean mAppRecvIsAppend;
+
     // true if the SSLNonBlockingConnection is awaiting an explicit recv call from the app layer
     // for unwrapping to continue.  The underlying NonBlockingConnection's receive will be inactive
     // when this is true.  It will be rescheduled by the recv method.
@@ -129,6 +160,18 @@ class SSLNonBlockingConnection implements AsyncConnection {
     // True if currently dispatching (i.e., in the dispatch() call).
     private boolean mIsDispatching;
 
+    // True if releaseIdleBuffers() was called while dispatching.  The release is deferred
+    // until dispatching completes.
+    private boolean mReleaseIdleRequested;
+
+    // True if the engine buffers have been returned to mBufFactory.  restoreBuffers()
+    // reallocates them.
+    private boolean mBuffersReleased;
+
+    // The limit of the internal out app buffer when it was released.  The app layer may have
+    // cleared the buffer for writing, so this is restored with the buffer.
+    private int mReleasedOutAppLimit;
+
     // This is set when an unwrap is desired (e.g., via a recv method).  It is cleared
     // by stepUnwrap().
     private boolean mRequestUnwrap;
@@ -170,10 +213,11 @@ class SSLNonBlockingConnection implements AsyncConnection {
         };
 
     /**
-     * This must be called to clean up static resources (SingleThreadExecutor) on process completion.
+     * This must be called to clean up static resources (the shared SSLTaskExecutor) on process
+     * completion.
      */
     public static void shutdown() {
-        sSerialWorkerExecutor.shutdownNow();
+        SSLTaskExecutor.get().shutdown();
     }
 
     /**
@@ -188,8 +232,19 @@ class SSLNonBlockingConnection implements AsyncConnection {
     public SSLNonBlockingConnection(Selector selector, SocketChannel chan,
             ByteBufferFactory bufFactory, SelectTaskQueue nonBlockingTaskQueue, SSLContext ctx)
             throws IOException {
+        this(selector, chan, bufFactory, nonBlockingTaskQueue, ctx, SSLTaskExecutor.get());
+    }
+
+    /**
+     * @param taskExecutor runs delegated tasks for handshakes.
+     */
+    public SSLNonBlockingConnection(Selector selector, SocketChannel chan,
+            ByteBufferFactory bufFactory, SelectTaskQueue nonBlockingTaskQueue, SSLContext ctx,
+            SSLTaskExecutor taskExecutor) throws IOException {
         mConnState = ConnState.ACTIVE;
 
+        mTaskExecutor = taskExecutor;
+
         mSelectTaskQueue = nonBlockingTaskQueue;
 
         // We'll assign the internal in and out buffers using sizes from the
@@ -201,6 +256,8 @@ class SSLNonBlockingConnection implements AsyncConnection {
         mBufFactory = bufFactory;
 
         mActiveState = new SSLActiveState(bufFactory, mSSLEngine);
+        mActiveState.setRecordSizer(new SSLRecordSizer(Constants.TLS_RECORD_RAMP_BYTES,
+                    Constants.TLS_RECORD_IDLE_RESET_MILLIS));
         mHandshakeState = new SSLHandshakeState(bufFactory, mSSLEngine);
 
         // Start in the handshake state.
@@ -231,7 +288,8 @@ class SSLNonBlockingConnection implements AsyncConnection {
         mConn.setOnErrorCallback(mNetErrorCallback);
 
         // Initially, we have an empty app buffer so that no wrapping will occcur.
-        mOutAppReader = mOutAppBufferInternal;
+        mEmptyAppReader = NetBuffer.makeReadBuffer(ByteBuffer.allocate(0));
+        mOutAppReader = mEmptyAppReader;
     }
 
     @Override
@@ -260,6 +318,8 @@ class SSLNonBlockingConnection implements AsyncConnection {
                 break;
         }
 
+        restoreBuffers();
+
         mConnState = ConnState.CLOSING;
 
         // closeInbound() will be called after the SSLEngine has time to wrap close-related
@@ -305,6 +365,16 @@ class SSLNonBlockingConnection implements AsyncConnection {
 
         // Clear possible external references.
         mOutAppReader = null;
+
+        // The underlying connection is closed, so nothing will touch the buffers again.
+        mInNetBuffer.release(mBufFactory);
+        mOutNetBuffer.release(mBufFactory);
+        mInAppBuffer.release(mBufFactory);
+        mOutAppBufferInternal.release(mBufFactory);
+        if (mInAppAppendBuffer != null) {
+            mBufFactory.release(mInAppAppendBuffer);
+            mInAppAppendBuffer = null;
+        }
     }
 
     private void dispatch(StepState initState) {
@@ -314,6 +384,11 @@ class SSLNonBlockingConnection implements AsyncConnection {
             dispatchImpl(initState);
 
             mIsDispatching = false;
+
+            if (mReleaseIdleRequested) {
+                mReleaseIdleRequested = false;
+                releaseIdleBuffersImpl();
+            }
         } catch (IOException e) {
             mIsDispatching = false;
 
@@ -404,9 +479,40 @@ class SSLNonBlockingConnection implements AsyncConnection {
 
     @Override
     public ByteBuffer getOutBuffer() {
+        restoreBuffers();
         return mOutAppBufferInternal.getByteBuffer();
     }
 
+    /**
+     * @return the number of full handshakes completed by this connection.
+     */
+    public int getFullHandshakeCount() {
+        return mFullHandshakeCount;
+    }
+
+    /**
+     * @return the number of abbreviated handshakes, which resumed a cached session.
+     */
+    public int getResumedHandshakeCount() {
+        return mResumedHandshakeCount;
+    }
+
+    /**
+     * @return the number of encrypted bytes read from the network.
+     */
+    @Override
+    public long getRecvCount() {
+        return mConn.getRecvCount();
+    }
+
+    /**
+     * @return the number of encrypted bytes written to the network.
+     */
+    @Override
+    public long getSentCount() {
+        return mConn.getSentCount();
+    }
+
     /**
      * Returns the underlying SSLEngine for configuration of parameters.
      * Configuration must only occur before any send or receive method is
@@ -416,6 +522,36 @@ class SSLNonBlockingConnection implements AsyncConnection {
         return mSSLEngine;
     }
 
+    /**
+     * Counts a completed handshake if it negotiated a new session.  (Post-handshake messages
+     * such as session tickets and key updates also pass through the handshake state.)
+     *
+     * A resumed session keeps the creation time of the session that it resumes, so it predates
+     * the handshake.
+     */
+    private void onHandshakeDone() {
+        SSLSession session = mSSLEngine.getSession();
+        if (session == mLastSession) {
+            return;
+        }
+        mLastSession = session;
+
+        boolean isResumed = (session.getCreationTime() < mHandshakeStartMillis);
+        if (isResumed) {
+            mResumedHandshakeCount++;
+        } else {
+            mFullHandshakeCount++;
+        }
+
+        if (mHandshakeStats != null) {
+            if (isResumed) {
+                mHandshakeStats.recordResumed();
+            } else {
+                mHandshakeStats.recordFull();
+            }
+        }
+    }
+
     private void onNetClose(AsyncConnection conn) {
         // We cannot handshake with a closed connection, so just shut everything down.
         try {
@@ -455,6 +591,8 @@ class SSLNonBlockingConnection implements AsyncConnection {
         mInNetBuffer.setRead();
         mInNetBuffer.rewindRead();
 
+        restoreBuffers();
+
         dispatch(StepState.UNWRAP);
     }
 
@@ -491,17 +629,29 @@ class SSLNonBlockingConnection implements AsyncConnection {
 
     @Override
     public void recv(OnRecvCallback callback) throws IllegalArgumentException {
-        recvImpl(callback, false);
+        recvImpl(callback, false, false);
+    }
+
+    /**
+     * The append buffer is distinct from the buffer that holds unwrapped data and holds up to
+     * Constants.BYTE_BUFFER_SIZE bytes, as with NonBlockingConnection's internal in buffer.
+     */
+    @Override
+    public void recvAppendPersistent(OnRecvCallback callback) throws IllegalArgumentException {
+        recvImpl(callback, true, true);
     }
 
-    private void recvImpl(OnRecvCallback callback, boolean isPersistent)
+    private void recvImpl(OnRecvCallback callback, boolean isPersistent, boolean isAppend)
             throws IllegalArgumentException {
         if (callback == null) {
             throw new IllegalArgumentException();
         }
 
+        restoreBuffers();
+
         mAppRecvCallback = callback;
         mAppRecvIsPersistent = isPersistent;
+        mAppRecvIsAppend = isAppend;
 
         if (mNeedsAppRecv) {
             mNeedsAppRecv = false;
@@ -514,7 +664,108 @@ class SSLNonBlockingConnection implements AsyncConnection {
 
     @Override
     public void recvPersistent(OnRecvCallback callback) throws IllegalArgumentException {
-        recvImpl(callback, true);
+        recvImpl(callback, true, false);
+    }
+
+    /**
+     * Copies src into the append buffer and delivers it to callback until src is drained or the
+     * app layer stops receiving.  src will be positioned after the delivered data.
+     */
+    private void recvAppendImpl(AsyncConnection.OnRecvCallback callback, ByteBuffer src) {
+        if (mInAppAppendBuffer == null) {
+            mInAppAppendBuffer = mBufFactory.make(Constants.BYTE_BUFFER_SIZE);
+        }
+
+        do {
+            ByteBuffer dest = mInAppAppendBuffer;
+
+            int len = Math.min(src.remaining(), dest.remaining());
+            int srcLimit = src.limit();
+            src.limit(src.position() + len);
+            dest.put(src);
+            src.limit(srcLimit);
+
+            // The callback compacts dest, leaving it ready for the next append.
+            dest.flip();
+            callback.onRecv(this, dest);
+
+            if (mConnState == ConnState.CLOSED || mAppRecvCallback != callback) {
+                // The remainder of src will be delivered on the next recv.
+                break;
+            }
+        } while (src.hasRemaining());
+    }
+
+    /**
+     * Returns the engine buffers to the buffer factory if no data is pending in either
+     * direction.  The in net buffer shrinks instead, since the underlying connection keeps
+     * receiving into it.  The buffers are restored when data arrives or the app layer sends.
+     */
+    @Override
+    public void releaseIdleBuffers() {
+        if (mIsDispatching) {
+            mReleaseIdleRequested = true;
+            return;
+        }
+
+        releaseIdleBuffersImpl();
+    }
+
+    private void releaseIdleBuffersImpl() {
+        if (mBuffersReleased ||
+                mConnState != ConnState.ACTIVE ||
+                mCurrState != mActiveState ||
+                mAppSendCallback != null ||
+                mRequestWrap) {
+            return;
+        }
+
+        // The in net buffer must be awaiting network data.
+        if (!mInNetBuffer.isAppending() ||
+                !mInNetBuffer.isEmpty() ||
+                !mOutNetBuffer.isEmpty() ||
+                !mInAppBuffer.isEmpty() ||
+                mOutAppBufferInternal.getByteBuffer().position() != 0 ||
+                (mInAppAppendBuffer != null && mInAppAppendBuffer.position() != 0)) {
+            return;
+        }
+
+        mInNetBuffer.resize(mBufFactory, sIdleInNetBufferSize);
+        mOutNetBuffer.release(mBufFactory);
+        mInAppBuffer.release(mBufFactory);
+
+        mReleasedOutAppLimit = mOutAppBufferInternal.getByteBuffer().limit();
+        mOutAppBufferInternal.release(mBufFactory);
+
+        if (mInAppAppendBuffer != null) {
+            mBufFactory.release(mInAppAppendBuffer);
+            mInAppAppendBuffer = null;
+        }
+
+        mBuffersReleased = true;
+    }
+
+    /**
+     * Reallocates buffers that were released by releaseIdleBuffers().  Any data in the in net
+     * buffer is preserved.
+     */
+    private void restoreBuffers() {
+        if (!mBuffersReleased) {
+            return;
+        }
+        mBuffersReleased = false;
+
+        SSLSession session = mSSLEngine.getSession();
+        int netSize = session.getPacketBufferSize();
+        int appSize = session.getApplicationBufferSize();
+
+        mInNetBuffer.resize(mBufFactory, netSize);
+        mOutNetBuffer.resize(mBufFactory, netSize);
+        mInAppBuffer.resize(mBufFactory, appSize);
+        mOutAppBufferInternal.resize(mBufFactory, appSize);
+
+        ByteBuffer outAppBuf = mOutAppBufferInternal.getByteBuffer();
+        outAppBuf.limit(Math.min(mReleasedOutAppLimit, outAppBuf.capacity()));
     }
 
     /**
@@ -534,8 +785,23 @@ class SSLNonBlockingConnection implements AsyncConnection {
     @Override
     public void send(OnSendCallback callback, ByteBuffer[] bufs, long bufsRemaining)
             throws IllegalArgumentException {
-        NetReader reader = new ArrayNetReader(bufs);
-        sendImpl(callback, reader);
+        if (callback == null) {
+            throw new IllegalArgumentException();
+        }
+
+        send(callback, bufs, 0, bufs.length, bufsRemaining);
+    }
+
+    @Override
+    public void send(OnSendCallback callback, ByteBuffer[] bufs, int offset, int length,
+            long bufsRemaining) throws IllegalArgumentException {
+        // The reader is reused across sends to avoid per-send allocations.
+        if (mOutAppArrayReader == null) {
+            mOutAppArrayReader = new ArrayNetReader(new ByteBufferArray(bufs, offset, length));
+        } else {
+            mOutAppArrayReader.reset(bufs, offset, length);
+        }
+        sendImpl(callback, mOutAppArrayReader);
     }
 
     /**
@@ -547,6 +813,8 @@ class SSLNonBlockingConnection implements AsyncConnection {
             throw new IllegalArgumentException();
         }
 
+        restoreBuffers();
+
         mAppSendCallback = callback;
         mOutAppReader = reader;
 
@@ -587,29 +855,79 @@ class SSLNonBlockingConnection implements AsyncConnection {
      *
      * @return true if any tasks were scheduled
      */
-    private boolean scheduleHandshakeTasks(Runnable onTasksDoneCallback) {
-        boolean hasTask = false;
+    private boolean scheduleHandshakeTasks(final Runnable onTasksDoneCallback) {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
         do {
             Runnable task = mSSLEngine.getDelegatedTask();
             if (task == null) {
                 break;
             }
-            sSerialWorkerExecutor.execute(task);
-            hasTask = true;
+            tasks.add(task);
         } while (true);
 
-        if (hasTask) {
-            // Re-schedule after tasks have completed.
-            sSerialWorkerExecutor.execute(onTasksDoneCallback);
+        if (tasks.isEmpty()) {
+            return false;
         }
 
-        return hasTask;
+        // Tasks must run in order, so they are submitted as one batch.  Batches for different
+        // connections may run in parallel.
+        mTaskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Runnable task : tasks) {
+                    task.run();
+                }
+
+                // Re-schedule after tasks have completed.
+                onTasksDoneCallback.run();
+            }
+        });
+
+        return true;
+    }
+
+    /**
+     * Counts completed handshakes in stats in addition to this connection's counts.
+     *
+     * @param stats may be null.
+     */
+    public void setHandshakeStats(SSLHandshakeStats stats) {
+        mHandshakeStats = stats;
     }
 
     public static void setLog(Log log) {
         sLog = log;
     }
 
+    /**
+     * Configures dynamic record sizing.  Records carry at most SSLRecordSizer.SMALL_RECORD_SIZE
+     * bytes until rampBytes have been sent and again after the connection idles for
+     * idleResetMillis.  A rampBytes of 0 always uses full-sized records.
+     *
+     * @throws IllegalArgumentException if either value is negative.
+     */
+    public void setRecordSizing(int rampBytes, long idleResetMillis)
+            throws IllegalArgumentException {
+        if (rampBytes < 0 || idleResetMillis < 0) {
+            throw new IllegalArgumentException();
+        }
+
+        SSLRecordSizer sizer = null;
+        if (rampBytes != 0) {
+            sizer = new SSLRecordSizer(rampBytes, idleResetMillis);
+        }
+        mActiveState.setRecordSizer(sizer);
+    }
+
+    /**
+     * Sets the clock for record sizing, which should be the event loop's.
+     *
+     * @param source null uses TimerWheel.nowMillis().
+     */
+    public void setTimeSource(TimerWheel.TimeSource source) {
+        mActiveState.setTimeSource(source);
+    }
+
     public void start() {
         if (mConnState == ConnState.CLOSED) {
             return;
@@ -621,6 +939,8 @@ class SSLNonBlockingConnection implements AsyncConnection {
         mInNetBuffer.setAppend();
         mInNetBuffer.clear();
 
+        mHandshakeStartMillis = System.currentTimeMillis();
+
         mConn.recvAppendPersistent(mNetRecvCallback);
 
         startHandshake();
@@ -707,7 +1027,14 @@ class SSLNonBlockingConnection implements AsyncConnection {
                         mAppRecvCallback = null;
                     }
 
-                    callback.onRecv(this, mInAppBuffer.getByteBuffer());
+                    boolean isAppend = mAppRecvIsAppend;
+                    if (isAppend) {
+                        recvAppendImpl(callback, mInAppBuffer.getByteBuffer());
+                        // Retain anything that the app layer did not take for the next recv.
+                        mInAppBuffer.updateRead();
+                    } else {
+                        callback.onRecv(this, mInAppBuffer.getByteBuffer());
+                    }
 
                     // Now, continue reading from the network and unwrapping to the app buffer.
                     // Even if app recv callbacks have stopped, continue unwrapping
@@ -715,9 +1042,10 @@ class SSLNonBlockingConnection implements AsyncConnection {
                     // of this code path will exit appropriately if mAppRecvCallback == null.
                     mInAppBuffer.flipAppend();
 
-                    // An AsyncConnection assumes that content in the buffer is fully consumed by
-                    // callbacks.
-                    mInAppBuffer.clear();
+                    // A non-append callback is assumed to fully consume the content in the buffer.
+                    if (!isAppend || mInAppBuffer.isEmpty()) {
+                        mInAppBuffer.clear();
+                    }
 
                     // Continue unwrapping now that the app buffer is drained.
                     break;
@@ -767,6 +1095,9 @@ class SSLNonBlockingConnection implements AsyncConnection {
             AsyncConnection.OnSendCallback callback = mAppSendCallback;
             mAppSendCallback = null;
 
+            // Stop reading from the app's buffers, which it may now reuse.
+            mOutAppReader = mEmptyAppReader;
+
             callback.onSend(this);
             return StepState.WAITING;
         }
@@ -848,5 +1179,11 @@ class SSLNonBlockingConnection implements AsyncConnection {
         SSLState tmp = mCurrState;
         mCurrState = mOtherState;
         mOtherState = tmp;
+
+        if (mCurrState == mActiveState) {
+            onHandshakeDone();
+        } else {
+            mHandshakeStartMillis = System.currentTimeMillis();
+        }
     }
 }
@@ -0,0 +1,76 @@
+// Copyright 2014, Kevin Ko <kevin@faveset.com>. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.faveset.mahttpd;
+
+/**
+ * Chooses the plaintext size of outgoing TLS records.  A connection starts
+ * with small records that each fit in a single TCP segment, so that clients
+ * can decrypt the first bytes of a response without waiting for a full 16K
+ * record to arrive.  After rampBytes have been sent, records grow to the
+ * maximum size for bulk throughput.  A connection that is idle for longer
+ * than idleResetMillis starts over, since its congestion window has likely
+ * shrunk.
+ *
+ * This is not thread-safe.
+ */
+class SSLRecordSizer {
+    // Plaintext bytes in a small record.  A 1400-byte record, including up
+    // to 29 bytes of TLS framing and AEAD overhead, fits in a TCP segment
+    // with room for IP and TCP options.
+    public static final int SMALL_RECORD_SIZE = 1371;
+
+    private final int mRampBytes;
+
+    private final long mIdleResetMillis;
+
+    // Plaintext bytes sent since the last reset.
+    private long mSentBytes;
+
+    private long mLastWrapMillis;
+
+    /**
+     * @param rampBytes the number of bytes to send with small records.
+     * @param idleResetMillis idle time after which small records are used
+     * again.
+     *
+     * @throws IllegalArgumentException if either value is negative.
+     */
+    public SSLRecordSizer(int rampBytes, long idleResetMillis) throws IllegalArgumentException {
+        if (rampBytes < 0 || idleResetMillis < 0) {
+            throw new IllegalArgumentException();
+        }
+
+        mRampBytes = rampBytes;
+        mIdleResetMillis = idleResetMillis;
+    }
+
+    /**
+     * @param nowMillis the current time in millis.
+     *
+     * @return the maximum number of plaintext bytes for the next record or
+     * Integer.MAX_VALUE if records need not be limited.
+     */
+    public int getMaxRecordSize(long nowMillis) {
+        if (nowMillis - mLastWrapMillis > mIdleResetMillis) {
+            mSentBytes = 0;
+        }
+
+        if (mSentBytes < mRampBytes) {
+            return SMALL_RECORD_SIZE;
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Records that count plaintext bytes were wrapped.
+     */
+    public void onWrap(int count, long nowMillis) {
+        if (count == 0) {
+            return;
+        }
+        mSentBytes += count;
+        mLastWrapMillis = nowMillis;
+    }
+}
@@ -0,0 +1,164 @@
+// Copyright 2014, Kevin Ko <kevin@faveset.com>. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.faveset.mahttpd;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs SSLEngine delegated tasks (the expensive key exchange work of a
+ * handshake).  Tasks either run on a bounded pool of worker threads or
+ * inline on the caller's thread.
+ *
+ * Each submission is a batch of tasks for one connection, so batches for
+ * different connections run in parallel while the tasks within a batch
+ * remain ordered.  When the queue is full or the executor has been shut
+ * down, batches run on the caller's thread, which pushes back on the event
+ * loop.  Batches are never dropped, since a handshake waits for its batch
+ * to complete.
+ *
+ * This is thread-safe.
+ */
+class SSLTaskExecutor {
+    private static final String sThreadNamePrefix = "mahttpd-ssl-";
+
+    // Maximum number of batches waiting for a worker, per worker thread.
+    private static final int sQueueCapacityPerThread = 64;
+
+    // This is for the shared serial executor.
+    private static SSLTaskExecutor sSSLTaskExecutor;
+
+    // null if tasks run inline.
+    private final ExecutorService mExecutor;
+
+    // Batches submitted but not yet started.
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+
+    private final AtomicInteger mQueueDepthHighWater = new AtomicInteger();
+
+    private final AtomicLong mBatchCount = new AtomicLong();
+
+    /**
+     * @param threadCount the number of worker threads.  If 0, tasks will run
+     * inline on the calling thread.
+     *
+     * @throws IllegalArgumentException if threadCount is negative.
+     */
+    public SSLTaskExecutor(int threadCount) throws IllegalArgumentException {
+        if (threadCount < 0) {
+            throw new IllegalArgumentException();
+        }
+
+        if (threadCount == 0) {
+            mExecutor = null;
+            return;
+        }
+
+        final AtomicInteger threadNum = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(threadCount, threadCount, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(threadCount * sQueueCapacityPerThread),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, sThreadNamePrefix + threadNum.getAndIncrement());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        // Unlike CallerRunsPolicy, this also runs batches
+                        // after shutdown, which would otherwise be discarded.
+                        r.run();
+                    }
+                });
+    }
+
+    /**
+     * Returns a shared executor with a single worker thread.  This is used by
+     * connections that are not given an executor.
+     */
+    public static synchronized SSLTaskExecutor get() {
+        if (sSSLTaskExecutor == null) {
+            sSSLTaskExecutor = new SSLTaskExecutor(1);
+        }
+        return sSSLTaskExecutor;
+    }
+
+    /**
+     * Runs batch on a worker thread or inline.
+     */
+    public void execute(final Runnable batch) {
+        mBatchCount.incrementAndGet();
+
+        if (mExecutor == null) {
+            batch.run();
+            return;
+        }
+
+        int depth = mQueueDepth.incrementAndGet();
+        updateHighWater(depth);
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mQueueDepth.decrementAndGet();
+                batch.run();
+            }
+        });
+    }
+
+    /**
+     * @return the total number of batches submitted.
+     */
+    public long getBatchCount() {
+        return mBatchCount.get();
+    }
+
+    /**
+     * @return the number of batches waiting for a worker thread.
+     */
+    public int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    /**
+     * @return the maximum queue depth observed.
+     */
+    public int getQueueDepthHighWater() {
+        return mQueueDepthHighWater.get();
+    }
+
+    public boolean isInline() {
+        return (mExecutor == null);
+    }
+
+    /**
+     * Stops the worker threads once they finish the batches already queued.
+     * Later batches run inline.
+     */
+    public void shutdown() {
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+        }
+    }
+
+    private void updateHighWater(int depth) {
+        int highWater;
+        do {
+            highWater = mQueueDepthHighWater.get();
+            if (depth <= highWater) {
+                return;
+            }
+        } while (!mQueueDepthHighWater.compareAndSet(highWater, depth));
+    }
+}
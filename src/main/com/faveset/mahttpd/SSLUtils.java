@@ -13,10 +13,31 @@ import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.TrustManagerFactory;
 
 public class SSLUtils {
+    // The JDK (13+) property that enables stateless session tickets for servers.
+    private static final String sSessionTicketProperty =
+        "jdk.tls.server.enableSessionTicketExtension";
+
+    /**
+     * Configures the server session cache of ctx, which allows returning clients to resume a
+     * session with an abbreviated handshake.
+     *
+     * @param cacheSize the maximum number of cached sessions.  0 means no limit.
+     * @param timeoutSecs the lifetime of cached sessions in seconds.  0 means no limit.
+     *
+     * @throws IllegalArgumentException if either value is negative.
+     */
+    public static void configureSessionCache(SSLContext ctx, int cacheSize, int timeoutSecs)
+            throws IllegalArgumentException {
+        SSLSessionContext sessionCtx = ctx.getServerSessionContext();
+        sessionCtx.setSessionCacheSize(cacheSize);
+        sessionCtx.setSessionTimeout(timeoutSecs);
+    }
+
     /**
      * This creates and initializes an SSLContext, using the keystore and trust store from the
      * given streams.
@@ -75,4 +96,14 @@ public class SSLUtils {
 
         return ctx;
     }
+
+    /**
+     * Enables or disables stateless session tickets, with which clients hold the session state
+     * so that resumption does not depend on the server's session cache.  This is a process-wide
+     * setting that is only honored by JDK 13+ and must be called before any SSLContext is
+     * created.  Otherwise, it has no effect.
+     */
+    public static void setSessionTicketsEnabled(boolean enabled) {
+        System.setProperty(sSessionTicketProperty, Boolean.toString(enabled));
+    }
 }
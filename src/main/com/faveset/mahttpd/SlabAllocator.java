@@ -0,0 +1,300 @@
+// Copyright 2014, Kevin Ko <kevin@faveset.com>. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.faveset.mahttpd;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A SlabAllocator carves fixed size classes out of large arenas and hands
+ * out slices of them.  This amortizes the per-buffer overhead of direct
+ * allocation (and its Cleaner tracking) over each arena and keeps buffers
+ * of the same size together.
+ *
+ * Released slices are retained for reuse by their size class up to a limit
+ * of free bytes per class.  Slices beyond that are left to the GC, which
+ * frees an arena once all of its slices are unreachable.
+ *
+ * Slices in use are charged to a MemoryBudget.  Once the budget is
+ * exhausted, allocations fall back to unpooled heap buffers, which do not
+ * consume direct memory and are left to the GC on release.  Thus, pooled
+ * memory stays within the budget plus the free slices retained by each
+ * size class.  Allocation is thread-safe.
+ */
+class SlabAllocator {
+    /**
+     * An entry allocated by a size class, which only adopts its own entries
+     * on release.
+     */
+    private static class SlabEntry extends PoolEntry<ByteBuffer> {
+        private final SizeClass mOwner;
+
+        public SlabEntry(int tag, ByteBuffer buf, SizeClass owner) {
+            super(tag, buf);
+            mOwner = owner;
+        }
+
+        public SizeClass getOwner() {
+            return mOwner;
+        }
+    }
+
+    /**
+     * A pool for a single size class.
+     */
+    private class SizeClass extends BasePool<ByteBuffer> {
+        private final int mSize;
+
+        // The arena currently being carved.  Guarded by this.
+        private ByteBuffer mArena;
+
+        /**
+         * @param maxFreeCount the number of free slices to retain.
+         */
+        public SizeClass(int size, int maxFreeCount) {
+            super(maxFreeCount);
+
+            mSize = size;
+        }
+
+        @Override
+        public PoolEntry<ByteBuffer> allocate() {
+            if (!mBudget.reserve(mSize)) {
+                mFallbackCount.incrementAndGet();
+                return new PoolEntry<ByteBuffer>(0, ByteBuffer.allocate(mSize));
+            }
+            return super.allocate();
+        }
+
+        @Override
+        protected synchronized ByteBuffer allocateValue() {
+            if (mArena == null || mArena.remaining() < mSize) {
+                int arenaSize = Math.max(mArenaSize, mSize);
+                arenaSize -= arenaSize % mSize;
+
+                mArena = (mIsDirect) ?
+                    ByteBuffer.allocateDirect(arenaSize) : ByteBuffer.allocate(arenaSize);
+                mArenaBytes.addAndGet(arenaSize);
+            }
+
+            int pos = mArena.position();
+            mArena.limit(pos + mSize);
+            ByteBuffer slice = mArena.slice();
+
+            mArena.limit(mArena.capacity());
+            mArena.position(pos + mSize);
+
+            return slice;
+        }
+
+        public int getSize() {
+            return mSize;
+        }
+
+        /**
+         * @return true if entry was allocated by this size class.
+         */
+        public boolean isOwner(PoolEntry<ByteBuffer> entry) {
+            return (entry instanceof SlabEntry && ((SlabEntry) entry).getOwner() == this);
+        }
+
+        @Override
+        protected PoolEntry<ByteBuffer> makeEntry(int tag, ByteBuffer v) {
+            return new SlabEntry(tag, v, this);
+        }
+
+        @Override
+        protected void onRelease(PoolEntry<ByteBuffer> entry) {
+            mBudget.release(mSize);
+        }
+
+        /**
+         * Entries from elsewhere are left to the GC.
+         */
+        @Override
+        public PoolEntry<ByteBuffer> release(PoolEntry<ByteBuffer> entry) {
+            if (!isOwner(entry)) {
+                return null;
+            }
+            return super.release(entry);
+        }
+
+        @Override
+        protected void resetValue(ByteBuffer v) {
+            v.clear();
+        }
+    }
+
+    // The 17K class holds a full TLS record (about 16.3K with overhead), so
+    // that SSL engine buffers can be pooled.
+    private static final int[] sDefaultSizes = { 1024, 4096, 17408, 65536 };
+
+    private static final int sDefaultArenaSize = 1024 * 1024;
+
+    // This is for the singleton allocator.
+    private static SlabAllocator sSlabAllocator;
+
+    private final int mArenaSize;
+
+    private final boolean mIsDirect;
+
+    private final MemoryBudget mBudget;
+
+    // In increasing order of size.
+    private final SizeClass[] mClasses;
+
+    // Total bytes allocated for arenas.
+    private final AtomicLong mArenaBytes = new AtomicLong();
+
+    // Allocations that exceeded the budget.
+    private final AtomicLong mFallbackCount = new AtomicLong();
+
+    /**
+     * @param sizes the size classes in bytes, in increasing order.
+     * @param arenaSize the size of each arena in bytes.  Arenas for size
+     * classes larger than this will hold a single slice.
+     * @param isDirect true if direct ByteBuffers are desired.
+     *
+     * @throws IllegalArgumentException if sizes is empty or not increasing.
+     */
+    public SlabAllocator(int[] sizes, int arenaSize, boolean isDirect)
+            throws IllegalArgumentException {
+        this(sizes, arenaSize, isDirect, new MemoryBudget(Long.MAX_VALUE));
+    }
+
+    /**
+     * @param budget will be charged for all slices in use.
+     *
+     * @throws IllegalArgumentException if sizes is empty or not increasing.
+     */
+    public SlabAllocator(int[] sizes, int arenaSize, boolean isDirect, MemoryBudget budget)
+            throws IllegalArgumentException {
+        this(sizes, arenaSize, isDirect, budget, Constants.SLAB_MAX_FREE_BYTES);
+    }
+
+    /**
+     * @param maxFreeBytes the free bytes that each size class retains for
+     * reuse.  Each class retains at least one slice.
+     *
+     * @throws IllegalArgumentException if sizes is empty or not increasing.
+     */
+    public SlabAllocator(int[] sizes, int arenaSize, boolean isDirect, MemoryBudget budget,
+            long maxFreeBytes) throws IllegalArgumentException {
+        if (sizes.length == 0) {
+            throw new IllegalArgumentException();
+        }
+
+        mArenaSize = arenaSize;
+        mIsDirect = isDirect;
+        mBudget = budget;
+
+        mClasses = new SizeClass[sizes.length];
+        for (int ii = 0; ii < sizes.length; ii++) {
+            if (sizes[ii] <= 0 || (ii > 0 && sizes[ii] <= sizes[ii - 1])) {
+                throw new IllegalArgumentException();
+            }
+            int maxFreeCount = (int) Math.min(Integer.MAX_VALUE,
+                    Math.max(1, maxFreeBytes / sizes[ii]));
+            mClasses[ii] = new SizeClass(sizes[ii], maxFreeCount);
+        }
+    }
+
+    /**
+     * Returns a shared singleton direct SlabAllocator with 1K, 4K, 17K, and
+     * 64K size classes.  It is charged to the shared MemoryBudget.
+     */
+    public static synchronized SlabAllocator get() {
+        if (sSlabAllocator == null) {
+            sSlabAllocator = new SlabAllocator(sDefaultSizes, sDefaultArenaSize, true,
+                    MemoryBudget.get());
+        }
+        return sSlabAllocator;
+    }
+
+    /**
+     * Allocates a buffer from the smallest size class that holds size bytes.
+     * The buffer's capacity will be that of the size class.
+     *
+     * @throws IllegalArgumentException if size exceeds the largest size
+     * class.
+     */
+    public PoolEntry<ByteBuffer> allocate(int size) throws IllegalArgumentException {
+        return getSizeClass(size).allocate();
+    }
+
+    /**
+     * @return the total number of bytes allocated for arenas.
+     */
+    public long getArenaBytes() {
+        return mArenaBytes.get();
+    }
+
+    public MemoryBudget getBudget() {
+        return mBudget;
+    }
+
+    /**
+     * @return the number of allocations that fell back to unpooled heap
+     * buffers because the budget was exhausted.
+     */
+    public long getFallbackCount() {
+        return mFallbackCount.get();
+    }
+
+    /**
+     * @return the size of the largest size class.
+     */
+    public int getMaxSize() {
+        return mClasses[mClasses.length - 1].getSize();
+    }
+
+    /**
+     * Returns a Pool adapter for existing callers.  Buffers from the pool
+     * come from the smallest size class that holds size bytes.
+     *
+     * @throws IllegalArgumentException if size exceeds the largest size
+     * class.
+     */
+    public Pool<ByteBuffer> getPool(int size) throws IllegalArgumentException {
+        return getSizeClass(size);
+    }
+
+    /**
+     * @throws IllegalArgumentException if size exceeds the largest size
+     * class.
+     */
+    private SizeClass getSizeClass(int size) throws IllegalArgumentException {
+        for (SizeClass c : mClasses) {
+            if (size <= c.getSize()) {
+                return c;
+            }
+        }
+        throw new IllegalArgumentException("size " + size + " exceeds the largest size class");
+    }
+
+    public boolean isDirect() {
+        return mIsDirect;
+    }
+
+    /**
+     * Returns entry's buffer to its size class.  Entries that did not come
+     * from this allocator are left to the GC.
+     *
+     * @return null
+     */
+    public PoolEntry<ByteBuffer> release(PoolEntry<ByteBuffer> entry) {
+        if (entry == null || entry.get().isDirect() != mIsDirect) {
+            return null;
+        }
+
+        int capacity = entry.get().capacity();
+        for (SizeClass c : mClasses) {
+            if (capacity == c.getSize()) {
+                return c.release(entry);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,119 @@
+// Copyright 2014, Kevin Ko <kevin@faveset.com>. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.faveset.mahttpd;
+
+/**
+ * Holds pre-encoded HTTP Status-Lines so that responses need not format and
+ * encode them on each send.
+ */
+class StatusLines {
+    // Status codes are three digits.
+    private static final int sMaxStatusCode = 999;
+
+    // Status-Lines are pre-encoded for HTTP/1.0 and HTTP/1.1.
+    private static final int sMaxMinorVersion = 1;
+
+    // This is the default reason that will be reported if one is not found
+    // in sReasons.
+    private static final String sUnknownReason = "Unknown";
+
+    // Indexed by status code.  Holds null for unknown codes.
+    private static final String[] sReasons = new String[sMaxStatusCode + 1];
+
+    // Indexed by minor version and then by status code.  Holds null for
+    // unknown codes.
+    private static final byte[][][] sLines = new byte[sMaxMinorVersion + 1][][];
+
+    /**
+     * @return the encoded Status-Line, including the trailing CRLF.
+     */
+    public static byte[] get(int minorVersion, int statusCode) {
+        if (minorVersion >= 0 && minorVersion <= sMaxMinorVersion &&
+                statusCode >= 0 && statusCode <= sMaxStatusCode) {
+            byte[] line = sLines[minorVersion][statusCode];
+            if (line != null) {
+                return line;
+            }
+        }
+
+        // This is uncommon, so just format it.
+        return Strings.getUTF8Bytes(makeLine(minorVersion, statusCode));
+    }
+
+    /**
+     * @return the reason phrase for statusCode.
+     */
+    public static String getReason(int statusCode) {
+        if (statusCode < 0 || statusCode > sMaxStatusCode) {
+            return sUnknownReason;
+        }
+
+        String reason = sReasons[statusCode];
+        if (reason == null) {
+            return sUnknownReason;
+        }
+        return reason;
+    }
+
+    private static String makeLine(int minorVersion, int statusCode) {
+        return String.format("HTTP/1.%d %d, %s\r\n",
+                minorVersion, statusCode, getReason(statusCode));
+    }
+
+    static {
+        // These are taken from RFC2616 recommendations.
+        sReasons[100] = "Continue";
+        sReasons[101] = "Switching Protocols";
+        sReasons[200] = "OK";
+        sReasons[201] = "Created";
+        sReasons[202] = "Accepted";
+        sReasons[203] = "Non-Authoritative Information";
+        sReasons[204] = "No Content";
+        sReasons[205] = "Reset Content";
+        sReasons[206] = "Partial Content";
+        sReasons[300] = "Multiple Choices";
+        sReasons[301] = "Moved Permanently";
+        sReasons[302] = "Found";
+        sReasons[303] = "See Other";
+        sReasons[304] = "Not Modified";
+        sReasons[305] = "Use Proxy";
+        sReasons[307] = "Temporary Redirect";
+        sReasons[400] = "Bad Request";
+        sReasons[401] = "Unauthorized";
+        sReasons[402] = "Payment Required ";
+        sReasons[403] = "Forbidden";
+        sReasons[404] = "Not Found";
+        sReasons[405] = "Method Not Allowed";
+        sReasons[406] = "Not Acceptable";
+        sReasons[407] = "Proxy Authentication Required";
+        sReasons[408] = "Request Time-out";
+        sReasons[409] = "Conflict";
+        sReasons[410] = "Gone";
+        sReasons[411] = "Length Required";
+        sReasons[412] = "Precondition Failed";
+        sReasons[413] = "Request Entity Too Large";
+        sReasons[414] = "Request-URI Too Large";
+        sReasons[415] = "Unsupported Media Type";
+        sReasons[416] = "Requested range not satisfiable";
+        sReasons[417] = "Expectation Failed";
+        sReasons[429] = "Too Many Requests";
+        sReasons[500] = "Internal Server Error";
+        sReasons[501] = "Not Implemented";
+        sReasons[502] = "Bad Gateway";
+        sReasons[503] = "Service Unavailable";
+        sReasons[504] = "Gateway Time-out";
+        sReasons[505] = "HTTP Version not supported";
+
+        for (int minorVersion = 0; minorVersion <= sMaxMinorVersion; minorVersion++) {
+            byte[][] lines = new byte[sMaxStatusCode + 1][];
+            for (int code = 0; code <= sMaxStatusCode; code++) {
+                if (sReasons[code] != null) {
+                    lines[code] = Strings.getUTF8Bytes(makeLine(minorVersion, code));
+                }
+            }
+            sLines[minorVersion] = lines;
+        }
+    }
+}
@@ -65,7 +65,7 @@ class Strings {
                 break;
             }
 
-            if (ch != '\r') {
+            if (ch != '\r' || !lineBuf.hasRemaining()) {
                 break;
             }
 
@@ -497,6 +497,31 @@ class Strings {
         return -1;
     }
 
+    /**
+     * Writes s to buf, truncating each character to a byte.  s must only
+     * contain ASCII characters.  Unlike writeUTF8, no intermediate arrays are
+     * allocated.
+     *
+     * @throws BufferOverflowException if buf lacks space.
+     */
+    public static void writeAscii(String s, ByteBuffer buf) throws BufferOverflowException {
+        final int sLen = s.length();
+        if (buf.remaining() < sLen) {
+            throw new BufferOverflowException();
+        }
+
+        for (int ii = 0; ii < sLen; ii++) {
+            buf.put((byte) s.charAt(ii));
+        }
+    }
+
+    /**
+     * @return s in UTF-8 format.
+     */
+    public static byte[] getUTF8Bytes(String s) {
+        return s.getBytes(sUTF8Charset);
+    }
+
     /**
      * Writes s to buf, converting s to UTF-8 format.
      */
@@ -0,0 +1,270 @@
+// Copyright 2014, Kevin Ko <kevin@faveset.com>. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.faveset.mahttpd;
+
+/**
+ * A hashed timing wheel for connection timeouts.  Timers hash by deadline
+ * tick into a fixed ring of slots, each holding a doubly linked list, so
+ * scheduling and cancellation are O(1).  Deadlines are rounded up to the
+ * tick, so timers fire up to one tick late but never early.
+ *
+ * The wheel is driven by the event loop: getTimeoutMillis() bounds the
+ * select() timeout, and advance() fires expired timers afterward.  Times are
+ * in millis from a monotonic source, such as nowMillis().  Users of the wheel
+ * read the time with getNowMillis() so that tests can substitute their own
+ * TimeSource.
+ *
+ * This is not thread-safe.  It belongs to a single event loop.
+ */
+class TimerWheel {
+    /**
+     * A Timer may be scheduled on a single wheel at a time.  It can be
+     * reused after it fires or is cancelled.
+     */
+    public static class Timer {
+        private final Runnable mTask;
+
+        // The absolute tick at which the timer fires.
+        private long mDeadlineTick;
+
+        // -1 if not linked into a slot.
+        private int mSlot = -1;
+
+        // True if the timer has been collected for firing in the current
+        // advance().  Cancellation clears it.
+        private boolean mIsExpiring;
+
+        private Timer mPrev;
+        private Timer mNext;
+
+        // Links the expired list, which is separate so that a timer can be
+        // rescheduled while awaiting firing.
+        private Timer mNextExpired;
+
+        /**
+         * @param task will be run in the event loop when the timer fires.
+         */
+        public Timer(Runnable task) {
+            mTask = task;
+        }
+
+        public boolean isScheduled() {
+            return (mSlot != -1);
+        }
+    }
+
+    /**
+     * Supplies the current time in millis.  Times must not decrease.
+     */
+    public interface TimeSource {
+        long nowMillis();
+    }
+
+    // nowMillis() is relative to this so that times are never negative.
+    private static final long sBaseNanos = System.nanoTime();
+
+    private static final TimeSource sSystemTimeSource = new TimeSource() {
+        @Override
+        public long nowMillis() {
+            return TimerWheel.nowMillis();
+        }
+    };
+
+    private TimeSource mTimeSource = sSystemTimeSource;
+
+    private final long mTickMillis;
+
+    // Heads of each slot's list.
+    private final Timer[] mSlots;
+
+    // The last tick processed by advance().
+    private long mTick;
+
+    // The number of scheduled timers.
+    private int mCount;
+
+    // Timers collected for firing during advance().
+    private Timer mExpiredHead;
+
+    /**
+     * @param tickMillis the wheel's resolution in millis.
+     * @param slotCount the number of slots.  Timers further out than
+     * tickMillis * slotCount share slots with nearer ones, which are skipped
+     * until due.
+     * @param nowMillis the current time, which must not be negative.
+     *
+     * @throws IllegalArgumentException if tickMillis or slotCount is not
+     * positive.
+     */
+    public TimerWheel(long tickMillis, int slotCount, long nowMillis)
+            throws IllegalArgumentException {
+        if (tickMillis <= 0 || slotCount <= 0) {
+            throw new IllegalArgumentException();
+        }
+
+        mTickMillis = tickMillis;
+        mSlots = new Timer[slotCount];
+        mTick = nowMillis / tickMillis;
+    }
+
+    /**
+     * Fires all timers that have expired by nowMillis.  Timers may schedule
+     * or cancel any timer, including themselves, when fired.
+     *
+     * @return the number of timers fired.
+     */
+    public int advance(long nowMillis) {
+        long targetTick = nowMillis / mTickMillis;
+        if (targetTick <= mTick) {
+            return 0;
+        }
+
+        // Each slot need only be visited once, however far behind we are.
+        long visitCount = Math.min(targetTick - mTick, mSlots.length);
+        for (long ii = 1; ii <= visitCount; ii++) {
+            collectExpired(getSlot(mTick + ii), targetTick);
+        }
+        mTick = targetTick;
+
+        int fireCount = 0;
+        while (mExpiredHead != null) {
+            Timer timer = mExpiredHead;
+            mExpiredHead = timer.mNextExpired;
+            timer.mNextExpired = null;
+
+            if (!timer.mIsExpiring) {
+                // Cancelled or rescheduled by an earlier timer.
+                continue;
+            }
+            timer.mIsExpiring = false;
+
+            timer.mTask.run();
+            fireCount++;
+        }
+
+        return fireCount;
+    }
+
+    /**
+     * Cancels timer if scheduled.
+     */
+    public void cancel(Timer timer) {
+        timer.mIsExpiring = false;
+
+        if (timer.mSlot == -1) {
+            return;
+        }
+
+        if (timer.mPrev != null) {
+            timer.mPrev.mNext = timer.mNext;
+        } else {
+            mSlots[timer.mSlot] = timer.mNext;
+        }
+        if (timer.mNext != null) {
+            timer.mNext.mPrev = timer.mPrev;
+        }
+
+        timer.mPrev = null;
+        timer.mNext = null;
+        timer.mSlot = -1;
+        mCount--;
+    }
+
+    /**
+     * Moves timers in slot that are due by targetTick to the expired list.
+     */
+    private void collectExpired(int slot, long targetTick) {
+        Timer timer = mSlots[slot];
+        while (timer != null) {
+            Timer next = timer.mNext;
+            if (timer.mDeadlineTick <= targetTick) {
+                cancel(timer);
+
+                timer.mIsExpiring = true;
+                timer.mNextExpired = mExpiredHead;
+                mExpiredHead = timer;
+            }
+            timer = next;
+        }
+    }
+
+    /**
+     * @return the number of scheduled timers.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return the current time in millis according to the wheel's
+     * TimeSource, which is nowMillis() by default.
+     */
+    public long getNowMillis() {
+        return mTimeSource.nowMillis();
+    }
+
+    private int getSlot(long tick) {
+        return (int) (tick % mSlots.length);
+    }
+
+    /**
+     * @return the wheel's TimeSource.
+     */
+    public TimeSource getTimeSource() {
+        return mTimeSource;
+    }
+
+    /**
+     * @return the number of millis until the next tick, or 0 if no timers are
+     * scheduled.  This is suitable for Selector.select(long).
+     */
+    public long getTimeoutMillis(long nowMillis) {
+        if (mCount == 0) {
+            return 0;
+        }
+
+        long timeout = (mTick + 1) * mTickMillis - nowMillis;
+        return Math.max(1, timeout);
+    }
+
+    /**
+     * @return the current time in millis from a monotonic source.
+     */
+    public static long nowMillis() {
+        return (System.nanoTime() - sBaseNanos) / 1000000;
+    }
+
+    /**
+     * Schedules timer to fire after delayMillis, replacing any prior schedule.
+     */
+    public void schedule(Timer timer, long delayMillis, long nowMillis) {
+        cancel(timer);
+
+        // Round up so that timers never fire early.
+        long deadlineTick = (nowMillis + delayMillis + mTickMillis - 1) / mTickMillis;
+        if (deadlineTick <= mTick) {
+            deadlineTick = mTick + 1;
+        }
+
+        int slot = getSlot(deadlineTick);
+        timer.mDeadlineTick = deadlineTick;
+        timer.mSlot = slot;
+        timer.mPrev = null;
+        timer.mNext = mSlots[slot];
+        if (timer.mNext != null) {
+            timer.mNext.mPrev = timer;
+        }
+        mSlots[slot] = timer;
+        mCount++;
+    }
+
+    /**
+     * Replaces the wheel's TimeSource.  This is intended for tests, which
+     * drive the wheel with a fake clock.
+     */
+    void setTimeSource(TimeSource source) {
+        mTimeSource = source;
+    }
+}
@@ -14,6 +14,7 @@ import java.math.BigInteger;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateFactory;
 import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
 import java.security.NoSuchAlgorithmException;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
@@ -22,6 +23,7 @@ import java.security.PublicKey;
 import java.security.Security;
 import java.security.SecureRandom;
 import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
 
 import java.util.Date;
 
@@ -150,24 +152,52 @@ public class CertificateBuilder {
         }
     }
 
+    /**
+     * Signs with SHA256withRSA or SHA256withECDSA, depending on the type of the signing key.
+     */
     private static class Signer implements ContentSigner {
-        private static final String sSigAlgorithm = "SHA256withRSA";
+        private static final String sRSASigAlgorithm = "SHA256withRSA";
 
         // OID for sha256WithRSAEncryption
-        private static final String sSigAlgorithmOid = "1.2.840.113549.1.1.11";
+        private static final String sRSASigAlgorithmOid = "1.2.840.113549.1.1.11";
+
+        private static final AlgorithmIdentifier sRSASigAlgorithmIdentifier =
+            new AlgorithmIdentifier(new ASN1ObjectIdentifier(sRSASigAlgorithmOid));
+
+        private static final String sECSigAlgorithm = "SHA256withECDSA";
+
+        // OID for ecdsa-with-SHA256
+        private static final String sECSigAlgorithmOid = "1.2.840.10045.4.3.2";
 
-        private static final AlgorithmIdentifier sSigAlgorithmIdentifier =
-            new AlgorithmIdentifier(new ASN1ObjectIdentifier(sSigAlgorithmOid));
+        private static final AlgorithmIdentifier sECSigAlgorithmIdentifier =
+            new AlgorithmIdentifier(new ASN1ObjectIdentifier(sECSigAlgorithmOid));
 
         private ByteArrayOutputStream mOutputStream;
 
         private Signature mSignature;
 
+        private AlgorithmIdentifier mSigAlgorithmIdentifier;
+
+        /**
+         * @throws IllegalArgumentException if privKey is neither an RSA nor an EC key.
+         */
         public Signer(PrivateKey privKey) throws IllegalArgumentException {
             mOutputStream = new ByteArrayOutputStream();
 
+            String sigAlgorithm;
+            if (isECKey(privKey)) {
+                sigAlgorithm = sECSigAlgorithm;
+                mSigAlgorithmIdentifier = sECSigAlgorithmIdentifier;
+            } else if (privKey.getAlgorithm().equals(sRSAKeyAlgorithm)) {
+                sigAlgorithm = sRSASigAlgorithm;
+                mSigAlgorithmIdentifier = sRSASigAlgorithmIdentifier;
+            } else {
+                throw new IllegalArgumentException(
+                        "unsupported key algorithm " + privKey.getAlgorithm());
+            }
+
             try {
-                mSignature = Signature.getInstance(sSigAlgorithm);
+                mSignature = Signature.getInstance(sigAlgorithm);
                 mSignature.initSign(privKey);
             } catch (GeneralSecurityException e) {
                 throw new IllegalArgumentException(e.getMessage());
@@ -176,7 +206,7 @@ public class CertificateBuilder {
 
         @Override
         public AlgorithmIdentifier getAlgorithmIdentifier() {
-            return sSigAlgorithmIdentifier;
+            return mSigAlgorithmIdentifier;
         }
 
         @Override
@@ -195,11 +225,19 @@ public class CertificateBuilder {
         }
     }
 
-    private static final String sKeyAlgorithm = "RSA";
+    private static final String sRSAKeyAlgorithm = "RSA";
 
     // 2048 bit keys.
     private static final int sKeySizeDefault = 2048;
 
+    private static final String sECKeyAlgorithm = "EC";
+
+    // Some providers (e.g., SpongyCastle) name EC keys this way.
+    private static final String sECDSAKeyAlgorithm = "ECDSA";
+
+    // NIST P-256, which is supported by virtually all TLS clients.
+    private static final String sECCurveDefault = "secp256r1";
+
     // 1 year in millis.  By default, mNotAfter will be sent to now + sDefaultExpireMillis.
     private static long sDefaultExpireMillis = 365 * 24 * 60 * 60 * 1000L;
 
@@ -228,7 +266,7 @@ public class CertificateBuilder {
     public static KeyPair makeKey(int keySize) {
         KeyPairGenerator gen;
         try {
-            gen = KeyPairGenerator.getInstance(sKeyAlgorithm);
+            gen = KeyPairGenerator.getInstance(sRSAKeyAlgorithm);
         } catch (NoSuchAlgorithmException e) {
             // RSA algorithm always exists.
             throw new RuntimeException(e);
@@ -238,6 +276,44 @@ public class CertificateBuilder {
         return gen.generateKeyPair();
     }
 
+    /**
+     * Generates a P-256 EC KeyPair suitable for signing a Certificate.  ECDSA signatures are
+     * several times cheaper than RSA-2048 signatures for a server's handshakes.
+     */
+    public static KeyPair makeECKey() {
+        return makeECKey(sECCurveDefault);
+    }
+
+    /**
+     * Generates an EC KeyPair suitable for signing a Certificate.
+     *
+     * @param curveName standard name of the curve, such as "secp256r1" or "secp384r1".
+     *
+     * @throws IllegalArgumentException if the curve is not supported.
+     */
+    public static KeyPair makeECKey(String curveName) throws IllegalArgumentException {
+        KeyPairGenerator gen;
+        try {
+            gen = KeyPairGenerator.getInstance(sECKeyAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            // EC algorithm always exists.
+            throw new RuntimeException(e);
+        }
+
+        try {
+            gen.initialize(new ECGenParameterSpec(curveName));
+        } catch (InvalidAlgorithmParameterException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+
+        return gen.generateKeyPair();
+    }
+
+    private static boolean isECKey(PrivateKey key) {
+        String alg = key.getAlgorithm();
+        return (alg.equals(sECKeyAlgorithm) || alg.equals(sECDSAKeyAlgorithm));
+    }
+
     public CertificateBuilder() {
         long now = System.currentTimeMillis();
 
@@ -254,10 +330,13 @@ public class CertificateBuilder {
      * Generates a certificate using the signKey and publicKey.  To generate a self-signed
      * certificate, generate a KeyPair and pass the private and public components as parameters.
      *
+     * The certificate is signed with SHA256withRSA for RSA keys and SHA256withECDSA for EC keys.
+     *
      * @param signKey Private issuer key used to sign the certificate.
      * @param certKey Public key that will be contained within the certificate.
      *
-     * @throws IllegalArgumentException if an invalid keysize was specified.
+     * @throws IllegalArgumentException if an invalid keysize was specified or signKey is of
+     * an unsupported type.
      * @throws IOException
      */
     public Certificate build(PrivateKey signKey, PublicKey certKey)
@@ -118,6 +118,8 @@ public class KeyStoreBuilder {
     /**
      * Stores a private key into the keystore using chain as the certificate chain for the key.
      * The password specified by setPassword will be used to secure the key.
+     *
+     * The key may be an RSA or EC key (see CertificateBuilder.makeKey() and makeECKey()).
      */
     public KeyStoreBuilder setPrivateKey(String alias, PrivateKey key, Certificate[] chain)
             throws KeyStoreException {
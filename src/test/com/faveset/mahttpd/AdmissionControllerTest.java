@@ -0,0 +1,86 @@
+// Copyright 2014, Kevin Ko <kevin@faveset.com>. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.faveset.mahttpd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class AdmissionControllerTest {
+    @Test
+    public void testAdmit() {
+        AdmissionController controller = new AdmissionController(2, 1, 10, 50, 100, 100, 0);
+
+        controller.startIteration(0);
+        assertTrue(controller.tryAdmit());
+        assertTrue(controller.tryAdmit());
+        assertFalse(controller.tryAdmit());
+        assertEquals(1, controller.getRejectCount());
+
+        // Releasing within the iteration does not make room.
+        controller.release(1, 0);
+        assertFalse(controller.tryAdmit());
+        controller.endIteration(1);
+
+        // One request is still pending.
+        controller.startIteration(2);
+        assertTrue(controller.tryAdmit());
+        assertFalse(controller.tryAdmit());
+        controller.endIteration(3);
+    }
+
+    @Test
+    public void testAdjust() {
+        AdmissionController controller = new AdmissionController(10, 5, 11, 50, 100, 100, 0);
+
+        // Using at least half of the limit grows it.
+        controller.startIteration(90);
+        for (int ii = 0; ii < 5; ii++) {
+            assertTrue(controller.tryAdmit());
+        }
+        controller.release(5, 10);
+        controller.endIteration(100);
+        assertEquals(11, controller.getLimit());
+
+        // The limit is capped.
+        controller.startIteration(190);
+        for (int ii = 0; ii < 6; ii++) {
+            assertTrue(controller.tryAdmit());
+        }
+        controller.release(6, 10);
+        controller.endIteration(200);
+        assertEquals(11, controller.getLimit());
+
+        // Light use leaves it alone.
+        controller.startIteration(290);
+        assertTrue(controller.tryAdmit());
+        controller.release(1, 10);
+        controller.endIteration(300);
+        assertEquals(11, controller.getLimit());
+
+        // Lag shrinks it in proportion.
+        controller.startIteration(340);
+        controller.endIteration(400);
+        assertEquals(9, controller.getLimit());
+
+        // So does latency.
+        controller.startIteration(490);
+        assertTrue(controller.tryAdmit());
+        controller.release(1, 150);
+        controller.endIteration(500);
+        assertEquals(6, controller.getLimit());
+
+        // Severe lag is bounded by the minimum ratio, and the limit has a
+        // floor.
+        controller.startIteration(500);
+        controller.endIteration(1500);
+        assertEquals(5, controller.getLimit());
+    }
+}
@@ -0,0 +1,109 @@
+// Copyright 2014, Kevin Ko <kevin@faveset.com>. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.faveset.mahttpd;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ArrayNetReaderTest {
+    /**
+     * @return count buffers of size bytes each.  The bytes count up across
+     * all buffers.
+     */
+    private static ByteBuffer[] makeBuffers(int count, int size) {
+        ByteBuffer[] bufs = new ByteBuffer[count];
+        for (int ii = 0; ii < count; ii++) {
+            bufs[ii] = ByteBuffer.allocate(size);
+            for (int jj = 0; jj < size; jj++) {
+                bufs[ii].put((byte) (ii * size + jj));
+            }
+            bufs[ii].flip();
+        }
+        return bufs;
+    }
+
+    /**
+     * Wraps reader into dest until empty with records of at most maxLen
+     * bytes.
+     */
+    private static void wrapAll(ArrayNetReader reader, Helper.CopyingSSLEngine engine,
+            NetBuffer dest, int maxLen) throws SSLException {
+        while (!reader.isEmpty()) {
+            SSLEngineResult result = reader.wrap(engine, dest, maxLen);
+            assertTrue(result.bytesConsumed() > 0);
+            assertTrue(result.bytesConsumed() <= maxLen);
+        }
+    }
+
+    /**
+     * Checks that dest holds the first count bytes from makeBuffers() and
+     * that bufs were consumed with their limits intact.
+     */
+    private static void checkWrapped(ByteBuffer[] bufs, NetBuffer dest, int count) {
+        for (ByteBuffer buf : bufs) {
+            assertEquals(buf.capacity(), buf.limit());
+            assertEquals(buf.capacity(), buf.position());
+        }
+
+        dest.flipRead();
+        ByteBuffer out = dest.getByteBuffer();
+        assertEquals(count, out.remaining());
+        for (int ii = 0; ii < count; ii++) {
+            assertEquals((byte) ii, out.get());
+        }
+    }
+
+    @Test
+    public void testWrapMaxLen() throws SSLException {
+        ByteBuffer[] bufs = makeBuffers(3, 100);
+        ArrayNetReader reader = new ArrayNetReader(bufs);
+        Helper.CopyingSSLEngine engine = new Helper.CopyingSSLEngine();
+        NetBuffer dest = NetBuffer.makeAppendBuffer(ByteBuffer.allocate(1024));
+
+        // Records span buffer boundaries, and the final record is partial.
+        wrapAll(reader, engine, dest, 120);
+        assertEquals(Arrays.asList(120, 120, 60), engine.getRecordSizes());
+
+        checkWrapped(bufs, dest, 300);
+    }
+
+    @Test
+    public void testWrapBoundary() throws SSLException {
+        ByteBuffer[] bufs = makeBuffers(3, 100);
+        ArrayNetReader reader = new ArrayNetReader(bufs);
+        Helper.CopyingSSLEngine engine = new Helper.CopyingSSLEngine();
+        NetBuffer dest = NetBuffer.makeAppendBuffer(ByteBuffer.allocate(1024));
+
+        // Records end exactly on buffer boundaries.
+        wrapAll(reader, engine, dest, 100);
+        assertEquals(Arrays.asList(100, 100, 100), engine.getRecordSizes());
+
+        checkWrapped(bufs, dest, 300);
+    }
+
+    @Test
+    public void testWrapFits() throws SSLException {
+        ByteBuffer[] bufs = makeBuffers(3, 100);
+        ArrayNetReader reader = new ArrayNetReader(bufs);
+        Helper.CopyingSSLEngine engine = new Helper.CopyingSSLEngine();
+        NetBuffer dest = NetBuffer.makeAppendBuffer(ByteBuffer.allocate(1024));
+
+        // Everything fits in a single record.
+        wrapAll(reader, engine, dest, 1000);
+        assertEquals(Arrays.asList(300), engine.getRecordSizes());
+
+        checkWrapped(bufs, dest, 300);
+    }
+}
@@ -104,6 +104,70 @@ public class ByteBufferArrayBuilderTest {
         }
     }
 
+    @Test
+    public void testAppend() {
+        // Use heap buffers when testing so that Helper.compare will work.
+        ByteBufferArrayBuilder builder = new ByteBufferArrayBuilder(4, false);
+        ByteBufferArrayBuilder other = new ByteBufferArrayBuilder(4, false);
+
+        builder.writeString("hello");
+        other.writeString("world");
+        builder.append(other);
+
+        assertEquals(10, builder.remaining());
+        assertEquals(0, other.remaining());
+
+        // other is reusable immediately.
+        other.writeString("foo");
+        builder.append(other);
+        assertEquals(13, builder.remaining());
+
+        try {
+            ByteBuffer[] bufs = builder.build();
+            assertEquals(5, bufs.length);
+
+            Helper.compare(bufs[0], "hell");
+            Helper.compare(bufs[1], "o");
+            Helper.compare(bufs[2], "worl");
+            Helper.compare(bufs[3], "d");
+            Helper.compare(bufs[4], "foo");
+        } finally {
+            builder.clear();
+            other.clear();
+        }
+    }
+
+    @Test
+    public void testBytes() {
+        // Use heap buffers when testing so that Helper.compare will work.
+        ByteBufferArrayBuilder builder = new ByteBufferArrayBuilder(4, false);
+        builder.writeAscii("hello");
+        builder.writeBytes(new byte[]{ (byte) ',', (byte) ' ' });
+        // Fill exactly to a boundary.
+        builder.writeAscii("w");
+
+        assertEquals(8, builder.remaining());
+
+        ByteBufferArrayBuilder.Inserter inserter = builder.insertFront();
+        inserter.writeBytes(Strings.CRLF_BYTES, 1, 1);
+        inserter.writeAscii("abcd");
+        inserter.close();
+
+        assertEquals(13, builder.remaining());
+
+        try {
+            ByteBuffer[] bufs = builder.build();
+            assertEquals(4, bufs.length);
+
+            Helper.compare(bufs[0], "\nabc");
+            Helper.compare(bufs[1], "d");
+            Helper.compare(bufs[2], "hell");
+            Helper.compare(bufs[3], "o, w");
+        } finally {
+            builder.clear();
+        }
+    }
+
     @Test
     public void testStrings() {
         // Use heap buffers when testing so that Helper.compare will work.
@@ -190,4 +254,52 @@ public class ByteBufferArrayBuilderTest {
             builder.clear();
         }
     }
+
+    @Test
+    public void testArray() {
+        // Use heap buffers when testing so that Helper.compare will work.
+        ByteBufferArrayBuilder builder = new ByteBufferArrayBuilder(4, false);
+
+        builder.writeString("body");
+
+        // Insert more buffers than the front headroom holds to force a shift.
+        ByteBufferArrayBuilder.Inserter inserter = builder.insertFront();
+        try {
+            inserter.writeString("0123456789abcdefghij");
+        } finally {
+            inserter.close();
+        }
+        assertEquals(24, builder.remaining());
+
+        builder.finish();
+        ByteBuffer[] bufs = builder.getArray();
+        int offset = builder.getArrayOffset();
+        assertEquals(6, builder.getArrayLength());
+
+        Helper.compare(bufs[offset], "0123");
+        Helper.compare(bufs[offset + 4], "ghij");
+        Helper.compare(bufs[offset + 5], "body");
+
+        // The backing array is reused after a clear.
+        builder.clear();
+        assertEquals(0, builder.getArrayLength());
+
+        builder.writeString("abc");
+        inserter = builder.insertFront();
+        try {
+            inserter.writeString("xy");
+        } finally {
+            inserter.close();
+        }
+
+        builder.finish();
+        assertEquals(bufs, builder.getArray());
+        assertEquals(2, builder.getArrayLength());
+
+        offset = builder.getArrayOffset();
+        Helper.compare(bufs[offset], "xy");
+        Helper.compare(bufs[offset + 1], "abc");
+
+        builder.clear();
+    }
 }
@@ -76,6 +76,35 @@ public class ByteBufferArrayTest {
         assertEquals(12, bufArray.remaining());
     }
 
+    @Test
+    public void testPartialNext() {
+        ByteBuffer[] bufs = new ByteBuffer[3];
+        bufs[0] = Helper.makeByteBuffer("one");
+        bufs[1] = Helper.makeByteBuffer("two");
+        bufs[2] = Helper.makeByteBuffer("three");
+
+        ByteBufferArray bufArray = new ByteBufferArray(bufs);
+
+        // Drain past the first buffer and partway into the second.
+        bufs[0].position(bufs[0].limit());
+        bufs[1].position(1);
+        bufArray.update();
+        assertEquals(1, bufArray.getNonEmptyOffset());
+        assertEquals(7, bufArray.remaining());
+
+        // Then skip over the rest of the second.
+        bufs[1].position(bufs[1].limit());
+        bufs[2].position(2);
+        bufArray.update();
+        assertEquals(2, bufArray.getNonEmptyOffset());
+        assertEquals(3, bufArray.remaining());
+
+        bufs[2].position(bufs[2].limit());
+        bufArray.update();
+        assertEquals(3, bufArray.getNonEmptyOffset());
+        assertEquals(0, bufArray.remaining());
+    }
+
     @Test
     public void testEmpty() {
         ByteBuffer[] bufs = new ByteBuffer[0];
@@ -107,4 +136,35 @@ public class ByteBufferArrayTest {
         assertEquals(1, bufArray.getNonEmptyOffset());
         assertEquals(0, bufArray.remaining());
     }
+
+    @Test
+    public void testRange() {
+        ByteBuffer[] bufs = new ByteBuffer[4];
+        bufs[0] = Helper.makeByteBuffer("one");
+        bufs[1] = Helper.makeByteBuffer("two");
+        bufs[2] = Helper.makeByteBuffer("three");
+        bufs[3] = Helper.makeByteBuffer("four");
+
+        ByteBufferArray bufArray = new ByteBufferArray(bufs, 1, 2);
+        assertEquals(2, bufArray.length());
+        assertEquals(1, bufArray.getNonEmptyOffset());
+        assertEquals(2, bufArray.getNonEmptyLength());
+        assertEquals(8, bufArray.remaining());
+
+        bufs[1].position(bufs[1].limit());
+        bufArray.update();
+        assertEquals(2, bufArray.getNonEmptyOffset());
+        assertEquals(1, bufArray.getNonEmptyLength());
+        assertEquals(5, bufArray.remaining());
+
+        bufs[2].position(bufs[2].limit());
+        bufArray.update();
+        assertEquals(3, bufArray.getNonEmptyOffset());
+        assertEquals(0, bufArray.getNonEmptyLength());
+        assertEquals(0, bufArray.remaining());
+
+        bufArray.reset(bufs, 3, 1);
+        assertEquals(3, bufArray.getNonEmptyOffset());
+        assertEquals(4, bufArray.remaining());
+    }
 }
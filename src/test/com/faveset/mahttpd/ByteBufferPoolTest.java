@@ -6,6 +6,7 @@ package com.faveset.mahttpd;
 
 import java.nio.ByteBuffer;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -60,4 +61,89 @@ public class ByteBufferPoolTest {
         assertEquals(null, pool.release(entry3));
         assertEquals(2, pool.getFreeEntryCount());
     }
+
+    @Test
+    public void testDoubleRelease() {
+        ByteBufferPool pool = new ByteBufferPool(1024, false, 4);
+
+        PoolEntry<ByteBuffer> entry1 = pool.allocate();
+        assertEquals(null, pool.release(entry1));
+        // The second release is ignored.
+        assertEquals(null, pool.release(entry1));
+        assertEquals(1, pool.getFreeEntryCount());
+
+        // Only one of the allocations reuses entry1.
+        PoolEntry<ByteBuffer> entry2 = pool.allocate();
+        PoolEntry<ByteBuffer> entry3 = pool.allocate();
+        assertEquals(entry1, entry2);
+        assertTrue(entry3 != entry1);
+        assertTrue(entry3.get() != entry1.get());
+        assertEquals(0, pool.getFreeEntryCount());
+
+        // The entry may be released again once it has been reallocated.
+        assertEquals(null, pool.release(entry2));
+        assertEquals(1, pool.getFreeEntryCount());
+
+        // Entries that the pool does not retain are guarded as well.
+        pool = new ByteBufferPool(1024, false, 0);
+        entry1 = pool.allocate();
+        pool.release(entry1);
+        pool.release(entry1);
+        assertEquals(0, pool.getFreeEntryCount());
+    }
+
+    @Test
+    public void testThreads() throws InterruptedException {
+        final ByteBufferPool pool = new ByteBufferPool(16, false, 8);
+        final AtomicInteger errorCount = new AtomicInteger();
+
+        final int threadCount = 4;
+        final int iterCount = 10000;
+
+        Thread[] threads = new Thread[threadCount];
+        for (int ii = 0; ii < threadCount; ii++) {
+            final byte id = (byte) (ii + 1);
+            threads[ii] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    PoolEntry<ByteBuffer>[] entries = makeEntryArray(6);
+                    for (int jj = 0; jj < iterCount; jj++) {
+                        for (int kk = 0; kk < entries.length; kk++) {
+                            entries[kk] = pool.allocate();
+                            ByteBuffer buf = entries[kk].get();
+                            if (buf.position() != 0) {
+                                errorCount.incrementAndGet();
+                            }
+                            buf.put(id);
+                        }
+
+                        // No other thread may have written to our buffers.
+                        for (int kk = 0; kk < entries.length; kk++) {
+                            if (entries[kk].get().get(0) != id) {
+                                errorCount.incrementAndGet();
+                            }
+                            entries[kk] = pool.release(entries[kk]);
+                        }
+                    }
+                }
+            });
+        }
+
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertEquals(0, errorCount.get());
+        // All entries were released, and more than 8 were needed, so the pool
+        // is exactly full.
+        assertEquals(8, pool.getFreeEntryCount());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static PoolEntry<ByteBuffer>[] makeEntryArray(int size) {
+        return (PoolEntry<ByteBuffer>[]) new PoolEntry[size];
+    }
 }
@@ -0,0 +1,54 @@
+// Copyright 2014, Kevin Ko <kevin@faveset.com>. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.faveset.mahttpd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ClockTest {
+    @Test
+    public void test() {
+        Clock clock = new Clock(1394944106000L);
+
+        Clock.Snapshot snap = clock.getSnapshot();
+        assertEquals(1394944106L, snap.getSecs());
+        assertEquals("15/Mar/2014:23:28:26 -0500", snap.getClfString());
+        Helper.compare(ByteBuffer.wrap(snap.getDateHeaderBytes()),
+                "Date: Sat, 15 Mar 2014 23:28:26 CDT\r\n");
+
+        // Snapshots only change with the second.
+        clock.tick(1394944106999L);
+        assertSame(snap, clock.getSnapshot());
+
+        clock.tick(1394944107000L);
+        snap = clock.getSnapshot();
+        assertEquals(1394944107L, snap.getSecs());
+        assertEquals("15/Mar/2014:23:28:27 -0500", snap.getClfString());
+        Helper.compare(ByteBuffer.wrap(snap.getDateHeaderBytes()),
+                "Date: Sat, 15 Mar 2014 23:28:27 CDT\r\n");
+    }
+
+    @Test
+    public void testShared() throws InterruptedException {
+        Clock clock = Clock.get();
+        assertSame(clock, Clock.get());
+
+        Clock.Snapshot snap = clock.getSnapshot();
+        long deadline = System.currentTimeMillis() + 3000;
+        while (clock.getSnapshot() == snap && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        // The ticker should have advanced the clock.
+        assertNotSame(snap, clock.getSnapshot());
+    }
+}
@@ -0,0 +1,65 @@
+// Copyright 2014, Kevin Ko <kevin@faveset.com>. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.faveset.mahttpd;
+
+import java.net.InetAddress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ConnectionLimiterTest {
+    @Test
+    public void test() throws Exception {
+        InetAddress addr1 = InetAddress.getByAddress(new byte[]{ 10, 0, 0, 1 });
+        InetAddress addr2 = InetAddress.getByAddress(new byte[]{ 10, 0, 0, 2 });
+
+        ConnectionLimiter limiter = new ConnectionLimiter(3, 1, 2);
+        assertTrue(limiter.acquire(addr1));
+        assertTrue(limiter.acquire(addr1));
+        assertFalse(limiter.acquire(addr1));
+        assertEquals(1, limiter.getRejectCount());
+        assertEquals(2, limiter.getCount(addr1));
+        assertFalse(limiter.isAtCapacity());
+
+        assertTrue(limiter.acquire(addr2));
+        assertEquals(3, limiter.getCount());
+        assertTrue(limiter.isAtCapacity());
+        assertFalse(limiter.isBelowLowWatermark());
+
+        limiter.release(addr1);
+        assertFalse(limiter.isAtCapacity());
+        assertFalse(limiter.isBelowLowWatermark());
+
+        limiter.release(addr1);
+        assertEquals(0, limiter.getCount(addr1));
+        assertTrue(limiter.isBelowLowWatermark());
+
+        limiter.release(addr2);
+        assertEquals(0, limiter.getCount());
+    }
+
+    @Test
+    public void testNoLimit() throws Exception {
+        InetAddress addr = InetAddress.getByAddress(new byte[]{ 10, 0, 0, 1 });
+
+        ConnectionLimiter limiter = new ConnectionLimiter(0, 0, 0);
+        for (int ii = 0; ii < 100; ii++) {
+            assertTrue(limiter.acquire(addr));
+        }
+        assertFalse(limiter.isAtCapacity());
+        assertTrue(limiter.isBelowLowWatermark());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testBadWatermark() {
+        new ConnectionLimiter(10, 10, 0);
+    }
+}
@@ -15,7 +15,12 @@ import java.nio.charset.Charset;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLSession;
 
 import static org.junit.Assert.assertEquals;
 
@@ -50,9 +55,11 @@ class Helper {
         public void run() throws IOException, InterruptedException {
             Object signal = new Object();
             Helper.ServerThread server = new Helper.ServerThread(mListenPort, signal, mServerTask);
-            server.start();
 
+            // Start the server while holding the monitor so that its notify()
+            // cannot fire before we wait().
             synchronized (signal) {
+                server.start();
                 signal.wait();
             }
 
@@ -157,6 +164,133 @@ class Helper {
         }
     }
 
+    /**
+     * An SSLEngine that wraps by copying plaintext as is, with each wrap()
+     * producing one record.  This exercises record sizing without a
+     * handshake.  Only wrap() is supported.
+     */
+    public static class CopyingSSLEngine extends SSLEngine {
+        // The plaintext bytes consumed by each wrap.
+        private List<Integer> mRecordSizes = new ArrayList<Integer>();
+
+        public List<Integer> getRecordSizes() {
+            return mRecordSizes;
+        }
+
+        @Override
+        public SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length, ByteBuffer dst) {
+            int count = 0;
+            for (int ii = offset; ii < offset + length; ii++) {
+                ByteBuffer src = srcs[ii];
+                if (src.remaining() > dst.remaining()) {
+                    break;
+                }
+                count += src.remaining();
+                dst.put(src);
+            }
+            mRecordSizes.add(count);
+            return new SSLEngineResult(SSLEngineResult.Status.OK,
+                    SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING, count, count);
+        }
+
+        @Override
+        public SSLEngineResult unwrap(ByteBuffer src, ByteBuffer[] dsts, int offset, int length) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Runnable getDelegatedTask() {
+            return null;
+        }
+
+        @Override
+        public void closeInbound() {}
+
+        @Override
+        public boolean isInboundDone() {
+            return false;
+        }
+
+        @Override
+        public void closeOutbound() {}
+
+        @Override
+        public boolean isOutboundDone() {
+            return false;
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return new String[0];
+        }
+
+        @Override
+        public String[] getEnabledCipherSuites() {
+            return new String[0];
+        }
+
+        @Override
+        public void setEnabledCipherSuites(String[] suites) {}
+
+        @Override
+        public String[] getSupportedProtocols() {
+            return new String[0];
+        }
+
+        @Override
+        public String[] getEnabledProtocols() {
+            return new String[0];
+        }
+
+        @Override
+        public void setEnabledProtocols(String[] protocols) {}
+
+        @Override
+        public SSLSession getSession() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void beginHandshake() {}
+
+        @Override
+        public SSLEngineResult.HandshakeStatus getHandshakeStatus() {
+            return SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+        }
+
+        @Override
+        public void setUseClientMode(boolean mode) {}
+
+        @Override
+        public boolean getUseClientMode() {
+            return false;
+        }
+
+        @Override
+        public void setNeedClientAuth(boolean need) {}
+
+        @Override
+        public boolean getNeedClientAuth() {
+            return false;
+        }
+
+        @Override
+        public void setWantClientAuth(boolean want) {}
+
+        @Override
+        public boolean getWantClientAuth() {
+            return false;
+        }
+
+        @Override
+        public void setEnableSessionCreation(boolean flag) {}
+
+        @Override
+        public boolean getEnableSessionCreation() {
+            return false;
+        }
+    }
+
     public static final Charset US_ASCII_CHARSET = Charset.forName("US-ASCII");
 
     public static void compare(ByteBuffer buf, String v) {
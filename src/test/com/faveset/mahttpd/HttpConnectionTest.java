@@ -14,6 +14,7 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.channels.Selector;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
@@ -21,6 +22,8 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.text.SimpleDateFormat;
 
 import org.junit.Test;
@@ -37,10 +40,43 @@ public class HttpConnectionTest {
     private static SimpleDateFormat sHttpDateFormat =
         new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz");
 
+    // Real time to wait for the event loop to react to each step of the fake
+    // clock.
+    private static final long sStepWaitMillis = 10;
+
+    // Bounds the fake time that a timeout test may take.
+    private static final long sMaxFakeMillis = 60000;
+
+    /**
+     * Drives the Tester's TimerWheel.  The client thread advances the time,
+     * and the event loop picks up the change on its next iteration.
+     */
+    private static class FakeTimeSource implements TimerWheel.TimeSource {
+        private volatile long mNowMillis;
+
+        /**
+         * This must only be called by one thread.
+         */
+        public void advance(long millis) {
+            mNowMillis += millis;
+        }
+
+        @Override
+        public long nowMillis() {
+            return mNowMillis;
+        }
+    }
+
+    private FakeTimeSource mTimeSource = new FakeTimeSource();
+
     private abstract class Tester {
         private Helper.ServerThread.Task mServerTask;
         private Log mLog = new NullLog();
 
+        private SelectTaskQueue mTaskQueue;
+
+        private TimerWheel mTimerWheel;
+
         public Tester(Helper.ServerThread.Task serverTask) {
             mServerTask = serverTask;
         }
@@ -49,16 +85,37 @@ public class HttpConnectionTest {
 
         protected void finish() {}
 
+        /**
+         * @return the queue for tasks that run in the selector loop.  This
+         * is valid in prepareConn().
+         */
+        protected SelectTaskQueue getTaskQueue() {
+            return mTaskQueue;
+        }
+
+        /**
+         * @return a wheel that runs on mTimeSource.  This is valid in
+         * prepareConn().
+         */
+        protected TimerWheel getTimerWheel() {
+            return mTimerWheel;
+        }
+
         public void run() throws IOException, InterruptedException {
             Object signal = new Object();
             Helper.ServerThread server = new Helper.ServerThread(sListenPort, signal, mServerTask);
-            server.start();
 
+            // Start the server while holding the monitor so that its notify()
+            // cannot fire before we wait().
             synchronized (signal) {
+                server.start();
                 signal.wait();
             }
 
             final Selector selector = Selector.open();
+            mTaskQueue = new SelectTaskQueue(selector);
+            mTimerWheel = new TimerWheel(100, 64, mTimeSource.nowMillis());
+            mTimerWheel.setTimeSource(mTimeSource);
 
             SocketChannel chan = Helper.connect(sListenPort);
             HttpConnection conn = new HttpConnection(selector, chan);
@@ -74,12 +131,19 @@ public class HttpConnectionTest {
                     break;
                 }
 
+                Runnable task;
+                while ((task = mTaskQueue.poll()) != null) {
+                    task.run();
+                }
+
                 Set<SelectionKey> readyKeys = selector.selectedKeys();
 
                 for (SelectionKey key : readyKeys) {
                     SelectorHandler handler = (SelectorHandler) key.attachment();
                     handler.onReady(key);
                 }
+
+                mTimerWheel.advance(mTimerWheel.getNowMillis());
             }
 
             selector.close();
@@ -249,6 +313,77 @@ public class HttpConnectionTest {
     }
 
     private Tester makeSimpleTester(Helper.ServerThread.Task task) {
+        return makeTester(task, new HashMap<String, HttpHandler>());
+    }
+
+    /**
+     * Like makeTester, but timeouts run on mTimeSource.  closeLatch counts
+     * down when the connection closes.
+     */
+    private Tester makeTimeoutTester(Helper.ServerThread.Task task,
+            final Map<String, HttpHandler> handlers, final ConnectionTimeouts timeouts,
+            final CountDownLatch closeLatch) {
+        return new Tester(task) {
+            @Override
+            protected void prepareConn(HttpConnection conn) {
+                conn.setOnCloseCallback(new HttpConnection.OnCloseCallback() {
+                    public void onClose(HttpConnection conn) {
+                        closeLatch.countDown();
+                        try {
+                            conn.close();
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+
+                conn.setTimeouts(getTimerWheel(), timeouts);
+                conn.start(handlers);
+            }
+        };
+    }
+
+    /**
+     * @return timeouts with only the given timeouts enabled and no minimum
+     * data rates.
+     */
+    private static ConnectionTimeouts makeTimeouts(long idleMillis, long headerMillis,
+            long sendMillis) {
+        ConnectionTimeouts timeouts = new ConnectionTimeouts();
+        timeouts.setIdleMillis(idleMillis);
+        timeouts.setHeaderMillis(headerMillis);
+        timeouts.setBodyMillis(0);
+        timeouts.setSendMillis(sendMillis);
+        timeouts.setMinRecvRate(0);
+        timeouts.setMinSendRate(0);
+        timeouts.setRateGraceMillis(0);
+        return timeouts;
+    }
+
+    /**
+     * Advances mTimeSource in steps of stepMillis until the connection
+     * closes or sMaxFakeMillis elapse.  This must be called by the client.
+     *
+     * @return the fake millis that elapsed.
+     */
+    private long advanceUntilClosed(CountDownLatch closeLatch, long stepMillis) {
+        long elapsedMillis = 0;
+        try {
+            while (!closeLatch.await(sStepWaitMillis, TimeUnit.MILLISECONDS)) {
+                if (elapsedMillis >= sMaxFakeMillis) {
+                    break;
+                }
+                mTimeSource.advance(stepMillis);
+                elapsedMillis += stepMillis;
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        return elapsedMillis;
+    }
+
+    private Tester makeTester(Helper.ServerThread.Task task,
+            final Map<String, HttpHandler> handlers) {
         return new Tester(task) {
             private void handleClose(HttpConnection conn) {
                 try {
@@ -266,7 +401,6 @@ public class HttpConnectionTest {
                     }
                 });
 
-                Map<String, HttpHandler> handlers = new HashMap<String, HttpHandler>();
                 conn.start(handlers);
             }
         };
@@ -408,4 +542,458 @@ public class HttpConnectionTest {
         });
         tester.run();
     }
+
+    @Test
+    public void testPipeline() throws IOException, InterruptedException {
+        Tester tester = makeSimpleTester(new Helper.ServerThread.Task() {
+            public void run(Socket sock) {
+                try {
+                    OutputStream os = sock.getOutputStream();
+                    PrintWriter w = new PrintWriter(os);
+                    // Issue all requests in a single write.
+                    w.print("GET / HTTP/1.1\r\n");
+                    w.print("\r\n");
+                    w.print("GET /a HTTP/1.1\r\n");
+                    w.print("Host: localhost\r\n");
+                    w.print("\r\n");
+                    w.print("GET /b HTTP/1.1\r\n");
+                    w.print("Connection: close\r\n");
+                    w.print("\r\n");
+                    w.flush();
+
+                    InputStream is = sock.getInputStream();
+                    for (int ii = 0; ii < 2; ii++) {
+                        String line = Helper.readLine(is);
+                        assertEquals("HTTP/1.1 404, Not Found\r\n", line);
+                        checkEmpty(is);
+                        line = Helper.readLine(is);
+                        assertEquals("\r\n", line);
+                    }
+
+                    String line = Helper.readLine(is);
+                    assertEquals("HTTP/1.1 404, Not Found\r\n", line);
+                    checkEmptyConnectionClose(is);
+                    line = Helper.readLine(is);
+                    assertEquals("\r\n", line);
+
+                    line = Helper.readLine(is);
+                    assertEquals("", line);
+
+                    sock.close();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        tester.run();
+    }
+
+    @Test
+    public void testPipelineBudget() throws IOException, InterruptedException {
+        Map<String, HttpHandler> handlers = new HashMap<String, HttpHandler>();
+        handlers.put("/echo", new HttpHandler() {
+            public void onRequest(HttpRequest req, HttpResponseWriter w) {
+                w.write(req.getHeaders().getFirst("X-Id"));
+            }
+        });
+
+        final int requestCount = 5;
+        Tester tester = new Tester(new Helper.ServerThread.Task() {
+            public void run(Socket sock) {
+                try {
+                    OutputStream os = sock.getOutputStream();
+                    PrintWriter w = new PrintWriter(os);
+                    // Issue all requests in a single write, which exceeds the
+                    // budget.
+                    for (int ii = 0; ii < requestCount; ii++) {
+                        w.print("GET /echo HTTP/1.1\r\n");
+                        w.print("X-Id: " + ii + "\r\n");
+                        w.print("\r\n");
+                    }
+                    w.flush();
+
+                    InputStream is = sock.getInputStream();
+                    for (int ii = 0; ii < requestCount; ii++) {
+                        String line = Helper.readLine(is);
+                        assertEquals("HTTP/1.1 200, OK\r\n", line);
+                        checkHeaders(is, new ExpectedHeader[]{
+                            new ExpectedHeader("Content-Length", "1"),
+                            new ExpectedDateHeader(new Date()),
+                        });
+                        line = Helper.readLine(is);
+                        assertEquals("\r\n", line);
+                        assertEquals('0' + ii, is.read());
+                    }
+
+                    sock.close();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }) {
+            @Override
+            protected void prepareConn(HttpConnection conn) {
+                conn.setOnCloseCallback(new HttpConnection.OnCloseCallback() {
+                    public void onClose(HttpConnection conn) {
+                        try {
+                            conn.close();
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+
+                // Handle two requests per round.
+                conn.setWorkBudget(getTaskQueue(), 2, 0);
+                conn.start(handlers);
+            }
+        };
+        tester.run();
+    }
+
+    @Test
+    public void testPartialRequest() throws IOException, InterruptedException {
+        Tester tester = makeSimpleTester(new Helper.ServerThread.Task() {
+            public void run(Socket sock) {
+                try {
+                    OutputStream os = sock.getOutputStream();
+                    PrintWriter w = new PrintWriter(os);
+                    // Split the request mid-line and mid-terminator.
+                    w.print("GET / HT");
+                    w.flush();
+                    Thread.sleep(50);
+
+                    w.print("TP/1.1\r\nHost: localhost\r\n\r");
+                    w.flush();
+                    Thread.sleep(50);
+
+                    w.print("\n");
+                    w.flush();
+
+                    InputStream is = sock.getInputStream();
+                    String line = Helper.readLine(is);
+                    assertEquals("HTTP/1.1 404, Not Found\r\n", line);
+                    checkEmpty(is);
+                    line = Helper.readLine(is);
+                    assertEquals("\r\n", line);
+
+                    sock.close();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        tester.run();
+    }
+
+    @Test
+    public void testLargeResponse() throws IOException, InterruptedException {
+        // Larger than the connection's out buffer.
+        final int bigLen = 3 * Constants.BYTE_BUFFER_SIZE;
+        StringBuilder sb = new StringBuilder(bigLen);
+        for (int ii = 0; ii < bigLen; ii++) {
+            sb.append((char) ('a' + (ii % 26)));
+        }
+        final String bigBody = sb.toString();
+
+        Map<String, HttpHandler> handlers = new HashMap<String, HttpHandler>();
+        handlers.put("/small", new HttpHandler() {
+            public void onRequest(HttpRequest req, HttpResponseWriter w) {
+                w.write("hello");
+            }
+        });
+        handlers.put("/big", new HttpHandler() {
+            public void onRequest(HttpRequest req, HttpResponseWriter w) {
+                w.write(bigBody);
+            }
+        });
+
+        Tester tester = makeTester(new Helper.ServerThread.Task() {
+            private void checkBody(InputStream is, String body) throws IOException {
+                String line = Helper.readLine(is);
+                assertEquals("HTTP/1.1 200, OK\r\n", line);
+                checkHeaders(is, new ExpectedHeader[]{
+                    new ExpectedHeader("Content-Length", Integer.toString(body.length())),
+                    new ExpectedDateHeader(new Date()),
+                });
+                line = Helper.readLine(is);
+                assertEquals("\r\n", line);
+
+                byte[] data = new byte[body.length()];
+                int offset = 0;
+                while (offset < data.length) {
+                    int len = is.read(data, offset, data.length - offset);
+                    assertTrue(len > 0);
+                    offset += len;
+                }
+                assertEquals(body, new String(data, "US-ASCII"));
+            }
+
+            public void run(Socket sock) {
+                try {
+                    OutputStream os = sock.getOutputStream();
+                    PrintWriter w = new PrintWriter(os);
+                    // The small responses bracket one that must spill over
+                    // from the out buffer.
+                    w.print("GET /small HTTP/1.1\r\n\r\n");
+                    w.print("GET /big HTTP/1.1\r\n\r\n");
+                    w.print("GET /small HTTP/1.1\r\n\r\n");
+                    w.flush();
+
+                    InputStream is = sock.getInputStream();
+                    checkBody(is, "hello");
+                    checkBody(is, bigBody);
+                    checkBody(is, "hello");
+
+                    sock.close();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }, handlers);
+        tester.run();
+    }
+
+    @Test
+    public void testIdleTimeout() throws IOException, InterruptedException {
+        final CountDownLatch closeLatch = new CountDownLatch(1);
+        final long[] elapsedMillis = new long[1];
+        final int[] readResult = new int[1];
+
+        Tester tester = makeTimeoutTester(new Helper.ServerThread.Task() {
+            public void run(Socket sock) {
+                try {
+                    // The client never sends a request.
+                    elapsedMillis[0] = advanceUntilClosed(closeLatch, 250);
+                    readResult[0] = sock.getInputStream().read();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }, new HashMap<String, HttpHandler>(), makeTimeouts(1000, 0, 0), closeLatch);
+        tester.run();
+
+        assertEquals(0, closeLatch.getCount());
+        assertTrue(elapsedMillis[0] >= 1000);
+        assertTrue(elapsedMillis[0] < sMaxFakeMillis);
+        // The connection closes without a response.
+        assertEquals(-1, readResult[0]);
+    }
+
+    @Test
+    public void testHeaderTimeout() throws IOException, InterruptedException {
+        final CountDownLatch closeLatch = new CountDownLatch(1);
+        final long[] elapsedMillis = new long[1];
+        final String[] statusLine = new String[1];
+
+        Tester tester = makeTimeoutTester(new Helper.ServerThread.Task() {
+            public void run(Socket sock) {
+                try {
+                    // The headers never finish.
+                    PrintWriter w = new PrintWriter(sock.getOutputStream());
+                    w.print("GET / HTTP/1.1\r\n");
+                    w.print("Host: localhost\r\n");
+                    w.flush();
+
+                    elapsedMillis[0] = advanceUntilClosed(closeLatch, 250);
+                    statusLine[0] = Helper.readLine(sock.getInputStream());
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }, new HashMap<String, HttpHandler>(), makeTimeouts(0, 1000, 0), closeLatch);
+        tester.run();
+
+        assertEquals(0, closeLatch.getCount());
+        assertTrue(elapsedMillis[0] >= 1000);
+        assertTrue(elapsedMillis[0] < sMaxFakeMillis);
+        assertEquals("HTTP/1.1 408, Request Time-out\r\n", statusLine[0]);
+    }
+
+    @Test
+    public void testSendTimeout() throws IOException, InterruptedException {
+        // Far more than the socket buffers hold.
+        final int bigLen = 32 * 1024 * 1024;
+
+        Map<String, HttpHandler> handlers = new HashMap<String, HttpHandler>();
+        handlers.put("/big", new HttpHandler() {
+            public void onRequest(HttpRequest req, HttpResponseWriter w) {
+                w.write(ByteBuffer.allocate(bigLen));
+            }
+        });
+
+        final CountDownLatch closeLatch = new CountDownLatch(1);
+        final long[] elapsedMillis = new long[1];
+        final long[] readCount = new long[1];
+
+        Tester tester = makeTimeoutTester(new Helper.ServerThread.Task() {
+            public void run(Socket sock) {
+                try {
+                    PrintWriter w = new PrintWriter(sock.getOutputStream());
+                    w.print("GET /big HTTP/1.1\r\n\r\n");
+                    w.flush();
+
+                    // Stall the send by not reading.
+                    elapsedMillis[0] = advanceUntilClosed(closeLatch, 250);
+
+                    InputStream is = sock.getInputStream();
+                    byte[] data = new byte[65536];
+                    int len;
+                    while ((len = is.read(data)) != -1) {
+                        readCount[0] += len;
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }, handlers, makeTimeouts(0, 0, 1000), closeLatch);
+        tester.run();
+
+        assertEquals(0, closeLatch.getCount());
+        assertTrue(elapsedMillis[0] >= 1000);
+        assertTrue(elapsedMillis[0] < sMaxFakeMillis);
+        // The response was cut short.
+        assertTrue(readCount[0] < bigLen);
+    }
+
+    @Test
+    public void testSlowHeaderRate() throws IOException, InterruptedException {
+        ConnectionTimeouts timeouts = makeTimeouts(0, 0, 0);
+        timeouts.setMinRecvRate(10);
+        timeouts.setRateGraceMillis(2000);
+
+        final CountDownLatch closeLatch = new CountDownLatch(1);
+        final long[] elapsedMillis = new long[1];
+        final String[] statusLine = new String[1];
+
+        Tester tester = makeTimeoutTester(new Helper.ServerThread.Task() {
+            public void run(Socket sock) {
+                try {
+                    OutputStream os = sock.getOutputStream();
+                    os.write(Strings.getUTF8Bytes("GET / HTTP/1.1\r\nX-Slow: "));
+                    os.flush();
+
+                    // Trickle a byte per step during the grace period.  The
+                    // trickle stops early so that the server has read
+                    // everything by the time it responds.
+                    for (int ii = 0; ii < 4; ii++) {
+                        Thread.sleep(sStepWaitMillis);
+                        os.write('a');
+                        os.flush();
+                        Thread.sleep(sStepWaitMillis);
+                        mTimeSource.advance(250);
+                    }
+
+                    elapsedMillis[0] = 1000 + advanceUntilClosed(closeLatch, 250);
+                    statusLine[0] = Helper.readLine(sock.getInputStream());
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }, new HashMap<String, HttpHandler>(), timeouts, closeLatch);
+        tester.run();
+
+        assertEquals(0, closeLatch.getCount());
+        assertTrue(elapsedMillis[0] >= 2000);
+        assertTrue(elapsedMillis[0] < sMaxFakeMillis);
+        assertEquals("HTTP/1.1 408, Request Time-out\r\n", statusLine[0]);
+    }
+
+    @Test
+    public void testMinHeaderRate() throws IOException, InterruptedException {
+        ConnectionTimeouts timeouts = makeTimeouts(0, 0, 0);
+        timeouts.setMinRecvRate(10);
+        timeouts.setRateGraceMillis(1000);
+
+        final CountDownLatch closeLatch = new CountDownLatch(1);
+        final String[] statusLine = new String[1];
+
+        Tester tester = makeTimeoutTester(new Helper.ServerThread.Task() {
+            public void run(Socket sock) {
+                try {
+                    OutputStream os = sock.getOutputStream();
+                    os.write(Strings.getUTF8Bytes("GET / HTTP/1.1\r\n"));
+                    os.flush();
+
+                    // Send 10 bytes every 500ms, which is twice the minimum
+                    // rate.  The slack covers steps that the server sees
+                    // before the data.
+                    byte[] line = Strings.getUTF8Bytes("X-Ab: 12\r\n");
+                    for (int ii = 0; ii < 8; ii++) {
+                        Thread.sleep(sStepWaitMillis);
+                        os.write(line);
+                        os.flush();
+                        Thread.sleep(sStepWaitMillis);
+                        mTimeSource.advance(500);
+                    }
+                    os.write(Strings.getUTF8Bytes("\r\n"));
+                    os.flush();
+
+                    InputStream is = sock.getInputStream();
+                    statusLine[0] = Helper.readLine(is);
+                    checkEmpty(is);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }, new HashMap<String, HttpHandler>(), timeouts, closeLatch);
+        tester.run();
+
+        assertEquals("HTTP/1.1 404, Not Found\r\n", statusLine[0]);
+    }
+
+    @Test
+    public void testSlowSendRate() throws IOException, InterruptedException {
+        // Far more than the socket buffers hold.
+        final int bigLen = 32 * 1024 * 1024;
+
+        Map<String, HttpHandler> handlers = new HashMap<String, HttpHandler>();
+        handlers.put("/big", new HttpHandler() {
+            public void onRequest(HttpRequest req, HttpResponseWriter w) {
+                w.write(ByteBuffer.allocate(bigLen));
+            }
+        });
+
+        ConnectionTimeouts timeouts = makeTimeouts(0, 0, 0);
+        timeouts.setMinSendRate(1024 * 1024);
+        timeouts.setRateGraceMillis(1000);
+
+        final CountDownLatch closeLatch = new CountDownLatch(1);
+        final long[] elapsedMillis = new long[1];
+        final long[] readCount = new long[1];
+
+        Tester tester = makeTimeoutTester(new Helper.ServerThread.Task() {
+            public void run(Socket sock) {
+                try {
+                    PrintWriter w = new PrintWriter(sock.getOutputStream());
+                    w.print("GET /big HTTP/1.1\r\n\r\n");
+                    w.flush();
+
+                    // Never read, so the send falls below the minimum rate.
+                    elapsedMillis[0] = advanceUntilClosed(closeLatch, 250);
+
+                    InputStream is = sock.getInputStream();
+                    byte[] data = new byte[65536];
+                    int len;
+                    while ((len = is.read(data)) != -1) {
+                        readCount[0] += len;
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }, handlers, timeouts, closeLatch);
+        tester.run();
+
+        assertEquals(0, closeLatch.getCount());
+        assertTrue(elapsedMillis[0] >= 1000);
+        assertTrue(elapsedMillis[0] < sMaxFakeMillis);
+        assertTrue(readCount[0] < bigLen);
+    }
 }
@@ -0,0 +1,227 @@
+// Copyright 2014, Kevin Ko <kevin@faveset.com>. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.faveset.mahttpd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class HttpServerTest {
+    // Bounds blocking reads and joins so that failures do not hang.
+    private static final int sWaitMillis = 10000;
+
+    // Real time for the server to read data that was just sent.
+    private static final long sSettleMillis = 100;
+
+    private HttpServer mServer;
+
+    private Thread mServeThread;
+
+    private int mPort;
+
+    // Set if serve() throws.
+    private volatile Throwable mServeError;
+
+    private static class Response {
+        public String statusLine;
+        public Map<String, String> headers = new HashMap<String, String>();
+        public String body;
+    }
+
+    /**
+     * Starts mServer on an ephemeral port in mServeThread.
+     */
+    private void start() throws IOException {
+        mServer = new HttpServer();
+        mServer.registerHandler("/", new HttpHandler() {
+            public void onRequest(HttpRequest req, HttpResponseWriter w) {
+                w.write("hi");
+            }
+        });
+
+        final ServerSocketChannel chan = ServerSocketChannel.open();
+        chan.socket().setReuseAddress(true);
+        chan.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        mPort = chan.socket().getLocalPort();
+
+        mServeThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mServer.serve(chan);
+                } catch (Throwable e) {
+                    mServeError = e;
+                }
+            }
+        });
+        mServeThread.start();
+    }
+
+    private Socket connect() throws IOException {
+        Socket sock = new Socket("127.0.0.1", mPort);
+        sock.setSoTimeout(sWaitMillis);
+        return sock;
+    }
+
+    /**
+     * Waits for serve() to return.
+     */
+    private void checkStopped() throws InterruptedException {
+        mServeThread.join(sWaitMillis);
+        assertFalse(mServeThread.isAlive());
+        assertNull(mServeError);
+    }
+
+    /**
+     * @return true if the listening socket refuses connections.
+     */
+    private boolean isListenerClosed() throws IOException {
+        try {
+            new Socket("127.0.0.1", mPort).close();
+            return false;
+        } catch (ConnectException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Waits until the server stops listening, which signals that draining
+     * has started.
+     */
+    private void waitForListenerClosed() throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + sWaitMillis;
+        while (!isListenerClosed()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static Response readResponse(InputStream is) throws IOException {
+        Response resp = new Response();
+        resp.statusLine = Helper.readLine(is);
+
+        while (true) {
+            String line = Helper.readLine(is);
+            if (line.equals("\r\n")) {
+                break;
+            }
+            int index = line.indexOf(':');
+            assertTrue(index > 0);
+            resp.headers.put(line.substring(0, index).toLowerCase(),
+                    line.substring(index + 1).trim());
+        }
+
+        int len = Integer.parseInt(resp.headers.get("content-length"));
+        byte[] data = new byte[len];
+        int offset = 0;
+        while (offset < len) {
+            int count = is.read(data, offset, len - offset);
+            assertTrue(count > 0);
+            offset += count;
+        }
+        resp.body = new String(data, "US-ASCII");
+
+        return resp;
+    }
+
+    private static void write(OutputStream os, String s) throws IOException {
+        os.write(Strings.getUTF8Bytes(s));
+        os.flush();
+    }
+
+    @Test
+    public void testDrainIdle() throws IOException, InterruptedException {
+        start();
+
+        Socket sock = connect();
+        write(sock.getOutputStream(), "GET / HTTP/1.1\r\n\r\n");
+        Response resp = readResponse(sock.getInputStream());
+        assertEquals("HTTP/1.1 200, OK\r\n", resp.statusLine);
+        assertNull(resp.headers.get("connection"));
+
+        // The connection is idle, so it closes without waiting for the
+        // deadline.
+        mServer.stopGracefully(60 * 1000);
+        assertEquals(-1, sock.getInputStream().read());
+
+        checkStopped();
+        assertTrue(isListenerClosed());
+        sock.close();
+    }
+
+    @Test
+    public void testDrainInFlight() throws IOException, InterruptedException {
+        start();
+
+        Socket sock = connect();
+        OutputStream os = sock.getOutputStream();
+        InputStream is = sock.getInputStream();
+        write(os, "GET / HTTP/1.1\r\n\r\n");
+        assertEquals("HTTP/1.1 200, OK\r\n", readResponse(is).statusLine);
+
+        // Start a request.
+        write(os, "GET / HTTP/1.1\r\n");
+        Thread.sleep(sSettleMillis);
+
+        mServer.stopGracefully(60 * 1000);
+
+        // New connections are refused while the request is in flight.
+        waitForListenerClosed();
+        assertTrue(mServeThread.isAlive());
+
+        // The request finishes, and the connection closes after its response.
+        write(os, "\r\n");
+        Response resp = readResponse(is);
+        assertEquals("HTTP/1.1 200, OK\r\n", resp.statusLine);
+        assertEquals("close", resp.headers.get("connection"));
+        assertEquals("hi", resp.body);
+        assertEquals(-1, is.read());
+
+        checkStopped();
+        sock.close();
+    }
+
+    @Test
+    public void testDrainDeadline() throws IOException, InterruptedException {
+        start();
+
+        Socket sock = connect();
+        OutputStream os = sock.getOutputStream();
+        InputStream is = sock.getInputStream();
+        write(os, "GET / HTTP/1.1\r\n\r\n");
+        assertEquals("HTTP/1.1 200, OK\r\n", readResponse(is).statusLine);
+
+        // This request never finishes.
+        write(os, "GET / HTTP/1.1\r\n");
+        Thread.sleep(sSettleMillis);
+
+        long drainMillis = 300;
+        long startNanos = System.nanoTime();
+        mServer.stopGracefully(drainMillis);
+
+        // The connection is closed once the deadline passes.
+        checkStopped();
+        assertTrue((System.nanoTime() - startNanos) / 1000000 >= drainMillis);
+        assertEquals(-1, is.read());
+
+        sock.close();
+    }
+}
@@ -0,0 +1,80 @@
+// Copyright 2014, Kevin Ko <kevin@faveset.com>. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.faveset.mahttpd;
+
+import java.net.InetAddress;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class KeepAlivePolicyTest {
+    @Test
+    public void testIdleMillis() throws Exception {
+        InetAddress addr = InetAddress.getByAddress(new byte[]{ 10, 0, 0, 1 });
+
+        ConnectionTimeouts timeouts = new ConnectionTimeouts();
+        timeouts.setIdleMillis(10000);
+        ConnectionLimiter limiter = new ConnectionLimiter(10, 5, 0);
+
+        KeepAlivePolicy policy = new KeepAlivePolicy(timeouts, limiter);
+        policy.setMinIdleMillis(1000);
+
+        for (int ii = 0; ii < 5; ii++) {
+            limiter.acquire(addr);
+        }
+        assertEquals(10000, policy.getIdleMillis());
+
+        // Two fifths of the way from the shrink load to the limit.
+        limiter.acquire(addr);
+        limiter.acquire(addr);
+        assertEquals(10000 - 9000 * 2 / 5, policy.getIdleMillis());
+
+        for (int ii = 0; ii < 3; ii++) {
+            limiter.acquire(addr);
+        }
+        assertEquals(1000, policy.getIdleMillis());
+
+        // No connection limit.
+        limiter.setMaxConnections(0, 0);
+        assertEquals(10000, policy.getIdleMillis());
+
+        // Disabled idle timeouts stay disabled.
+        limiter.setMaxConnections(10, 5);
+        timeouts.setIdleMillis(0);
+        assertEquals(0, policy.getIdleMillis());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testZeroMinIdleMillis() {
+        ConnectionTimeouts timeouts = new ConnectionTimeouts();
+        ConnectionLimiter limiter = new ConnectionLimiter(10, 5, 0);
+
+        // A minimum of 0 would cancel idle timeouts at the limit.
+        KeepAlivePolicy policy = new KeepAlivePolicy(timeouts, limiter);
+        policy.setMinIdleMillis(0);
+    }
+
+    @Test
+    public void testSmallMinIdleMillis() throws Exception {
+        InetAddress addr = InetAddress.getByAddress(new byte[]{ 10, 0, 0, 1 });
+
+        ConnectionTimeouts timeouts = new ConnectionTimeouts();
+        timeouts.setIdleMillis(10000);
+        ConnectionLimiter limiter = new ConnectionLimiter(10, 5, 0);
+
+        KeepAlivePolicy policy = new KeepAlivePolicy(timeouts, limiter);
+        policy.setMinIdleMillis(1);
+
+        // The timeout stays armed at the limit.
+        for (int ii = 0; ii < 10; ii++) {
+            limiter.acquire(addr);
+        }
+        assertEquals(1, policy.getIdleMillis());
+    }
+}
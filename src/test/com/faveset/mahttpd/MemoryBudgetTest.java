@@ -0,0 +1,97 @@
+// Copyright 2014, Kevin Ko <kevin@faveset.com>. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.faveset.mahttpd;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class MemoryBudgetTest {
+    @Test
+    public void test() {
+        MemoryBudget budget = new MemoryBudget(100);
+        assertTrue(budget.hasRoom(100));
+        assertFalse(budget.hasRoom(101));
+
+        assertTrue(budget.reserve(60));
+        assertTrue(budget.reserve(30));
+        assertEquals(90, budget.getUsed());
+        assertEquals(90, budget.getHighWater());
+        assertFalse(budget.hasRoom(20));
+
+        // Reservations never exceed the limit.
+        assertFalse(budget.reserve(20));
+        assertEquals(90, budget.getUsed());
+
+        budget.release(60);
+        assertEquals(30, budget.getUsed());
+        assertEquals(90, budget.getHighWater());
+        assertTrue(budget.hasRoom(20));
+
+        budget.recordReject();
+        assertEquals(1, budget.getRejectCount());
+
+        budget.setLimit(10);
+        assertFalse(budget.hasRoom(0));
+    }
+
+    @Test
+    public void testSlab() {
+        MemoryBudget budget = new MemoryBudget(1024);
+        SlabAllocator allocator = new SlabAllocator(new int[]{ 16, 64 }, 64, false, budget);
+
+        PoolEntry<ByteBuffer> entry1 = allocator.allocate(10);
+        PoolEntry<ByteBuffer> entry2 = allocator.getPool(64).allocate();
+        assertEquals(80, budget.getUsed());
+
+        allocator.release(entry1);
+        assertEquals(64, budget.getUsed());
+
+        allocator.getPool(64).release(entry2);
+        assertEquals(0, budget.getUsed());
+        assertEquals(80, budget.getHighWater());
+
+        // Reused slices are charged again.
+        allocator.allocate(64);
+        assertEquals(64, budget.getUsed());
+    }
+
+    @Test
+    public void testSlabExhausted() {
+        MemoryBudget budget = new MemoryBudget(32);
+        SlabAllocator allocator = new SlabAllocator(new int[]{ 16, 64 }, 64, true, budget);
+
+        PoolEntry<ByteBuffer> entry1 = allocator.allocate(16);
+        PoolEntry<ByteBuffer> entry2 = allocator.allocate(16);
+        assertEquals(32, budget.getUsed());
+        assertTrue(entry1.get().isDirect());
+
+        // The budget is exhausted, so these fall back to heap buffers.
+        PoolEntry<ByteBuffer> entry3 = allocator.allocate(16);
+        PoolEntry<ByteBuffer> entry4 = allocator.allocate(64);
+        assertFalse(entry3.get().isDirect());
+        assertEquals(16, entry3.get().capacity());
+        assertEquals(64, entry4.get().capacity());
+        assertEquals(2, allocator.getFallbackCount());
+        assertEquals(32, budget.getUsed());
+        assertEquals(64, allocator.getArenaBytes());
+
+        // Fallback buffers are not pooled or charged.
+        allocator.release(entry3);
+        allocator.release(entry4);
+        assertEquals(32, budget.getUsed());
+
+        allocator.release(entry1);
+        assertEquals(16, budget.getUsed());
+        assertTrue(allocator.allocate(16).get().isDirect());
+    }
+}
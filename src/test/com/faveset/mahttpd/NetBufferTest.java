@@ -5,6 +5,9 @@
 package com.faveset.mahttpd;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -151,4 +154,87 @@ public class NetBufferTest {
 
         assertEquals(3, buf.position());
     }
+
+    @Test
+    public void testRelease() {
+        SlabAllocator allocator = new SlabAllocator(new int[] { 1024, 4096 }, 8192, false);
+        ByteBufferFactory factory = new PooledByteBufferFactory(allocator);
+
+        ByteBuffer buf = factory.make(1000);
+        assertEquals(1024, buf.capacity());
+        assertEquals(1024, allocator.getBudget().getUsed());
+
+        NetBuffer netBuf = NetBuffer.makeAppendBuffer(buf);
+        buf.put((byte) 1);
+
+        // Resizing returns the old buffer and preserves data.
+        netBuf.resize(factory, 4096);
+        assertEquals(4096, allocator.getBudget().getUsed());
+        assertEquals(1, netBuf.getByteBuffer().position());
+
+        netBuf.flipRead();
+        assertEquals(1, netBuf.getByteBuffer().get());
+        netBuf.updateRead();
+        assertTrue(netBuf.isEmpty());
+
+        netBuf.release(factory);
+        assertTrue(netBuf.isReleased());
+        assertTrue(netBuf.isEmpty());
+        assertEquals(0, netBuf.getByteBuffer().capacity());
+        assertEquals(0, allocator.getBudget().getUsed());
+
+        // Releasing again is harmless.
+        netBuf.release(factory);
+        assertEquals(0, allocator.getBudget().getUsed());
+
+        netBuf.resize(factory, 4096);
+        assertTrue(!netBuf.isReleased());
+        assertTrue(netBuf.isEmpty());
+        assertEquals(4096, allocator.getBudget().getUsed());
+
+        // Oversized requests bypass the allocator.
+        ByteBuffer big = factory.make(8192);
+        assertEquals(8192, big.capacity());
+        factory.release(big);
+        assertEquals(4096, allocator.getBudget().getUsed());
+    }
+
+    @Test
+    public void testWrapMaxLen() throws SSLException {
+        ByteBuffer buf = ByteBuffer.allocate(1024);
+        NetBuffer src = NetBuffer.makeAppendBuffer(buf);
+        for (int ii = 0; ii < 250; ii++) {
+            buf.put((byte) ii);
+        }
+
+        Helper.CopyingSSLEngine engine = new Helper.CopyingSSLEngine();
+        NetBuffer dest = NetBuffer.makeAppendBuffer(ByteBuffer.allocate(1024));
+
+        // The final record is partial.
+        for (int ii = 0; ii < 3; ii++) {
+            SSLEngineResult result = src.wrap(engine, dest, 100);
+            assertTrue(result.bytesConsumed() <= 100);
+            // The limit is restored after each wrap.
+            assertEquals(250, buf.limit());
+        }
+        assertTrue(src.isEmpty());
+        assertEquals(Arrays.asList(100, 100, 50), engine.getRecordSizes());
+
+        // A larger cap does not split records.
+        src.clear();
+        src.flipAppend();
+        for (int ii = 0; ii < 250; ii++) {
+            buf.put((byte) ii);
+        }
+        src.wrap(engine, dest, 1000);
+        assertTrue(src.isEmpty());
+        assertEquals(Arrays.asList(100, 100, 50, 250), engine.getRecordSizes());
+
+        dest.flipRead();
+        ByteBuffer out = dest.getByteBuffer();
+        assertEquals(500, out.remaining());
+        for (int ii = 0; ii < 500; ii++) {
+            assertEquals((byte) (ii % 250), out.get());
+        }
+    }
 }
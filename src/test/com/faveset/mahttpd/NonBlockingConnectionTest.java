@@ -5,14 +5,18 @@
 package com.faveset.mahttpd;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 
@@ -889,6 +893,114 @@ public class NonBlockingConnectionTest {
         tester.run();
     }
 
+    /**
+     * Interest changes made while handling a select apply once the select is
+     * handled.  Sends that complete immediately never need write interest.
+     */
+    @Test
+    public void testInterestOps() throws IOException, InterruptedException {
+        final String expectedStr = Helper.makeTestString(128);
+
+        Helper.ServerThread.Task task = new Helper.ServerThread.Task() {
+            public void run(Socket sock) {
+                try {
+                    // Wait so that the data arrives via the selector.
+                    Thread.sleep(100);
+
+                    OutputStream os = sock.getOutputStream();
+                    os.write(expectedStr.getBytes(sUsAsciiCharset));
+                    os.flush();
+
+                    InputStream is = sock.getInputStream();
+                    byte[] data = new byte[expectedStr.length()];
+                    int count = 0;
+                    while (count < data.length) {
+                        int len = is.read(data, count, data.length - count);
+                        assertTrue(len > 0);
+                        count += len;
+                    }
+                    assertEquals(expectedStr, new String(data, sUsAsciiCharset));
+
+                    sock.close();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+
+        Tester tester = new Tester(task, 1024) {
+            private SelectionKey mKey;
+            private int mRecvCount = 0;
+            private int mSendCount = 0;
+
+            @Override
+            protected void finish() {
+                super.finish();
+
+                assertEquals(1, mRecvCount);
+                assertEquals(1, mSendCount);
+            }
+
+            @Override
+            protected AsyncConnection makeConn(Selector selector, SocketChannel chan,
+                    int bufferSize, SelectTaskQueue taskQueue) throws IOException {
+                AsyncConnection conn = super.makeConn(selector, chan, bufferSize, taskQueue);
+                mKey = chan.keyFor(selector);
+                return conn;
+            }
+
+            private void handleRecv(AsyncConnection conn) {
+                mRecvCount++;
+
+                // The select is still being handled, so the key keeps its
+                // read interest for now.
+                conn.cancelRecv();
+                assertEquals(SelectionKey.OP_READ, mKey.interestOps());
+
+                ByteBuffer outBuf = conn.getOutBuffer();
+                outBuf.put(Helper.makeByteBuffer(expectedStr));
+                outBuf.flip();
+
+                conn.send(new AsyncConnection.OnSendCallback() {
+                    public void onSend(AsyncConnection conn) {
+                        mSendCount++;
+                    }
+                });
+                assertEquals(1, mSendCount);
+            }
+
+            @Override
+            protected void onStop(AsyncConnection conn) {
+                super.onStop(conn);
+
+                // No interest remains once the select was handled.
+                assertEquals(0, mKey.interestOps());
+
+                try {
+                    conn.close();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            protected void prepareConn(AsyncConnection conn) {
+                delayedStop(500);
+
+                conn.recvPersistent(new AsyncConnection.OnRecvCallback() {
+                    public void onRecv(AsyncConnection conn, ByteBuffer buf) {
+                        handleRecv(conn);
+                    }
+                });
+                assertEquals(SelectionKey.OP_READ, mKey.interestOps());
+            }
+        };
+
+        tester.run();
+    }
+
     private static Helper.ServerThread.Task makeNullTask() {
         return new Helper.ServerThread.Task() {
             public void run(Socket sock) {
@@ -973,4 +1085,119 @@ public class NonBlockingConnectionTest {
         };
         tester.run();
     }
+
+    @Test
+    public void testReleaseIdleBuffers() throws IOException {
+        Selector selector = Selector.open();
+        SocketChannel chan = SocketChannel.open();
+        ByteBufferPool pool = new ByteBufferPool(1024, false, 4);
+
+        NonBlockingConnection conn = new NonBlockingConnection(selector, chan, pool);
+        assertEquals(0, pool.getFreeEntryCount());
+
+        // Only the empty in buffer is released.
+        conn.getOutBuffer().put((byte) 1);
+        conn.releaseIdleBuffers();
+        assertEquals(1, pool.getFreeEntryCount());
+
+        conn.getOutBuffer().clear();
+        conn.releaseIdleBuffers();
+        assertEquals(2, pool.getFreeEntryCount());
+
+        // Buffers are reacquired on demand.
+        assertTrue(conn.getInBuffer() != null);
+        assertTrue(conn.getOutBuffer() != null);
+        assertEquals(0, pool.getFreeEntryCount());
+
+        conn.close();
+        assertEquals(2, pool.getFreeEntryCount());
+
+        selector.close();
+    }
+
+    @Test
+    public void testReleaseIdleBuffersWhileSending() throws IOException, InterruptedException {
+        ServerSocketChannel listenChan = ServerSocketChannel.open();
+        listenChan.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        SocketChannel chan = SocketChannel.open(listenChan.socket().getLocalSocketAddress());
+        final SocketChannel peer = listenChan.accept();
+        listenChan.close();
+
+        Selector selector = Selector.open();
+        ByteBufferPool pool = new ByteBufferPool(1024, false, 4);
+        NonBlockingConnection conn = new NonBlockingConnection(selector, chan, pool);
+
+        // As in HttpConnection.flushResponses(), a small response in the out
+        // buffer is sent ahead of a large one that spilled over.
+        final String small = "small";
+        final int bigLen = 32 * 1024 * 1024;
+        ByteBuffer outBuf = conn.getOutBuffer();
+        outBuf.put(Helper.makeByteBuffer(small));
+        outBuf.flip();
+
+        ByteBuffer big = ByteBuffer.allocate(bigLen);
+        for (int ii = 0; ii < bigLen; ii++) {
+            big.put((byte) ii);
+        }
+        big.flip();
+
+        final boolean[] isSent = new boolean[1];
+        ByteBuffer[] bufs = new ByteBuffer[]{ outBuf.duplicate(), big };
+        conn.send(new AsyncConnection.OnSendCallback() {
+            @Override
+            public void onSend(AsyncConnection conn) {
+                isSent[0] = true;
+            }
+        }, bufs, 0, bufs.length, 0);
+
+        // The peer is not reading, so the write is partial.
+        assertFalse(isSent[0]);
+
+        // The out buffer's position is 0 after the flip, but the send still
+        // reads from its duplicate.
+        conn.releaseIdleBuffers();
+        assertEquals(0, pool.getFreeEntryCount());
+
+        // Drain the peer while the selector completes the send.
+        final ByteBuffer received = ByteBuffer.allocate(small.length() + bigLen);
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (received.hasRemaining() && peer.read(received) != -1) {}
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        reader.start();
+
+        while (!isSent[0]) {
+            selector.select(100);
+            for (SelectionKey key : selector.selectedKeys()) {
+                SelectorHandler handler = (SelectorHandler) key.attachment();
+                handler.onReady(key);
+            }
+            selector.selectedKeys().clear();
+        }
+        reader.join(10000);
+        assertFalse(reader.isAlive());
+
+        // The response arrives intact.
+        received.flip();
+        for (int ii = 0; ii < small.length(); ii++) {
+            assertEquals(small.charAt(ii), (char) received.get());
+        }
+        for (int ii = 0; ii < bigLen; ii++) {
+            assertEquals((byte) ii, received.get());
+        }
+
+        // Once the send completes, the idle buffers are released.
+        conn.releaseIdleBuffers();
+        assertEquals(2, pool.getFreeEntryCount());
+
+        conn.close();
+        peer.close();
+        selector.close();
+    }
 }
@@ -0,0 +1,166 @@
+// Copyright 2014, Kevin Ko <kevin@faveset.com>. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.faveset.mahttpd;
+
+import java.net.InetAddress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class RateLimiterTest {
+    private static final long sMillisToNanos = 1000000;
+
+    @Test
+    public void test() {
+        // 10 requests per second with bursts of 3.
+        RateLimiter limiter = new RateLimiter(10, 3, 16, 0);
+
+        assertTrue(limiter.tryAcquire(1, 0));
+        assertTrue(limiter.tryAcquire(1, 0));
+        assertTrue(limiter.tryAcquire(1, 0));
+        assertFalse(limiter.tryAcquire(1, 0));
+        assertEquals(1, limiter.getRejectCount());
+
+        // Other keys have their own buckets.
+        assertTrue(limiter.tryAcquire(2, 0));
+
+        // One token returns every 100ms.
+        assertFalse(limiter.tryAcquire(1, 99 * sMillisToNanos));
+        assertTrue(limiter.tryAcquire(1, 100 * sMillisToNanos));
+        assertFalse(limiter.tryAcquire(1, 100 * sMillisToNanos));
+
+        // Buckets refill up to the burst.
+        long now = 10000 * sMillisToNanos;
+        assertTrue(limiter.tryAcquire(1, now));
+        assertTrue(limiter.tryAcquire(1, now));
+        assertTrue(limiter.tryAcquire(1, now));
+        assertFalse(limiter.tryAcquire(1, now));
+    }
+
+    /**
+     * @return the number of requests accepted for one key when attempts are
+     * spaced stepNanos apart for windowNanos.
+     */
+    private static int countAccepted(RateLimiter limiter, long startNanos, long windowNanos,
+            long stepNanos) {
+        int count = 0;
+        for (long now = startNanos; now < startNanos + windowNanos; now += stepNanos) {
+            if (limiter.tryAcquire(1, now)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testRate() {
+        long second = 1000 * sMillisToNanos;
+
+        // Attempts every microsecond far exceed the limit, so the count is
+        // the enforced rate plus the initial burst.
+        RateLimiter limiter = new RateLimiter(1000, 1, 16, 0);
+        int count = countAccepted(limiter, 0, second, 1000);
+        assertTrue(count >= 1000 && count <= 1002);
+
+        limiter = new RateLimiter(5000, 10, 16, 0);
+        count = countAccepted(limiter, 0, second, 1000);
+        assertTrue(count >= 5009 && count <= 5012);
+
+        // Rates that are not a whole number of ticks apart are close as well.
+        // A burst of 2 absorbs the spacing of the attempts.
+        limiter = new RateLimiter(3000, 2, 16, 0);
+        count = countAccepted(limiter, 0, 10 * second, 1000);
+        assertTrue(count >= 29990 && count <= 30010);
+    }
+
+    @Test
+    public void testWrap() {
+        RateLimiter limiter = new RateLimiter(1000, 1, 16, 0);
+
+        // TATs are stored in 40 bits of 256-nano ticks, which wrap after
+        // about 3 days.  Check that the rate holds across several wraps.
+        long day = 24L * 3600 * 1000 * sMillisToNanos;
+        for (long start = day; start < 10 * day; start += day) {
+            int count = countAccepted(limiter, start, 1000 * sMillisToNanos, 1000);
+            assertTrue(count >= 1000 && count <= 1002);
+        }
+
+        // Keys that were idle for days have full buckets, although their
+        // stored TATs have wrapped.
+        limiter = new RateLimiter(1, 3, 16, 0);
+        for (long now = 0; now < 10 * day; now += day) {
+            assertTrue(limiter.tryAcquire(1, now));
+            assertTrue(limiter.tryAcquire(1, now));
+            assertTrue(limiter.tryAcquire(1, now));
+            assertFalse(limiter.tryAcquire(1, now));
+        }
+    }
+
+    @Test
+    public void testLimits() {
+        // The interval rounds to 0 ticks.
+        try {
+            new RateLimiter(1e8, 1, 16, 0);
+            fail();
+        } catch (IllegalArgumentException e) {}
+
+        // The burst spans more than half of the TAT's range.
+        try {
+            new RateLimiter(1, 200000, 16, 0);
+            fail();
+        } catch (IllegalArgumentException e) {}
+
+        new RateLimiter(1e6, 1, 16, 0);
+        new RateLimiter(1, 100000, 16, 0);
+    }
+
+    @Test
+    public void testEviction() {
+        // A single slot holds one key at a time.
+        RateLimiter limiter = new RateLimiter(1, 1, 1, 0);
+
+        assertTrue(limiter.tryAcquire(1, 0));
+        assertFalse(limiter.tryAcquire(1, 0));
+
+        // Another key evicts the first, which then starts over.
+        assertTrue(limiter.tryAcquire(2, 0));
+        assertTrue(limiter.tryAcquire(1, 0));
+    }
+
+    @Test
+    public void testAddress() throws Exception {
+        // These differ only in the order of their words, which folding
+        // into an int hash would lose.
+        byte[] bytes1 = new byte[16];
+        byte[] bytes2 = new byte[16];
+        bytes1[3] = 1;
+        bytes1[7] = 2;
+        bytes2[3] = 2;
+        bytes2[7] = 1;
+        InetAddress addr1 = InetAddress.getByAddress(bytes1);
+        InetAddress addr2 = InetAddress.getByAddress(bytes2);
+        assertTrue(RateLimiter.keyOf(addr1) != RateLimiter.keyOf(addr2));
+
+        RateLimiter limiter = new RateLimiter(1, 1, 1024, 0);
+        assertTrue(limiter.tryAcquire(addr1, 0));
+        assertFalse(limiter.tryAcquire(addr1, 0));
+        assertTrue(limiter.tryAcquire(addr2, 0));
+        assertFalse(limiter.tryAcquire(addr2, 0));
+
+        // IPv4 addresses are keyed by their bytes as well.
+        InetAddress addr3 = InetAddress.getByAddress(new byte[]{ 10, 0, 0, 1 });
+        assertEquals(RateLimiter.keyOf(addr3),
+                RateLimiter.keyOf(InetAddress.getByAddress(new byte[]{ 10, 0, 0, 1 })));
+        assertTrue(limiter.tryAcquire(addr3, 0));
+        assertFalse(limiter.tryAcquire(addr3, 0));
+    }
+}
@@ -226,6 +226,51 @@ public class SSLNonBlockingConnectionTest {
         test.run();
     }
 
+    @Test
+    public void testRecvPersistentReleaseIdle() throws IOException, CertificateException,
+           InterruptedException, KeyManagementException, KeyStoreException,
+           UnrecoverableKeyException {
+        final SSLContext ctx = makeContext();
+        SSLSocketFactory factory = ctx.getSocketFactory();
+
+        final String expectedStr = Helper.makeTestString(65535);
+
+        final ByteBufferFactory bufFactory = new PooledByteBufferFactory(
+                new SlabAllocator(new int[] { 1024, 17408 }, 1024 * 1024, false));
+
+        NonBlockingConnectionTest.RecvPersistentTester test =
+            new NonBlockingConnectionTest.RecvPersistentTester(makeSendTask(factory, expectedStr), 16, expectedStr) {
+                @Override
+                protected AsyncConnection makeConn(Selector selector, SocketChannel chan, int bufferSize,
+                        SelectTaskQueue taskQueue) throws IOException {
+                    return new SSLNonBlockingConnection(selector, chan, bufFactory, taskQueue, ctx) {
+                        @Override
+                        public void recvPersistent(final OnRecvCallback callback) {
+                            // Release buffers after each receive to force them to be restored.
+                            super.recvPersistent(new OnRecvCallback() {
+                                public void onRecv(AsyncConnection conn, ByteBuffer buf) {
+                                    callback.onRecv(conn, buf);
+                                    conn.releaseIdleBuffers();
+                                }
+                            });
+                        }
+                    };
+                }
+
+                @Override
+                protected void prepareConn(AsyncConnection connArg) {
+                    SSLNonBlockingConnection conn = (SSLNonBlockingConnection) connArg;
+                    conn.getSSLEngine().setUseClientMode(false);
+
+                    super.prepareConn(connArg);
+
+                    conn.start();
+                }
+        };
+
+        test.run();
+    }
+
     @Test
     public void testRecvSimple() throws IOException, CertificateException, InterruptedException,
            KeyManagementException, KeyStoreException, UnrecoverableKeyException {
@@ -257,6 +302,50 @@ public class SSLNonBlockingConnectionTest {
         test.run();
     }
 
+    @Test
+    public void testRecvSimpleInlineTasks() throws IOException, CertificateException,
+           InterruptedException, KeyManagementException, KeyStoreException,
+           UnrecoverableKeyException {
+        final SSLContext ctx = makeContext();
+        SSLSocketFactory factory = ctx.getSocketFactory();
+
+        final String expectedStr = Helper.makeTestString(128);
+
+        // Handshake tasks run in the event loop.
+        final SSLTaskExecutor taskExecutor = new SSLTaskExecutor(0);
+
+        final SSLHandshakeStats stats = new SSLHandshakeStats();
+
+        NonBlockingConnectionTest.RecvSimpleTester test =
+            new NonBlockingConnectionTest.RecvSimpleTester(makeSendTask(factory, expectedStr), 1024, expectedStr) {
+                @Override
+                protected AsyncConnection makeConn(Selector selector, SocketChannel chan, int bufferSize,
+                        SelectTaskQueue taskQueue) throws IOException {
+                    return new SSLNonBlockingConnection(selector, chan, new HeapByteBufferFactory(),
+                            taskQueue, ctx, taskExecutor);
+                }
+
+                @Override
+                protected void prepareConn(AsyncConnection connArg) {
+                    SSLNonBlockingConnection conn = (SSLNonBlockingConnection) connArg;
+                    conn.getSSLEngine().setUseClientMode(false);
+                    conn.setHandshakeStats(stats);
+
+                    super.prepareConn(connArg);
+
+                    conn.start();
+                }
+        };
+
+        test.run();
+
+        assertTrue(taskExecutor.getBatchCount() > 0);
+
+        // The client has no cached session to resume.
+        assertEquals(1, stats.getFullCount());
+        assertEquals(0, stats.getResumedCount());
+    }
+
     @Test
     public void testRecvLong() throws IOException, CertificateException, InterruptedException,
            KeyManagementException, KeyStoreException, UnrecoverableKeyException {
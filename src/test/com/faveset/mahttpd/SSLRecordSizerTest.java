@@ -0,0 +1,45 @@
+// Copyright 2014, Kevin Ko <kevin@faveset.com>. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.faveset.mahttpd;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class SSLRecordSizerTest {
+    @Test
+    public void testRamp() {
+        SSLRecordSizer sizer = new SSLRecordSizer(4000, 1000);
+
+        long now = 10000;
+        assertEquals(SSLRecordSizer.SMALL_RECORD_SIZE, sizer.getMaxRecordSize(now));
+
+        sizer.onWrap(SSLRecordSizer.SMALL_RECORD_SIZE, now);
+        sizer.onWrap(SSLRecordSizer.SMALL_RECORD_SIZE, now);
+        assertEquals(SSLRecordSizer.SMALL_RECORD_SIZE, sizer.getMaxRecordSize(now));
+
+        sizer.onWrap(SSLRecordSizer.SMALL_RECORD_SIZE, now);
+        assertEquals(Integer.MAX_VALUE, sizer.getMaxRecordSize(now));
+
+        // Short pauses keep full-sized records.
+        now += 1000;
+        assertEquals(Integer.MAX_VALUE, sizer.getMaxRecordSize(now));
+
+        // Empty wraps do not count as activity.
+        sizer.onWrap(0, now + 500);
+
+        now += 1001;
+        assertEquals(SSLRecordSizer.SMALL_RECORD_SIZE, sizer.getMaxRecordSize(now));
+    }
+
+    @Test
+    public void testDisabled() {
+        SSLRecordSizer sizer = new SSLRecordSizer(0, 1000);
+        assertEquals(Integer.MAX_VALUE, sizer.getMaxRecordSize(10000));
+    }
+}
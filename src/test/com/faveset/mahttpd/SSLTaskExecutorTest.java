@@ -0,0 +1,117 @@
+// Copyright 2014, Kevin Ko <kevin@faveset.com>. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.faveset.mahttpd;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class SSLTaskExecutorTest {
+    @Test
+    public void testInline() {
+        SSLTaskExecutor executor = new SSLTaskExecutor(0);
+        assertTrue(executor.isInline());
+
+        final AtomicInteger count = new AtomicInteger();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                count.incrementAndGet();
+            }
+        });
+
+        // Inline batches complete before execute() returns.
+        assertEquals(1, count.get());
+        assertEquals(1, executor.getBatchCount());
+        assertEquals(0, executor.getQueueDepth());
+        assertEquals(0, executor.getQueueDepthHighWater());
+    }
+
+    @Test
+    public void testPool() throws InterruptedException {
+        final int batchCount = 100;
+
+        SSLTaskExecutor executor = new SSLTaskExecutor(4);
+        assertTrue(!executor.isInline());
+
+        final CountDownLatch gate = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(batchCount);
+        for (int ii = 0; ii < batchCount; ii++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        gate.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    done.countDown();
+                }
+            });
+        }
+
+        // All workers are blocked, so the remaining batches must queue.
+        assertTrue(executor.getQueueDepthHighWater() >= batchCount - 4);
+
+        gate.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        assertEquals(batchCount, executor.getBatchCount());
+        assertEquals(0, executor.getQueueDepth());
+
+        executor.shutdown();
+    }
+
+    @Test
+    public void testShutdown() throws InterruptedException {
+        SSLTaskExecutor executor = new SSLTaskExecutor(1);
+
+        final CountDownLatch gate = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                done.countDown();
+            }
+        });
+        // This waits behind the first batch.
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+
+        executor.shutdown();
+
+        // Batches submitted after shutdown run inline.
+        final AtomicInteger count = new AtomicInteger();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                count.incrementAndGet();
+            }
+        });
+        assertEquals(1, count.get());
+
+        // Queued batches still complete.
+        gate.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, executor.getQueueDepth());
+    }
+}
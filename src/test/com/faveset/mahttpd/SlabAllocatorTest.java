@@ -0,0 +1,153 @@
+// Copyright 2014, Kevin Ko <kevin@faveset.com>. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.faveset.mahttpd;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class SlabAllocatorTest {
+    @Test
+    public void test() {
+        SlabAllocator allocator = new SlabAllocator(new int[]{ 16, 64 }, 64, false);
+
+        PoolEntry<ByteBuffer> entry1 = allocator.allocate(10);
+        assertEquals(16, entry1.get().capacity());
+        assertEquals(64, allocator.getArenaBytes());
+
+        PoolEntry<ByteBuffer> entry2 = allocator.allocate(16);
+        assertEquals(16, entry2.get().capacity());
+        // Both come from the same arena.
+        assertEquals(64, allocator.getArenaBytes());
+
+        // Slices must not overlap.
+        entry1.get().put((byte) 1);
+        entry2.get().put((byte) 2);
+        assertEquals(1, entry1.get().get(0));
+        assertEquals(2, entry2.get().get(0));
+
+        PoolEntry<ByteBuffer> entry3 = allocator.allocate(17);
+        assertEquals(64, entry3.get().capacity());
+        assertEquals(128, allocator.getArenaBytes());
+
+        // Released slices are reused and reset.
+        assertEquals(null, allocator.release(entry1));
+        assertEquals(entry1, allocator.allocate(1));
+        assertEquals(0, entry1.get().position());
+
+        // Foreign buffers are dropped.
+        assertEquals(null, allocator.release(new PoolEntry<ByteBuffer>(0, ByteBuffer.allocate(5))));
+
+        Pool<ByteBuffer> pool = allocator.getPool(64);
+        PoolEntry<ByteBuffer> entry4 = pool.allocate();
+        assertEquals(64, entry4.get().capacity());
+        pool.release(entry4);
+        assertEquals(entry4, allocator.allocate(64));
+    }
+
+    @Test
+    public void testFactory() {
+        SlabAllocator allocator = new SlabAllocator(new int[]{ 16, 64 }, 64, false);
+        PooledByteBufferFactory factory = new PooledByteBufferFactory(allocator);
+
+        ByteBuffer buf1 = factory.make(10);
+        assertEquals(16, buf1.capacity());
+        assertEquals(1, factory.getOutstandingCount());
+
+        factory.release(buf1);
+        assertEquals(0, factory.getOutstandingCount());
+        assertTrue(buf1 == factory.make(16));
+
+        // Foreign and oversized buffers are left to the GC.
+        factory.release(ByteBuffer.allocate(16));
+        ByteBuffer big = factory.make(65);
+        factory.release(big);
+        assertEquals(1, factory.getOutstandingCount());
+        assertEquals(64, allocator.getArenaBytes());
+    }
+
+    @Test
+    public void testForeign() {
+        SlabAllocator allocator = new SlabAllocator(new int[]{ 16, 64 }, 64, false);
+        SlabAllocator other = new SlabAllocator(new int[]{ 16, 64 }, 64, false);
+
+        // Buffers that match a size class but come from elsewhere are not
+        // adopted.
+        allocator.release(new PoolEntry<ByteBuffer>(0, ByteBuffer.allocate(16)));
+        allocator.getPool(16).release(new PoolEntry<ByteBuffer>(0, ByteBuffer.allocate(16)));
+        allocator.release(other.allocate(16));
+        allocator.release(new PoolEntry<ByteBuffer>(0, ByteBuffer.allocateDirect(16)));
+
+        assertEquals(0, allocator.getArenaBytes());
+        allocator.allocate(16);
+        assertEquals(64, allocator.getArenaBytes());
+    }
+
+    @Test
+    public void testDoubleRelease() {
+        MemoryBudget budget = new MemoryBudget(Long.MAX_VALUE);
+        SlabAllocator allocator = new SlabAllocator(new int[]{ 16, 64 }, 64, false, budget, 64);
+
+        PoolEntry<ByteBuffer> entry1 = allocator.allocate(16);
+        PoolEntry<ByteBuffer> entry2 = allocator.allocate(16);
+        assertEquals(32, budget.getUsed());
+
+        // The second release neither caches entry1 again nor returns its
+        // bytes to the budget twice.
+        allocator.release(entry1);
+        allocator.release(entry1);
+        assertEquals(16, budget.getUsed());
+
+        PoolEntry<ByteBuffer> entry3 = allocator.allocate(16);
+        PoolEntry<ByteBuffer> entry4 = allocator.allocate(16);
+        assertEquals(entry1, entry3);
+        assertTrue(entry4 != entry1 && entry4 != entry2);
+        assertEquals(48, budget.getUsed());
+    }
+
+    @Test
+    public void testMaxFree() {
+        MemoryBudget budget = new MemoryBudget(Long.MAX_VALUE);
+        // Two 16-byte slices are retained.
+        SlabAllocator allocator = new SlabAllocator(new int[]{ 16, 64 }, 64, false, budget, 32);
+
+        PoolEntry<ByteBuffer> entry1 = allocator.allocate(16);
+        PoolEntry<ByteBuffer> entry2 = allocator.allocate(16);
+        PoolEntry<ByteBuffer> entry3 = allocator.allocate(16);
+        allocator.release(entry1);
+        allocator.release(entry2);
+        allocator.release(entry3);
+        assertEquals(0, budget.getUsed());
+
+        // entry3 was dropped, so the third allocation carves a new slice.
+        PoolEntry<ByteBuffer> reused1 = allocator.allocate(16);
+        PoolEntry<ByteBuffer> reused2 = allocator.allocate(16);
+        assertTrue(reused1 == entry1 || reused1 == entry2);
+        assertTrue(reused2 == entry1 || reused2 == entry2);
+        assertTrue(reused1 != reused2);
+        PoolEntry<ByteBuffer> entry4 = allocator.allocate(16);
+        assertTrue(entry4 != entry3);
+        // The arena holds four slices.
+        assertEquals(64, allocator.getArenaBytes());
+        assertEquals(48, budget.getUsed());
+
+        // Larger classes retain at least one slice.
+        PoolEntry<ByteBuffer> entry5 = allocator.allocate(64);
+        allocator.release(entry5);
+        assertEquals(entry5, allocator.allocate(64));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testTooLarge() {
+        SlabAllocator allocator = new SlabAllocator(new int[]{ 16, 64 }, 64, false);
+        allocator.allocate(65);
+    }
+}
@@ -0,0 +1,37 @@
+// Copyright 2014, Kevin Ko <kevin@faveset.com>. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.faveset.mahttpd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class StatusLinesTest {
+    private static void compare(byte[] b, String expected) {
+        Helper.compare(ByteBuffer.wrap(b), expected);
+    }
+
+    @Test
+    public void test() {
+        compare(StatusLines.get(1, HttpStatus.OK), "HTTP/1.1 200, OK\r\n");
+        compare(StatusLines.get(0, HttpStatus.NOT_FOUND), "HTTP/1.0 404, Not Found\r\n");
+
+        // Known lines are cached.
+        assertSame(StatusLines.get(1, HttpStatus.OK), StatusLines.get(1, HttpStatus.OK));
+
+        // Unknown codes and versions are formatted on demand.
+        compare(StatusLines.get(1, 299), "HTTP/1.1 299, Unknown\r\n");
+        compare(StatusLines.get(2, HttpStatus.OK), "HTTP/1.2 200, OK\r\n");
+
+        assertEquals("Not Found", StatusLines.getReason(HttpStatus.NOT_FOUND));
+        assertEquals("Unknown", StatusLines.getReason(-1));
+    }
+}
@@ -32,6 +32,8 @@ public class StringsTest {
         assertFalse(Strings.hasLeadingCrlf(Helper.makeByteBuffer(" \n")));
         assertFalse(Strings.hasLeadingCrlf(Helper.makeByteBuffer(" n")));
         assertFalse(Strings.hasLeadingCrlf(Helper.makeByteBuffer(" \r\n")));
+        // A partial CRLF needs more data.
+        assertFalse(Strings.hasLeadingCrlf(Helper.makeByteBuffer("\r")));
 
         ByteBuffer buf = Helper.makeByteBuffer(" \r\n");
         int oldPos = buf.position();
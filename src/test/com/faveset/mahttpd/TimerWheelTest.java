@@ -0,0 +1,193 @@
+// Copyright 2014, Kevin Ko <kevin@faveset.com>. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package com.faveset.mahttpd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TimerWheelTest {
+    private static class CountingTask implements Runnable {
+        public int count;
+
+        @Override
+        public void run() {
+            count++;
+        }
+    }
+
+    @Test
+    public void testFire() {
+        TimerWheel wheel = new TimerWheel(100, 8, 1000);
+        assertEquals(0, wheel.getTimeoutMillis(1000));
+
+        CountingTask task = new CountingTask();
+        TimerWheel.Timer timer = new TimerWheel.Timer(task);
+
+        wheel.schedule(timer, 250, 1000);
+        assertTrue(timer.isScheduled());
+        assertEquals(1, wheel.getCount());
+        assertEquals(100, wheel.getTimeoutMillis(1000));
+        assertEquals(40, wheel.getTimeoutMillis(1060));
+
+        // Deadlines round up to the tick, so the timer never fires early.
+        assertEquals(0, wheel.advance(1299));
+        assertEquals(0, task.count);
+
+        assertEquals(1, wheel.advance(1300));
+        assertEquals(1, task.count);
+        assertFalse(timer.isScheduled());
+        assertEquals(0, wheel.getCount());
+        assertEquals(0, wheel.getTimeoutMillis(1300));
+
+        // Timers can be reused.
+        wheel.schedule(timer, 100, 1300);
+        assertEquals(1, wheel.advance(1400));
+        assertEquals(2, task.count);
+    }
+
+    @Test
+    public void testCancel() {
+        TimerWheel wheel = new TimerWheel(100, 8, 0);
+
+        CountingTask task = new CountingTask();
+        TimerWheel.Timer t1 = new TimerWheel.Timer(task);
+        TimerWheel.Timer t2 = new TimerWheel.Timer(task);
+        TimerWheel.Timer t3 = new TimerWheel.Timer(task);
+
+        // These share a slot.
+        wheel.schedule(t1, 100, 0);
+        wheel.schedule(t2, 100, 0);
+        wheel.schedule(t3, 100, 0);
+        assertEquals(3, wheel.getCount());
+
+        wheel.cancel(t2);
+        assertFalse(t2.isScheduled());
+        assertEquals(2, wheel.getCount());
+
+        // Cancelling twice is harmless.
+        wheel.cancel(t2);
+        assertEquals(2, wheel.getCount());
+
+        assertEquals(2, wheel.advance(100));
+        assertEquals(2, task.count);
+    }
+
+    @Test
+    public void testReschedule() {
+        TimerWheel wheel = new TimerWheel(100, 8, 0);
+
+        CountingTask task = new CountingTask();
+        TimerWheel.Timer timer = new TimerWheel.Timer(task);
+
+        wheel.schedule(timer, 100, 0);
+        wheel.schedule(timer, 500, 0);
+        assertEquals(1, wheel.getCount());
+
+        assertEquals(0, wheel.advance(400));
+        assertEquals(1, wheel.advance(500));
+        assertEquals(1, task.count);
+    }
+
+    @Test
+    public void testLongDelay() {
+        // One rotation covers 800ms.
+        TimerWheel wheel = new TimerWheel(100, 8, 0);
+
+        CountingTask task = new CountingTask();
+        TimerWheel.Timer timer = new TimerWheel.Timer(task);
+        wheel.schedule(timer, 2000, 0);
+
+        for (long now = 100; now < 2000; now += 100) {
+            assertEquals(0, wheel.advance(now));
+        }
+        assertEquals(1, wheel.advance(2000));
+        assertEquals(1, task.count);
+    }
+
+    @Test
+    public void testCatchUp() {
+        TimerWheel wheel = new TimerWheel(100, 8, 0);
+
+        CountingTask task = new CountingTask();
+        TimerWheel.Timer t1 = new TimerWheel.Timer(task);
+        TimerWheel.Timer t2 = new TimerWheel.Timer(task);
+        TimerWheel.Timer t3 = new TimerWheel.Timer(task);
+        wheel.schedule(t1, 300, 0);
+        wheel.schedule(t2, 1500, 0);
+        wheel.schedule(t3, 5000, 0);
+
+        // A long stall fires everything that is due, in one pass.
+        assertEquals(2, wheel.advance(3000));
+        assertEquals(2, task.count);
+        assertTrue(t3.isScheduled());
+
+        assertEquals(1, wheel.advance(5000));
+    }
+
+    @Test
+    public void testCancelFromTask() {
+        final TimerWheel wheel = new TimerWheel(100, 8, 0);
+
+        // Each timer cancels the other, which is already collected for
+        // firing since both expire together.  Whichever fires first wins.
+        final CountingTask task = new CountingTask();
+        final TimerWheel.Timer[] timers = new TimerWheel.Timer[2];
+        for (int ii = 0; ii < timers.length; ii++) {
+            final int other = 1 - ii;
+            timers[ii] = new TimerWheel.Timer(new Runnable() {
+                @Override
+                public void run() {
+                    task.run();
+                    wheel.cancel(timers[other]);
+                }
+            });
+        }
+
+        wheel.schedule(timers[0], 100, 0);
+        wheel.schedule(timers[1], 100, 0);
+
+        assertEquals(1, wheel.advance(100));
+        assertEquals(1, task.count);
+        assertFalse(timers[0].isScheduled());
+        assertFalse(timers[1].isScheduled());
+        assertEquals(0, wheel.getCount());
+
+        // A timer may also reschedule itself after cancelling a peer.
+        final TimerWheel.Timer victim = new TimerWheel.Timer(task);
+        final TimerWheel.Timer[] self = new TimerWheel.Timer[1];
+        self[0] = new TimerWheel.Timer(new Runnable() {
+            @Override
+            public void run() {
+                wheel.cancel(victim);
+                wheel.schedule(self[0], 100, 200);
+            }
+        });
+
+        // The victim expires a tick later, so it is cancelled before it is
+        // collected.
+        wheel.schedule(self[0], 100, 100);
+        wheel.schedule(victim, 200, 100);
+
+        assertEquals(1, wheel.advance(200));
+        assertEquals(1, task.count);
+        assertFalse(victim.isScheduled());
+        assertTrue(self[0].isScheduled());
+        assertEquals(1, wheel.getCount());
+        // Only the rescheduled timer fires.
+        assertEquals(1, wheel.advance(300));
+        assertEquals(1, task.count);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalid() {
+        new TimerWheel(0, 8, 0);
+    }
+}